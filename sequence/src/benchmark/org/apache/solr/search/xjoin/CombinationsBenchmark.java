@@ -0,0 +1,129 @@
+package org.apache.solr.search.xjoin;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark the join id merge operators (Combinations), and a JoinSpec combining three
+ * sources, over sorted streams of ids. The two main streams overlap by about a half.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CombinationsBenchmark {
+
+  @Param({ "1000", "10000", "100000", "1000000", "10000000" })
+  public int size;
+  
+  private List<String> a, b, c;
+  
+  private JoinSpec<String> spec;
+  
+  private JoinSpec.Iterable sources;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    a = ids(random, size);
+    b = ids(random, size);
+    c = ids(random, size / 10);
+    
+    spec = JoinSpec.parse("(a AND b) OR c");
+    sources = new JoinSpec.Iterable() {
+      @Override
+      @SuppressWarnings("unchecked")
+      public <T extends Comparable<T>> Iterator<T> iterator(String componentName) {
+        switch (componentName) {
+        case "a":
+          return (Iterator<T>)a.iterator();
+        case "b":
+          return (Iterator<T>)b.iterator();
+        default:
+          return (Iterator<T>)c.iterator();
+        }
+      }
+    };
+  }
+  
+  // sorted, distinct, fixed width ids drawn from a range twice the size
+  private static List<String> ids(Random random, int size) {
+    List<String> ids = new ArrayList<>(size);
+    for (int i = 0; i < 2 * size; ++i) {
+      if (random.nextBoolean()) {
+        ids.add(String.format("%08d", i));
+      }
+    }
+    String[] array = ids.toArray(new String[ids.size()]);
+    Arrays.sort(array);
+    return Arrays.asList(array);
+  }
+  
+  private static void consume(Iterator<String> it, Blackhole bh) {
+    while (it.hasNext()) {
+      bh.consume(it.next());
+    }
+  }
+
+  @Benchmark
+  public void or(Blackhole bh) {
+    consume(Combinations.or(a.iterator(), b.iterator()), bh);
+  }
+
+  @Benchmark
+  public void and(Blackhole bh) {
+    consume(Combinations.and(a.iterator(), b.iterator()), bh);
+  }
+
+  @Benchmark
+  public void xor(Blackhole bh) {
+    consume(Combinations.xor(a.iterator(), b.iterator()), bh);
+  }
+
+  @Benchmark
+  public void andNot(Blackhole bh) {
+    consume(Combinations.andNot(a.iterator(), b.iterator()), bh);
+  }
+
+  @Benchmark
+  public void joinSpec(Blackhole bh) {
+    consume(spec.iterator(sources), bh);
+  }
+
+}
@@ -0,0 +1,99 @@
+package org.apache.solr.search.xjoin;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.util.NamedList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.flax.biosolr.pdbe.Alignment;
+
+/**
+ * Benchmark FieldAppender adding a page of FASTA alignments to a response, with all
+ * fields and with a field list, and NameConverter on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FieldAppenderBenchmark {
+
+  // a typical results page
+  private static final int PAGE_SIZE = 10;
+  
+  private List<Alignment> alignments;
+
+  @Setup
+  public void setUp() {
+    alignments = new ArrayList<>(PAGE_SIZE);
+    for (int i = 0; i < PAGE_SIZE; ++i) {
+      Alignment a = new Alignment(String.format("%dabc", i), "A", 1e-30 * i);
+      for (int j = 0; j < 5; ++j) {
+        a.addQuerySequence("MKTAYIAKQRQISFVKSHFSRQLEERLGLIEVQAPILSRVGDGTQDNLSGAEKAVQVKVKALPDAQ");
+        a.addReturnSequence("MKTAYIAKQRQISFVKSHFSRQ-EERLGLIEVQAPILSRVGDGTQDNLSGAEKAVQVKVKALPDAQ");
+      }
+      a.setQueryOverlapStart(1);
+      a.setQueryOverlapEnd(325);
+      a.setDbOverlapStart(3);
+      a.setDbOverlapEnd(326);
+      a.setPercentIdentity(98.5);
+      alignments.add(a);
+    }
+  }
+  
+  @SuppressWarnings("rawtypes")
+  private NamedList append(FieldAppender appender) {
+    NamedList list = new NamedList();
+    for (Alignment a : alignments) {
+      appender.addNamedList(list, "doc", a);
+    }
+    return list;
+  }
+
+  @Benchmark
+  @SuppressWarnings("rawtypes")
+  public NamedList allFields() {
+    return append(new FieldAppender("*"));
+  }
+
+  @Benchmark
+  @SuppressWarnings("rawtypes")
+  public NamedList fieldList() {
+    return append(new FieldAppender("pdb_id_chain,e_value,percent_identity"));
+  }
+
+  @Benchmark
+  public String nameConverter() {
+    return NameConverter.getFieldName(NameConverter.getMethodName("query_overlap_start"));
+  }
+
+}
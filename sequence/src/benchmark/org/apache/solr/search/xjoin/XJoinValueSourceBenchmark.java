@@ -0,0 +1,119 @@
+package org.apache.solr.search.xjoin;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.apache.solr.common.util.NamedList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark sorting a synthetic index by an XJoinValueSource, with SimpleXJoinResultsFactory
+ * as the external source (returning results for every other document).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class XJoinValueSourceBenchmark {
+
+  @Param({ "10000", "100000", "1000000" })
+  public int numDocs;
+  
+  private RAMDirectory directory;
+  
+  private DirectoryReader reader;
+  
+  private IndexSearcher searcher;
+  
+  private Sort sort;
+
+  @Setup
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void setUp() throws IOException {
+    directory = new RAMDirectory();
+    IndexWriterConfig config = new IndexWriterConfig(Version.LATEST, new KeywordAnalyzer());
+    StringBuilder values = new StringBuilder();
+    try (IndexWriter writer = new IndexWriter(directory, config)) {
+      for (int i = 0; i < numDocs; ++i) {
+        String id = Integer.toString(i);
+        Document doc = new Document();
+        doc.add(new StringField("id", id, Field.Store.NO));
+        writer.addDocument(doc);
+        if (i % 2 == 0) {
+          values.append(values.length() > 0 ? "," : "").append(id);
+        }
+      }
+    }
+    reader = DirectoryReader.open(directory);
+    searcher = new IndexSearcher(reader);
+
+    NamedList args = new NamedList();
+    args.add("values", values.toString());
+    SimpleXJoinResultsFactory factory = new SimpleXJoinResultsFactory();
+    factory.init(args);
+    
+    NamedList parserArgs = new NamedList();
+    parserArgs.add(XJoinParameters.INIT_ATTRIBUTE, "score");
+    parserArgs.add(XJoinParameters.INIT_DEFAULT_VALUE, 1.0);
+    XJoinValueSourceParser parser = new XJoinValueSourceParser();
+    parser.init(parserArgs);
+    
+    XJoinValueSourceParser.XJoinValueSource source = parser.new XJoinValueSource("id", factory.getResults(null), "score");
+    sort = new Sort(source.getSortField(true)).rewrite(searcher);
+  }
+  
+  @TearDown
+  public void tearDown() throws IOException {
+    reader.close();
+    directory.close();
+  }
+
+  @Benchmark
+  public TopDocs sort() throws IOException {
+    return searcher.search(new MatchAllDocsQuery(), 10, sort);
+  }
+
+}
@@ -0,0 +1,69 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark parsing the FASTA output test files with FastaResultsParser, and with the
+ * regular expression parser it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FastaResultsParserBenchmark {
+
+	// test files (in src/test, which must be on the class path)
+	@Param({ "result", "result2" })
+	private String file;
+	
+	private String output;
+	
+	@Setup
+	public void setUp() throws IOException {
+		try (InputStream in = FastaResultsParserBenchmark.class.getResourceAsStream(file)) {
+			if (in == null) {
+				throw new IOException("Test file not on class path: " + file);
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+				bytes.write(buffer, 0, n);
+			}
+			output = bytes.toString("UTF-8");
+		}
+	}
+	
+	private BufferedReader reader() {
+		return new BufferedReader(new StringReader(output));
+	}
+	
+	@Benchmark
+	public FastaJobResults scanner() throws IOException {
+		return FastaResultsParser.parse(reader());
+	}
+
+	@Benchmark
+	public FastaJobResults regex() throws IOException {
+		return new RegexFastaResultsParser().parse(reader());
+	}
+	
+}
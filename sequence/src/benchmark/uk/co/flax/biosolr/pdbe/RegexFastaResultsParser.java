@@ -0,0 +1,122 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The regular expression based FASTA output parser FastaResultsParser replaced, kept
+ * for comparison in FastaResultsParserBenchmark.
+ */
+public class RegexFastaResultsParser {
+	
+    // regexp patterns
+    private Pattern pattern1 = Pattern.compile("^PDB:(.*?_.*?)\\s+(.+?)\\s+([0-9.e-]+?)$|^PRE_PDB:(\\w{4} Entity)\\s+(.+?)\\s+([0-9.e-]+?)$");
+    private Pattern pattern2 = Pattern.compile("^>>PDB:(.*?_.*?)\\s+.*?$|^>>PRE_PDB:(\\w{4} Entity).*?$");
+    private Pattern pattern3 = Pattern.compile("^Smith-Waterman score:.*?\\;(.*?)\\% .*? overlap \\((.*?)\\)$");
+    private Pattern pattern4 = Pattern.compile("^EMBOS  (\\s*.*?)$");            
+    private Pattern pattern5 = Pattern.compile("^PDB:.*? (\\s*.*?)$|^PRE_PD.*? (\\s*.*?)$");
+    
+    // sometimes an alignment appears twice in the results - need to ignore all but
+    // the first, so remember those we have completed
+    private Set<Alignment> completeAlignments = new HashSet<>();
+    
+    private int firstGroup(Matcher m) {
+    	for (int n = 1; n <= m.groupCount(); ++n) {
+    		if (m.group(n) != null) {
+    			return n;
+    		}
+    	}
+    	return 0;
+    }
+    
+    // create an Alignment from a matching line
+    private Alignment parseAlignment(Matcher matcher) {
+    	int n = firstGroup(matcher);
+    	String pdbIdChain = matcher.group(n);
+        if (pdbIdChain.contains("Entity")) {
+        	pdbIdChain = pdbIdChain.replaceFirst(" ", "_");
+        }
+        String[] s = pdbIdChain.split("_");
+        String pdbId = s[0];
+        String chain = s[1];
+        double eValue = new Double(matcher.group(n + 2));
+        return new Alignment(pdbId, chain, eValue);
+    }
+    
+    public FastaJobResults parse(BufferedReader reader) throws IOException {
+        FastaJobResults results = new FastaJobResults();
+
+        String line = "";
+        while (line != null) {
+            Matcher matcher1 = pattern1.matcher(line);
+            Matcher matcher2 = pattern2.matcher(line);
+            if (matcher1.find()) {
+                Alignment alignment = parseAlignment(matcher1);
+                results.addAlignment(alignment);                
+                line = reader.readLine();
+            } else if (matcher2.find()) {
+            	int n = firstGroup(matcher2);
+                String pdbIdChain = matcher2.group(n);
+                
+                if (pdbIdChain.contains("Entity")) {
+                	pdbIdChain = pdbIdChain.replaceFirst(" ", "_");  
+                }
+                
+                Alignment a = results.getAlignment(pdbIdChain);
+                assert a != null;
+
+                // ignore second set of sequence details for this alignment
+                // (but still need to consume lines)
+                if (completeAlignments.contains(a)) {
+                	a = null;
+                }
+                
+                while ((line = reader.readLine()) != null) {
+                    Matcher m2 = pattern2.matcher(line);
+                    Matcher m3 = pattern3.matcher(line);
+                    Matcher m4 = pattern4.matcher(line);
+                    Matcher m5 = pattern5.matcher(line);
+
+                    if (m3.find()) {
+                        double identity = new Double(m3.group(1));
+                        String overLap = m3.group(2);
+                        String[] o = overLap.split(":");
+                        String[] oIn = o[0].split("-");
+                        String[] oOut = o[1].split("-");
+                        if (a != null) {
+	                        a.setPercentIdentity(identity);
+	                        a.setQueryOverlapStart(Integer.parseInt(oIn[0]));
+	                        a.setQueryOverlapEnd(Integer.parseInt(oIn[1]));
+	                        a.setDbOverlapStart(Integer.parseInt(oOut[0]));
+	                        a.setDbOverlapEnd(Integer.parseInt(oOut[1]));
+                        }
+                    } else if (m2.find()) {
+                        break;
+                    } else if (m4.find()) {
+                    	if (a != null) {
+                    		a.addQuerySequence(m4.group(1));
+                    	}
+                    } else if (m5.find()) {
+                        int n4 = firstGroup(m5);
+                        if (a != null) {
+                        	a.addReturnSequence(m5.group(n4));
+                        }
+                    }
+                }
+                
+                if (a != null) {
+	                completeAlignments.add(a);
+                }
+            } else {
+            	line = reader.readLine();
+            }
+        }
+        
+        return results;
+    }
+    
+}
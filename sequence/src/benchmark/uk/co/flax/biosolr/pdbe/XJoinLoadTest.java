@@ -0,0 +1,154 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+
+/**
+ * Load test for FASTA XJoin searches: sends xjoin queries for the sequences in a file
+ * (one per line, used in turn) to a Solr request handler, from a number of threads, and
+ * reports throughput and latency percentiles. This is not a JMH benchmark - latency
+ * under concurrent load is what matters here. Run against a Solr whose FASTA XJoin
+ * component replays recorded output (see FastaReplayService), to test without the FASTA
+ * service:
+ *
+ *   XJoinLoadTest solr-url handler component sequence-file threads requests [warmup]
+ *
+ * e.g. XJoinLoadTest http://localhost:8983/solr/pdbe /xjoin xjoin_fasta seqs.txt 16 2000 200
+ *
+ * The handler should set the other external parameters (see /xjoin in solrconfig.xml).
+ */
+public class XJoinLoadTest {
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private final SolrServer solr;
+
+	private final String handler;
+
+	private final String component;
+
+	private final List<String> sequences;
+
+	private XJoinLoadTest(SolrServer solr, String handler, String component, List<String> sequences) {
+		this.solr = solr;
+		this.handler = handler;
+		this.component = component;
+		this.sequences = sequences;
+	}
+
+	private SolrQuery query(String sequence) {
+		SolrQuery query = new SolrQuery("*:*");
+		query.setRequestHandler(handler);
+		query.set(component, true);
+		query.set(component + ".external." + FastaXJoinResultsFactory.FASTA_SEQUENCE, sequence);
+		query.addFilterQuery("{!xjoin}" + component);
+		return query;
+	}
+
+	/**
+	 * Send the given number of requests from the given number of threads, returning the
+	 * latency (ns) of each successful request, in order of completion.
+	 */
+	private long[] run(int threads, final int requests, final AtomicInteger errors) throws InterruptedException {
+		final long[] latencies = new long[requests];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger done = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		for (int t = 0; t < threads; ++t) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = next.getAndIncrement(); i < requests; i = next.getAndIncrement()) {
+						SolrQuery query = query(sequences.get(i % sequences.size()));
+						long start = System.nanoTime();
+						try {
+							solr.query(query);
+							latencies[done.getAndIncrement()] = System.nanoTime() - start;
+						} catch (Exception e) {
+							if (errors.getAndIncrement() == 0) {
+								e.printStackTrace(System.err);
+							}
+						}
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		return Arrays.copyOf(latencies, done.get());
+	}
+
+	// latency at the given percentile (nearest rank) of sorted latencies
+	private static long percentile(long[] sorted, double p) {
+		int rank = (int)Math.ceil(p / 100 * sorted.length);
+		return sorted[Math.max(rank - 1, 0)];
+	}
+
+	private static String ms(long ns) {
+		return String.format(Locale.ENGLISH, "%.1fms", ns / 1e6);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 6) {
+			System.err.println("Usage: XJoinLoadTest <Solr URL> <handler> <component> <sequence file> <threads> <requests> [<warmup requests>]");
+			System.exit(1);
+		}
+		List<String> sequences = new ArrayList<>();
+		for (String line : Files.readAllLines(Paths.get(args[3]), StandardCharsets.UTF_8)) {
+			if (line.trim().length() > 0) {
+				sequences.add(line.trim());
+			}
+		}
+		if (sequences.size() == 0) {
+			System.err.println("No sequences in " + args[3]);
+			System.exit(1);
+		}
+		int threads = Integer.parseInt(args[4]);
+		int requests = Integer.parseInt(args[5]);
+		int warmup = args.length > 6 ? Integer.parseInt(args[6]) : 0;
+
+		HttpSolrServer solr = new HttpSolrServer(args[0]);
+		solr.setMaxTotalConnections(threads);
+		solr.setDefaultMaxConnectionsPerHost(threads);
+		try {
+			XJoinLoadTest test = new XJoinLoadTest(solr, args[1], args[2], sequences);
+			if (warmup > 0) {
+				test.run(threads, warmup, new AtomicInteger());
+			}
+
+			AtomicInteger errors = new AtomicInteger();
+			long start = System.nanoTime();
+			long[] latencies = test.run(threads, requests, errors);
+			long elapsed = System.nanoTime() - start;
+
+			System.out.println(String.format(Locale.ENGLISH, "%d requests (%d errors) from %d threads in %.2fs: %.1f requests/s",
+					requests, errors.get(), threads, elapsed / 1e9, latencies.length / (elapsed / 1e9)));
+			if (latencies.length > 0) {
+				Arrays.sort(latencies);
+				StringBuilder sb = new StringBuilder("latency:");
+				for (double p : PERCENTILES) {
+					sb.append(String.format(Locale.ENGLISH, " p%s=%s", p == Math.rint(p) ? Integer.toString((int)p) : Double.toString(p), ms(percentile(latencies, p))));
+				}
+				sb.append(" max=").append(ms(latencies[latencies.length - 1]));
+				System.out.println(sb);
+			}
+		} finally {
+			solr.shutdown();
+		}
+	}
+
+}
@@ -20,6 +20,7 @@ package org.apache.solr.search.xjoin;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.solr.common.util.NamedList;
@@ -85,12 +86,22 @@ public class FieldAppender {
   
   /**
    * Add a NamedList (with given name) with properties from the given object.
+   * If the object is a Map, its entries are used as the properties.
    * Returns the new NamedList.
    */
   @SuppressWarnings({ "rawtypes", "unchecked" })
   public NamedList addNamedList(NamedList target, String name, Object object) {
     NamedList<Object> list = new NamedList<>();
     target.add(name, list);
+    if (object instanceof Map) {
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>)object).entrySet()) {
+        String fieldName = entry.getKey().toString();
+        if (fieldNames == null || fieldNames.contains(fieldName)) {
+          list.add(fieldName, entry.getValue());
+        }
+      }
+      return list;
+    }
     for (Method method : object.getClass().getMethods()) {
       String fieldName = NameConverter.getFieldName(method.getName());
       if (fieldName == null) {
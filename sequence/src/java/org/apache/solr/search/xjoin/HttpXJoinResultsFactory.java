@@ -0,0 +1,467 @@
+package org.apache.solr.search.xjoin;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.noggit.JSONParser;
+
+/**
+ * Generic XJoinResultsFactory which calls a configurable HTTP endpoint and expects a
+ * JSON response, either an array of flat objects or an object holding such an array
+ * under the configured root attribute. Each object is one external result, and must
+ * have a (scalar) join id attribute; other scalar attributes are made available as
+ * result fields. Non-scalar attribute values are ignored.
+ *
+ * Requests are made through a pooled, keep-alive HTTP client shared by all searches,
+ * and the response is parsed as it is read (no intermediate copy of the body) into a
+ * sorted join id array plus one array of values per attribute. The client's connections
+ * are released when the factory is closed (by XJoinSearchComponent, when the core closes).
+ */
+public class HttpXJoinResultsFactory implements XJoinResultsFactory<String>, Closeable {
+
+  // initialisation parameters
+  public static final String INIT_URL = "url";
+  public static final String INIT_JOIN_ID = "joinId";
+  public static final String INIT_ROOT = "root";
+  public static final String INIT_MAX_CONNECTIONS = "maxConnections";
+  public static final String INIT_MAX_CONNECTIONS_PER_HOST = "maxConnectionsPerHost";
+  public static final String INIT_CONNECTION_TIMEOUT = "connectionTimeout";
+  public static final String INIT_SOCKET_TIMEOUT = "socketTimeout";
+  public static final String INIT_COMPRESSION = "compression";
+
+  private static final String DEFAULT_JOIN_ID = "id";
+  private static final String DEFAULT_ROOT = "results";
+
+  private HttpClient client;
+  private String url;
+  private String joinId;
+  private String root;
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public void init(NamedList args) {
+    url = (String)args.get(INIT_URL);
+    if (url == null) {
+      throw new RuntimeException("Missing " + INIT_URL);
+    }
+    joinId = getString(args, INIT_JOIN_ID, DEFAULT_JOIN_ID);
+    root = getString(args, INIT_ROOT, DEFAULT_ROOT);
+
+    // pooled client - connections are kept alive between searches
+    ModifiableSolrParams clientParams = new ModifiableSolrParams();
+    copyParam(args, INIT_MAX_CONNECTIONS, clientParams, HttpClientUtil.PROP_MAX_CONNECTIONS);
+    copyParam(args, INIT_MAX_CONNECTIONS_PER_HOST, clientParams, HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST);
+    copyParam(args, INIT_CONNECTION_TIMEOUT, clientParams, HttpClientUtil.PROP_CONNECTION_TIMEOUT);
+    copyParam(args, INIT_SOCKET_TIMEOUT, clientParams, HttpClientUtil.PROP_SO_TIMEOUT);
+    copyParam(args, INIT_COMPRESSION, clientParams, HttpClientUtil.PROP_ALLOW_COMPRESSION);
+    client = HttpClientUtil.createClient(clientParams);
+  }
+
+  /**
+   * Shut down the client's connection pool.
+   */
+  @Override
+  public void close() {
+    if (client != null) {
+      client.getConnectionManager().shutdown();
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static String getString(NamedList args, String name, String defaultValue) {
+    Object value = args.get(name);
+    return value != null ? value.toString() : defaultValue;
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static void copyParam(NamedList args, String name, ModifiableSolrParams params, String prop) {
+    Object value = args.get(name);
+    if (value != null) {
+      params.set(prop, value.toString());
+    }
+  }
+
+  /**
+   * Call the configured URL, passing all the given parameters in the query string.
+   */
+  @Override
+  public XJoinResults<String> getResults(SolrParams params) throws IOException {
+    HttpGet get = new HttpGet(buildURI(params));
+    HttpResponse response = client.execute(get);
+    HttpEntity entity = response.getEntity();
+    try {
+      int status = response.getStatusLine().getStatusCode();
+      if (status != HttpStatus.SC_OK) {
+        throw new IOException("Unexpected HTTP status " + status + " from " + get.getURI());
+      }
+      if (entity == null) {
+        throw new IOException("No content from " + get.getURI());
+      }
+      Charset charset = ContentType.getOrDefault(entity).getCharset();
+      if (charset == null) {
+        charset = StandardCharsets.UTF_8;
+      }
+      try (Reader reader = new BufferedReader(new InputStreamReader(entity.getContent(), charset))) {
+        return parse(reader);
+      }
+    } finally {
+      // make sure the connection is released back to the pool
+      EntityUtils.consumeQuietly(entity);
+    }
+  }
+
+  private URI buildURI(SolrParams params) throws IOException {
+    try {
+      URIBuilder builder = new URIBuilder(url);
+      if (params != null) {
+        for (Iterator<String> it = params.getParameterNamesIterator(); it.hasNext(); ) {
+          String name = it.next();
+          for (String value : params.getParams(name)) {
+            builder.addParameter(name, value);
+          }
+        }
+      }
+      return builder.build();
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Parse a JSON response into results (without holding the whole response in memory).
+   */
+  /*package*/ Results parse(Reader reader) throws IOException {
+    JSONParser parser = new JSONParser(reader);
+    ResultsBuilder builder = new ResultsBuilder();
+    int event = parser.nextEvent();
+    if (event == JSONParser.START_ARRAY) {
+      parseArray(parser, builder);
+    } else if (event == JSONParser.START_OBJECT) {
+      while ((event = parser.nextEvent()) != JSONParser.END_OBJECT) {
+        String key = parser.getString();
+        event = parser.nextEvent();
+        if (key.equals(root) && event == JSONParser.START_ARRAY) {
+          parseArray(parser, builder);
+        } else {
+          skip(parser, event);
+        }
+      }
+    } else {
+      throw new IOException("Expected JSON array or object, but got " + JSONParser.getEventString(event));
+    }
+    return builder.build();
+  }
+
+  // parse an array of results, having consumed the START_ARRAY event
+  private void parseArray(JSONParser parser, ResultsBuilder builder) throws IOException {
+    int event;
+    while ((event = parser.nextEvent()) != JSONParser.END_ARRAY) {
+      if (event != JSONParser.START_OBJECT) {
+        skip(parser, event);
+        continue;
+      }
+      while ((event = parser.nextEvent()) != JSONParser.END_OBJECT) {
+        String key = parser.getString();
+        event = parser.nextEvent();
+        Object value = scalar(parser, event);
+        if (value == null) {
+          skip(parser, event);
+        } else if (key.equals(joinId)) {
+          builder.setJoinId(value.toString());
+        } else {
+          builder.set(key, value);
+        }
+      }
+      builder.endResult();
+    }
+  }
+
+  // get a scalar value for the current event, or null if the value is not a scalar
+  private Object scalar(JSONParser parser, int event) throws IOException {
+    switch (event) {
+    case JSONParser.STRING:
+      return parser.getString();
+    case JSONParser.LONG:
+      return parser.getLong();
+    case JSONParser.NUMBER:
+      return parser.getDouble();
+    case JSONParser.BIGNUMBER:
+      return Double.valueOf(parser.getNumberChars().toString());
+    case JSONParser.BOOLEAN:
+      return parser.getBoolean();
+    default:
+      return null;
+    }
+  }
+
+  // skip over the value for the current event (including nested values)
+  private void skip(JSONParser parser, int event) throws IOException {
+    switch (event) {
+    case JSONParser.NULL:
+      parser.getNull();
+      break;
+    case JSONParser.START_ARRAY:
+    case JSONParser.START_OBJECT:
+      int depth = 1;
+      while (depth > 0) {
+        event = parser.nextEvent();
+        if (event == JSONParser.START_ARRAY || event == JSONParser.START_OBJECT) {
+          ++depth;
+        } else if (event == JSONParser.END_ARRAY || event == JSONParser.END_OBJECT) {
+          --depth;
+        } else if (event == JSONParser.EOF) {
+          throw new IOException("Unexpected end of JSON input");
+        }
+      }
+      break;
+    default:
+      scalar(parser, event);
+    }
+  }
+
+  /**
+   * Accumulates results column by column as they are parsed.
+   */
+  private static class ResultsBuilder {
+
+    private List<String> joinIds = new ArrayList<>();
+
+    private Map<String, List<Object>> columns = new LinkedHashMap<>();
+
+    // values for the current result
+    private String currentJoinId;
+    private Map<String, Object> current = new HashMap<>();
+
+    void setJoinId(String joinId) {
+      currentJoinId = joinId;
+    }
+
+    void set(String attribute, Object value) {
+      current.put(attribute, value);
+    }
+
+    void endResult() {
+      // results without a join id can't be joined, so are dropped
+      if (currentJoinId != null) {
+        int n = joinIds.size();
+        joinIds.add(currentJoinId);
+        for (Map.Entry<String, Object> entry : current.entrySet()) {
+          List<Object> column = columns.get(entry.getKey());
+          if (column == null) {
+            column = new ArrayList<>();
+            columns.put(entry.getKey(), column);
+          }
+          while (column.size() < n) {
+            column.add(null);
+          }
+          column.add(entry.getValue());
+        }
+      }
+      currentJoinId = null;
+      current.clear();
+    }
+
+    Results build() {
+      // sort the result positions by join id
+      final String[] ids = joinIds.toArray(new String[joinIds.size()]);
+      Integer[] order = new Integer[ids.length];
+      for (int i = 0; i < order.length; ++i) {
+        order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return ids[a].compareTo(ids[b]);
+        }
+      });
+
+      // drop repeated join ids (keeping the first occurrence)
+      int n = 0;
+      for (int i = 0; i < order.length; ++i) {
+        if (n == 0 || ! ids[order[i]].equals(ids[order[n - 1]])) {
+          order[n++] = order[i];
+        }
+      }
+
+      String[] sortedIds = new String[n];
+      for (int i = 0; i < n; ++i) {
+        sortedIds[i] = ids[order[i]];
+      }
+      String[] attributes = columns.keySet().toArray(new String[columns.size()]);
+      Object[][] values = new Object[attributes.length][];
+      for (int j = 0; j < attributes.length; ++j) {
+        List<Object> column = columns.get(attributes[j]);
+        values[j] = new Object[n];
+        for (int i = 0; i < n; ++i) {
+          values[j][i] = order[i] < column.size() ? column.get(order[i]) : null;
+        }
+      }
+      return new Results(sortedIds, attributes, values);
+    }
+
+  }
+
+  /**
+   * External results, held as a sorted array of join ids and an array of values for
+   * each attribute (in join id order).
+   */
+  public static class Results implements XJoinResults<String> {
+
+    private final String[] joinIds;
+
+    private final String[] attributes;
+
+    private final Object[][] values;
+
+    private Results(String[] joinIds, String[] attributes, Object[][] values) {
+      this.joinIds = joinIds;
+      this.attributes = attributes;
+      this.values = values;
+    }
+
+    @Override
+    public Result getResult(String joinId) {
+      int i = Arrays.binarySearch(joinIds, joinId);
+      return i >= 0 ? new Result(i) : null;
+    }
+
+    @Override
+    public Iterable<String> getJoinIds() {
+      return Arrays.asList(joinIds);
+    }
+
+    public int getCount() {
+      return joinIds.length;
+    }
+
+    /**
+     * A single external result, as a map of attribute name to value (attributes with
+     * no value for this result are absent).
+     */
+    public class Result extends AbstractMap<String, Object> {
+
+      private final int index;
+
+      private Result(int index) {
+        this.index = index;
+      }
+
+      @Override
+      public Object get(Object key) {
+        if (key instanceof String) {
+          for (int j = 0; j < attributes.length; ++j) {
+            if (attributes[j].equals(key)) {
+              return values[j][index];
+            }
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+
+          @Override
+          public Iterator<Map.Entry<String, Object>> iterator() {
+            return new Iterator<Map.Entry<String, Object>>() {
+
+              int j = advance(0);
+
+              private int advance(int j) {
+                while (j < attributes.length && values[j][index] == null) {
+                  ++j;
+                }
+                return j;
+              }
+
+              @Override
+              public boolean hasNext() {
+                return j < attributes.length;
+              }
+
+              @Override
+              public Map.Entry<String, Object> next() {
+                if (j >= attributes.length) {
+                  throw new NoSuchElementException();
+                }
+                Map.Entry<String, Object> entry = new SimpleImmutableEntry<>(attributes[j], values[j][index]);
+                j = advance(j + 1);
+                return entry;
+              }
+
+              @Override
+              public void remove() {
+                throw new UnsupportedOperationException();
+              }
+
+            };
+          }
+
+          @Override
+          public int size() {
+            int size = 0;
+            for (int j = 0; j < attributes.length; ++j) {
+              if (values[j][index] != null) {
+                ++size;
+              }
+            }
+            return size;
+          }
+
+        };
+      }
+
+    }
+
+  }
+
+}
@@ -0,0 +1,176 @@
+package org.apache.solr.search.xjoin;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Bloom filter over the terms of a field in one index segment, used to reject join ids
+ * which are not in the segment before seeking in the terms dictionary. This is a big
+ * saving when most external join ids are absent from the index.
+ *
+ * Filters are held in a user SolrCache, keyed by segment and field. Since segments don't
+ * change, configuring the cache with JoinIdBloomFilter$Regenerator as its regenerator
+ * carries filters over to new searchers, building filters for new segments as part of
+ * searcher warm-up. Otherwise, filters are built when first needed.
+ */
+public class JoinIdBloomFilter {
+
+  // bits per term gives about 1% false positives
+  private static final int BITS_PER_TERM = 10;
+  private static final int NUM_HASHES = 7;
+
+  private final long[] bits;
+
+  private final long numBits;
+
+  private JoinIdBloomFilter(long numTerms) {
+    long n = Math.max(numTerms * BITS_PER_TERM, 64);
+    bits = new long[(int)((n + 63) >>> 6)];
+    numBits = (long)bits.length << 6;
+  }
+
+  /**
+   * Build a Bloom filter for the given field (which may have no terms) of a segment.
+   */
+  public static JoinIdBloomFilter build(AtomicReader reader, String field) throws IOException {
+    Terms terms = reader.terms(field);
+    if (terms == null) {
+      return new JoinIdBloomFilter(0);
+    }
+    long size = terms.size();
+    JoinIdBloomFilter filter = new JoinIdBloomFilter(size >= 0 ? size : reader.maxDoc());
+    TermsEnum it = terms.iterator(null);
+    for (BytesRef term = it.next(); term != null; term = it.next()) {
+      filter.add(term);
+    }
+    return filter;
+  }
+
+  /**
+   * Get the Bloom filter for the given field of a segment of the searcher from the named
+   * cache, building and caching it if necessary. Returns null if there is no such cache.
+   */
+  @SuppressWarnings("unchecked")
+  public static JoinIdBloomFilter get(SolrIndexSearcher searcher, String cacheName, AtomicReaderContext context, String field) throws IOException {
+    SolrCache<Key, JoinIdBloomFilter> cache = searcher.getCache(cacheName);
+    if (cache == null) {
+      return null;
+    }
+    Key key = new Key(context.reader().getCoreCacheKey(), field);
+    JoinIdBloomFilter filter = cache.get(key);
+    if (filter == null) {
+      filter = build(context.reader(), field);
+      cache.put(key, filter);
+    }
+    return filter;
+  }
+
+  private void add(BytesRef term) {
+    int h1 = StringHelper.murmurhash3_x86_32(term, 0);
+    int h2 = StringHelper.murmurhash3_x86_32(term, h1);
+    for (int i = 0; i < NUM_HASHES; ++i) {
+      long bit = ((h1 + (long)i * h2) & Long.MAX_VALUE) % numBits;
+      bits[(int)(bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /**
+   * Returns false if the term is definitely not in the segment (true means it might be).
+   */
+  public boolean mightContain(BytesRef term) {
+    int h1 = StringHelper.murmurhash3_x86_32(term, 0);
+    int h2 = StringHelper.murmurhash3_x86_32(term, h1);
+    for (int i = 0; i < NUM_HASHES; ++i) {
+      long bit = ((h1 + (long)i * h2) & Long.MAX_VALUE) % numBits;
+      if ((bits[(int)(bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Cache key: segment core and field.
+   */
+  static class Key {
+
+    private final Object coreKey;
+
+    private final String field;
+
+    Key(Object coreKey, String field) {
+      this.coreKey = coreKey;
+      this.field = field;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (! (object instanceof Key)) {
+        return false;
+      }
+      Key other = (Key)object;
+      return coreKey.equals(other.coreKey) && field.equals(other.field);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * coreKey.hashCode() + field.hashCode();
+    }
+
+  }
+
+  /**
+   * Cache regenerator which makes sure a new searcher has filters for all its segments
+   * for every field with a filter in the old searcher, reusing old filters for segments
+   * that are still present.
+   */
+  public static class Regenerator implements CacheRegenerator {
+
+    @Override
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache,
+                                  Object oldKey, Object oldVal) throws IOException {
+      String field = ((Key)oldKey).field;
+      for (AtomicReaderContext context : newSearcher.getTopReaderContext().leaves()) {
+        Key key = new Key(context.reader().getCoreCacheKey(), field);
+        if (newCache.get(key) != null) {
+          continue;
+        }
+        Object filter = oldCache.get(key);
+        if (filter == null) {
+          filter = build(context.reader(), field);
+        }
+        newCache.put(key, filter);
+      }
+      return true;
+    }
+
+  }
+
+}
@@ -0,0 +1,111 @@
+package org.apache.solr.search.xjoin;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.request.SolrRequestInfo;
+
+/**
+ * Terms filter on join ids which checks each join id against the segment's Bloom filter
+ * (see JoinIdBloomFilter) before seeking it in the terms dictionary. Bloom filters are
+ * taken from the named cache of the current request's searcher.
+ */
+public class JoinIdTermsFilter extends Filter {
+
+  private final String cacheName;
+
+  private final String field;
+
+  // join ids as indexed terms, sorted
+  private final BytesRef[] joinIds;
+
+  private final int hashCode;
+
+  public JoinIdTermsFilter(String cacheName, String field, BytesRef[] joinIds) {
+    this.cacheName = cacheName;
+    this.field = field;
+    this.joinIds = joinIds;
+    Arrays.sort(joinIds);
+    hashCode = 31 * field.hashCode() + Arrays.hashCode(joinIds);
+  }
+
+  @Override
+  public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+    AtomicReader reader = context.reader();
+    Terms terms = reader.terms(field);
+    if (terms == null) {
+      return null;
+    }
+    SolrRequestInfo info = SolrRequestInfo.getRequestInfo();
+    JoinIdBloomFilter bloom = null;
+    if (info != null) {
+      bloom = JoinIdBloomFilter.get(info.getReq().getSearcher(), cacheName, context, field);
+    }
+    TermsEnum termsEnum = terms.iterator(null);
+    DocsEnum docs = null;
+    FixedBitSet result = null;
+    for (BytesRef joinId : joinIds) {
+      if (bloom != null && ! bloom.mightContain(joinId)) {
+        continue;
+      }
+      if (termsEnum.seekExact(joinId)) {
+        docs = termsEnum.docs(acceptDocs, docs, DocsEnum.FLAG_NONE);
+        if (result == null) {
+          result = new FixedBitSet(reader.maxDoc());
+        }
+        for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docs.nextDoc()) {
+          result.set(doc);
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "JoinIdTermsFilter(" + field + ", " + joinIds.length + " ids)";
+  }
+
+  @Override
+  public boolean equals(Object object) {
+    if (! (object instanceof JoinIdTermsFilter)) {
+      return false;
+    }
+    JoinIdTermsFilter other = (JoinIdTermsFilter)object;
+    return field.equals(other.field) && Arrays.equals(joinIds, other.joinIds);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+}
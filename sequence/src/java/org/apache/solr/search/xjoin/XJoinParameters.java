@@ -30,6 +30,12 @@ public class XJoinParameters {
   public static final String EXTERNAL_PREFIX = "external";
   public static final String RESULTS_FIELD_LIST = "results";
   public static final String DOC_FIELD_LIST = CommonParams.FL;
+  public static final String TIME_ALLOWED = CommonParams.TIME_ALLOWED;
+  public static final String INIT_HEDGE_PERCENTILE = "hedgePercentile";
+  public static final String INIT_CACHE_SIZE = "cacheSize";
+  public static final String INIT_CACHE_MAX_AGE = "cacheMaxAge";
+  public static final String INIT_MAX_THREADS = "maxThreads";
+  public static final String PARTIAL_RESULTS = "partialResults";
 
   // XJoinValueSourceParser parameters
   public static final String INIT_XJOIN_COMPONENT_NAME = "xJoinSearchComponent";
@@ -38,5 +44,6 @@ public class XJoinParameters {
   
   // XJoinQParserPlugin parameters
   public static final String INIT_FIELD = "f";
+  public static final String INIT_BLOOM_FILTER_CACHE = "bloomFilterCache";
   
 }
@@ -0,0 +1,154 @@
+package org.apache.solr.search.xjoin;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.queries.TermsFilter;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.SentinelIntSet;
+import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.ExtendedQueryBase;
+import org.apache.solr.search.PostFilter;
+import org.apache.solr.search.SolrConstantScoreQuery;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Post filter on external join ids, for selective main queries joined against large
+ * sets of external results. Rather than building a filter over every join id, only
+ * documents already matching the main query are checked, by looking up the ordinal
+ * of their join field value (which must be single valued) in a per-segment set of the
+ * ordinals of the join ids. If a Bloom filter cache is given, join ids are checked against
+ * the segment's Bloom filter (see JoinIdBloomFilter) before looking up their ordinals.
+ */
+public class XJoinPostFilter extends ExtendedQueryBase implements PostFilter {
+
+  // post filters must have at least this cost
+  public static final int MIN_COST = 100;
+
+  private final String joinField;
+
+  // join ids as indexed terms, sorted
+  private final BytesRef[] joinIds;
+  
+  // name of the user cache holding join id Bloom filters (or null for none)
+  private final String bloomFilterCache;
+
+  private final int hashCode;
+
+  public XJoinPostFilter(String joinField, BytesRef[] joinIds, String bloomFilterCache) {
+    this.joinField = joinField;
+    this.joinIds = joinIds;
+    this.bloomFilterCache = bloomFilterCache;
+    Arrays.sort(joinIds);
+    hashCode = 31 * joinField.hashCode() + Arrays.hashCode(joinIds);
+  }
+
+  // never cached, so always used as a post filter
+  @Override
+  public boolean getCache() {
+    return false;
+  }
+
+  @Override
+  public int getCost() {
+    return Math.max(super.getCost(), MIN_COST);
+  }
+
+  @Override
+  public DelegatingCollector getFilterCollector(IndexSearcher indexSearcher) {
+    final SolrIndexSearcher searcher = bloomFilterCache != null && indexSearcher instanceof SolrIndexSearcher
+                                     ? (SolrIndexSearcher)indexSearcher : null;
+    return new DelegatingCollector() {
+
+      // join field values for the current segment
+      private SortedDocValues values;
+
+      // segment ordinals of join ids
+      private SentinelIntSet ords;
+
+      @Override
+      public void setNextReader(AtomicReaderContext context) throws IOException {
+        values = FieldCache.DEFAULT.getTermsIndex(context.reader(), joinField);
+        ords = new SentinelIntSet(Math.min(joinIds.length, values.getValueCount()), -1);
+        JoinIdBloomFilter bloom = null;
+        if (searcher != null) {
+          bloom = JoinIdBloomFilter.get(searcher, bloomFilterCache, context, joinField);
+        }
+        for (BytesRef joinId : joinIds) {
+          if (bloom != null && ! bloom.mightContain(joinId)) {
+            continue;
+          }
+          int ord = values.lookupTerm(joinId);
+          if (ord >= 0) {
+            ords.put(ord);
+          }
+        }
+        super.setNextReader(context);
+      }
+
+      @Override
+      public void collect(int doc) throws IOException {
+        int ord = values.getOrd(doc);
+        if (ord >= 0 && ords.exists(ord)) {
+          super.collect(doc);
+        }
+      }
+
+    };
+  }
+
+  /**
+   * If not used as a post filter (e.g. as a main query), behave as a constant score terms
+   * filter query.
+   */
+  @Override
+  public Query rewrite(IndexReader reader) throws IOException {
+    if (bloomFilterCache != null) {
+      return new SolrConstantScoreQuery(new JoinIdTermsFilter(bloomFilterCache, joinField, joinIds));
+    }
+    return new SolrConstantScoreQuery(new TermsFilter(joinField, joinIds));
+  }
+
+  @Override
+  public String toString(String field) {
+    return "XJoinPostFilter(" + joinField + ", " + joinIds.length + " ids)";
+  }
+
+  @Override
+  public boolean equals(Object object) {
+    if (! (object instanceof XJoinPostFilter)) {
+      return false;
+    }
+    XJoinPostFilter other = (XJoinPostFilter)object;
+    return joinField.equals(other.joinField) && Arrays.equals(joinIds, other.joinIds);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+}
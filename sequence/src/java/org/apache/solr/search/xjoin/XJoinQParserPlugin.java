@@ -17,7 +17,9 @@ package org.apache.solr.search.xjoin;
  * limitations under the License.
  */
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.commons.collections.IteratorUtils;
 import org.apache.commons.collections.Transformer;
@@ -36,6 +38,7 @@ import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.automaton.Automata;
 import org.apache.lucene.util.automaton.Automaton;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.SolrQueryRequest;
@@ -57,9 +60,12 @@ public class XJoinQParserPlugin extends QParserPlugin {
   /** For choosing the internal algorithm */
   private static final String METHOD = "method";
   
+  // name of the user cache holding join id Bloom filters (or null for none)
+  private String bloomFilterCache;
+  
   @Override @SuppressWarnings("rawtypes")
   public void init(NamedList args) {
-    // nothing to do
+    bloomFilterCache = (String)args.get(XJoinParameters.INIT_BLOOM_FILTER_CACHE);
   }
  
   // this code is modified from TermsQParserPlugin
@@ -125,11 +131,19 @@ public class XJoinQParserPlugin extends QParserPlugin {
 
   /**
    * Like fq={!xjoin}xjoin_component_name OR xjoin_component_name2
+   * 
+   * The time taken to parse the query (not to match documents, which is done during the
+   * search) is recorded in the statistics of the first referenced XJoin search component.
+   * 
+   * With cost>=100, the query is a post filter (see XJoinPostFilter).
+   * 
+   * If a Bloom filter cache is configured, the termsFilter method and the post filter
+   * use Bloom filters to skip looking up join ids which are not in the index.
    */
   @Override
   @SuppressWarnings("rawtypes")
   public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
-    return new XJoinQParser(qstr, localParams, params, req);
+    return new XJoinQParser(qstr, localParams, params, req, bloomFilterCache);
   }
   
   static class XJoinQParser<T extends Comparable<T>> extends QParser implements JoinSpec.Iterable {
@@ -137,15 +151,31 @@ public class XJoinQParserPlugin extends QParserPlugin {
     // record the join field when retrieving external results
     // must be the same for all external sources referenced in our query
     private String joinField;
+    
+    // name of the user cache holding join id Bloom filters (or null for none)
+    private String bloomFilterCache;
+    
+    // the XJoin search components referenced in our query
+    private List<XJoinSearchComponent> components = new ArrayList<>();
 
-    public XJoinQParser(String qstr, SolrParams localParams, SolrParams params,SolrQueryRequest req) {
+    public XJoinQParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req, String bloomFilterCache) {
       super(qstr, localParams, params, req);
+      this.bloomFilterCache = bloomFilterCache;
       joinField = null;
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public Query parse() throws SyntaxError {
+      long start = System.nanoTime();
+      Query query = parseQuery();
+      long nanos = System.nanoTime() - start;
+      XJoinSearchComponent xJoin = components.get(0);
+      xJoin.getXJoinStatistics().record(xJoin.getRequestStatistics(req), XJoinStatistics.Stage.parse, nanos);
+      return query;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private Query parseQuery() throws SyntaxError {
       Method method = Method.valueOf(localParams.get(METHOD, Method.termsFilter.name()));
       JoinSpec<T> js = JoinSpec.parse(localParams.get(QueryParsing.V));
       Iterator<T> it = js.iterator(this);
@@ -154,6 +184,13 @@ public class XJoinQParserPlugin extends QParserPlugin {
       }
       FieldType ft = req.getSchema().getFieldTypeNoEx(joinField);
       Iterator<BytesRef> bytesRefs = new TransformIterator(it, transformer(ft));
+      if (localParams.getInt(CommonParams.COST, 0) >= XJoinPostFilter.MIN_COST) {
+        return new XJoinPostFilter(joinField, (BytesRef[])IteratorUtils.toArray(bytesRefs, BytesRef.class), bloomFilterCache);
+      }
+      if (method == Method.termsFilter && bloomFilterCache != null) {
+        BytesRef[] joinIds = (BytesRef[])IteratorUtils.toArray(bytesRefs, BytesRef.class);
+        return new SolrConstantScoreQuery(new JoinIdTermsFilter(bloomFilterCache, joinField, joinIds));
+      }
       return new SolrConstantScoreQuery(method.makeFilter(joinField, bytesRefs));
     }
     
@@ -161,6 +198,7 @@ public class XJoinQParserPlugin extends QParserPlugin {
     @SuppressWarnings("unchecked")
     public Iterator<T> iterator(String componentName) {
       XJoinSearchComponent xJoin = (XJoinSearchComponent)req.getCore().getSearchComponent(componentName);
+      components.add(xJoin);
       if (joinField == null) {
         joinField = xJoin.getJoinField();
       } else if (! xJoin.getJoinField().equals(joinField)) {
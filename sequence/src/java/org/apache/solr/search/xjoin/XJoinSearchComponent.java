@@ -17,18 +17,42 @@ package org.apache.solr.search.xjoin;
  * limitations under the License.
  */
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.document.Document;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.handler.component.SearchComponent;
 import org.apache.solr.search.DocIterator;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * SOLR Search Component for performing an "x-join". It must be added to a request handler
@@ -45,15 +69,64 @@ import org.apache.solr.search.DocIterator;
  * Note that results can be sorted or boosted by a property of external results by using
  * the associated XjoinValueSourceParser (creating a custom function which may be referenced
  * in, for example, a sort spec or a boost query).
+ * 
+ * If a time budget is given (timeAllowed, either in the component configuration or as a
+ * query parameter prefixed with the component name), the request thread never waits on the
+ * external source for longer than the budget. A second (hedged) call is made if the first
+ * is slower than the configured percentile of recent call times. If the budget runs out
+ * (or all the threads for external calls are busy), the last results obtained within the
+ * budget for the same parameters are used if there are any (and they are not older than
+ * cacheMaxAge), otherwise empty results, and the response is flagged with partialResults.
+ * 
+ * Stage timings and counts (see XJoinStatistics) are added to debug output, and
+ * cumulatively to the component's statistics.
  */
-public class XJoinSearchComponent extends SearchComponent {
+public class XJoinSearchComponent extends SearchComponent implements SolrCoreAware {
 
+  private static final Logger LOG = LoggerFactory.getLogger(XJoinSearchComponent.class);
+  
+  // number of recent external call times kept for working out the hedging delay
+  private static final int LATENCY_SAMPLES = 128;
+  
+  // number of call times needed before hedging is attempted
+  private static final int MIN_LATENCY_SAMPLES = 16;
+  
+  private static final int DEFAULT_CACHE_SIZE = 100;
+  
+  // default maximum age (ms) of last results used when the budget runs out
+  private static final long DEFAULT_CACHE_MAX_AGE = 300000;
+  
+  // default maximum number of threads for external calls made with a time budget
+  private static final int DEFAULT_MAX_THREADS = 32;
+  
   // factory for creating XJoinResult objects per search
   private XJoinResultsFactory<?> factory;
 
   // document field on which to join with external results
   private String joinField;
   
+  // default time budget for external calls in ms (0 means no limit)
+  private long timeAllowed;
+  
+  // percentile of recent call times after which a hedged call is made (0 means no hedging)
+  private double hedgePercentile;
+  
+  // threads for external calls made with a time budget
+  private ExecutorService executor;
+  
+  // ring buffer of recent external call times (ns)
+  private final long[] latencies = new long[LATENCY_SAMPLES];
+  private int numLatencies;
+  
+  // last results for recent external parameters, used when the budget runs out
+  private Map<String, LastResults> lastResults;
+  
+  // maximum age (ms) of last results used
+  private long cacheMaxAge;
+  
+  // cumulative stage timings and counts
+  private final XJoinStatistics statistics = new XJoinStatistics();
+  
   /**
    * Initialise the component by instantiating our factory class, and initialising
    * the join field.
@@ -72,6 +145,60 @@ public class XJoinSearchComponent extends SearchComponent {
     }
     
     joinField = (String)args.get(XJoinParameters.INIT_JOIN_FIELD);
+    
+    Number timeAllowed = (Number)args.get(XJoinParameters.TIME_ALLOWED);
+    this.timeAllowed = timeAllowed != null ? timeAllowed.longValue() : 0;
+    Number hedgePercentile = (Number)args.get(XJoinParameters.INIT_HEDGE_PERCENTILE);
+    this.hedgePercentile = hedgePercentile != null ? hedgePercentile.doubleValue() : 0;
+    if (this.hedgePercentile < 0 || this.hedgePercentile >= 100) {
+      throw new RuntimeException(XJoinParameters.INIT_HEDGE_PERCENTILE + " must be in the range [0, 100)");
+    }
+    Number cacheSize = (Number)args.get(XJoinParameters.INIT_CACHE_SIZE);
+    final int maxEntries = cacheSize != null ? cacheSize.intValue() : DEFAULT_CACHE_SIZE;
+    lastResults = Collections.synchronizedMap(new LinkedHashMap<String, LastResults>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, LastResults> eldest) {
+        return size() > maxEntries;
+      }
+    });
+    Number cacheMaxAge = (Number)args.get(XJoinParameters.INIT_CACHE_MAX_AGE);
+    this.cacheMaxAge = cacheMaxAge != null ? cacheMaxAge.longValue() : DEFAULT_CACHE_MAX_AGE;
+    
+    // calls which ignore being cancelled keep their thread, so the number of threads is
+    // bounded - when they are all busy, calls are rejected and the last results are used
+    Number maxThreads = (Number)args.get(XJoinParameters.INIT_MAX_THREADS);
+    executor = new ThreadPoolExecutor(0, maxThreads != null ? maxThreads.intValue() : DEFAULT_MAX_THREADS,
+        10, TimeUnit.SECONDS, // terminate idle threads after 10 sec
+        new SynchronousQueue<Runnable>(), // directly hand off tasks
+        new DefaultSolrThreadFactory("xjoin"));
+  }
+  
+  /**
+   * Make sure external call threads are stopped, and the factory's resources (if it
+   * has any to release) are released, when the core closes.
+   */
+  @Override
+  public void inform(SolrCore core) {
+    core.addCloseHook(new CloseHook() {
+      @Override
+      public void preClose(SolrCore core) {
+        executor.shutdownNow();
+        if (factory instanceof Closeable) {
+          try {
+            ((Closeable)factory).close();
+          } catch (IOException e) {
+            LOG.warn("Error closing results factory for " + getName(), e);
+          }
+        }
+      }
+
+      @Override
+      public void postClose(SolrCore core) {
+        // nothing to do
+      }
+    });
   }
   
   // get the results factory
@@ -84,6 +211,23 @@ public class XJoinSearchComponent extends SearchComponent {
     return XJoinResults.class.getName() + "::" + getName();
   }
   
+  /*package*/ XJoinStatistics getXJoinStatistics() {
+    return statistics;
+  }
+  
+  /**
+   * Get the stage timings and counts for the given request (creating them if necessary).
+   */
+  /*package*/ XJoinStatistics.Request getRequestStatistics(SolrQueryRequest req) {
+    String tag = XJoinStatistics.class.getName() + "::" + getName();
+    XJoinStatistics.Request stats = (XJoinStatistics.Request)req.getContext().get(tag);
+    if (stats == null) {
+      stats = new XJoinStatistics.Request();
+      req.getContext().put(tag, stats);
+    }
+    return stats;
+  }
+  
   /**
    * Generate external process results (if they have not already been generated).
    */
@@ -109,9 +253,171 @@ public class XJoinSearchComponent extends SearchComponent {
         externalParams.set(name.substring(prefix.length()), params.get(name));
       }
     }
-    results = factory.getResults(externalParams);
+    
+    XJoinStatistics.Request stats = getRequestStatistics(rb.req);
+    long start = System.nanoTime();
+    long timeAllowed = params.getLong(getName() + "." + XJoinParameters.TIME_ALLOWED, this.timeAllowed);
+    if (timeAllowed > 0) {
+      results = getResults(rb, externalParams, timeAllowed, stats);
+    } else {
+      results = factory.getResults(externalParams);
+    }
+    statistics.record(stats, XJoinStatistics.Stage.external, System.nanoTime() - start);
+    int count = 0;
+    for (Iterator<?> it = results.getJoinIds().iterator(); it.hasNext(); it.next()) {
+      ++count;
+    }
+    stats.addIdsReturned(count);
     rb.req.getContext().put(getResultsTag(), results);
   }
+  
+  /**
+   * Get external results, waiting no longer than the time allowed (ms). If the first call
+   * has not returned after the hedging delay, a second call is made and the first results
+   * to arrive are used. If no results arrive in time, or there is no thread free to make
+   * the call, fall back to the last results for the same parameters (or empty results)
+   * and flag the response as partial.
+   */
+  private XJoinResults<?> getResults(ResponseBuilder rb, final SolrParams externalParams, long timeAllowed,
+                                     XJoinStatistics.Request stats) throws IOException {
+    String key = externalParams.toString();
+    Callable<XJoinResults<?>> call = new Callable<XJoinResults<?>>() {
+      @Override
+      public XJoinResults<?> call() throws Exception {
+        long start = System.nanoTime();
+        XJoinResults<?> results = factory.getResults(externalParams);
+        addLatency(System.nanoTime() - start);
+        return results;
+      }
+    };
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeAllowed);
+    long hedgeAt = hedgeDelay();
+    hedgeAt = hedgeAt >= 0 ? System.nanoTime() + hedgeAt : Long.MAX_VALUE;
+    
+    CompletionService<XJoinResults<?>> completion = new ExecutorCompletionService<>(executor);
+    List<Future<XJoinResults<?>>> calls = new ArrayList<>(2);
+    int pending = 0;
+    ExecutionException failure = null;
+    try {
+      calls.add(completion.submit(call));
+      ++pending;
+
+      while (pending > 0) {
+        long now = System.nanoTime();
+        if (now >= deadline) {
+          break;
+        }
+        Future<XJoinResults<?>> done = completion.poll(Math.min(deadline, hedgeAt) - now, TimeUnit.NANOSECONDS);
+        if (done == null) {
+          if (System.nanoTime() >= hedgeAt) {
+            hedgeAt = Long.MAX_VALUE;
+            try {
+              calls.add(completion.submit(call));
+              ++pending;
+              stats.addHedge();
+              LOG.debug("Made hedged call for {}", getName());
+            } catch (RejectedExecutionException e) {
+              LOG.debug("No thread free for hedged call for {}", getName());
+            }
+          }
+          continue;
+        }
+        --pending;
+        try {
+          XJoinResults<?> results = done.get();
+          lastResults.put(key, new LastResults(results));
+          return results;
+        } catch (ExecutionException e) {
+          // the other call (if any) might still succeed
+          failure = e;
+        }
+      }
+    } catch (RejectedExecutionException e) {
+      LOG.warn("No thread free for external call for {}", getName());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } finally {
+      for (Future<XJoinResults<?>> f : calls) {
+        f.cancel(true);
+      }
+    }
+    
+    if (pending == 0 && failure != null) {
+      Throwable cause = failure.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      throw new IOException(cause);
+    }
+    
+    LOG.warn("No external results for {} within {}ms", getName(), timeAllowed);
+    if (rb.rsp.getResponseHeader() != null) {
+      rb.rsp.getResponseHeader().add(XJoinParameters.PARTIAL_RESULTS, true);
+    }
+    LastResults last = lastResults.get(key);
+    if (last == null || System.nanoTime() - last.time > TimeUnit.MILLISECONDS.toNanos(cacheMaxAge)) {
+      return new EmptyResults();
+    }
+    stats.addCacheHit();
+    return last.results;
+  }
+  
+  /**
+   * External results obtained within the time allowed, and when they were obtained.
+   */
+  private static class LastResults {
+    
+    private final XJoinResults<?> results;
+    
+    private final long time = System.nanoTime();
+    
+    private LastResults(XJoinResults<?> results) {
+      this.results = results;
+    }
+    
+  }
+  
+  private synchronized void addLatency(long nanos) {
+    latencies[numLatencies++ % LATENCY_SAMPLES] = nanos;
+  }
+  
+  // get the delay (ns) before a hedged call, or -1 for no hedging
+  private long hedgeDelay() {
+    if (hedgePercentile == 0) {
+      return -1;
+    }
+    long[] sample;
+    synchronized (this) {
+      if (numLatencies < MIN_LATENCY_SAMPLES) {
+        return -1;
+      }
+      sample = Arrays.copyOf(latencies, Math.min(numLatencies, LATENCY_SAMPLES));
+    }
+    Arrays.sort(sample);
+    return sample[(int)(sample.length * hedgePercentile / 100)];
+  }
+  
+  /**
+   * Results used when there are no external results within the time allowed.
+   */
+  private static class EmptyResults implements XJoinResults<Object> {
+
+    @Override
+    public Object getResult(String joinIdStr) {
+      return null;
+    }
+
+    @Override
+    public Iterable<Object> getJoinIds() {
+      return Collections.emptyList();
+    }
+    
+  }
 
   /**
    * Match up search results and add corresponding data for each result (if we have query
@@ -126,24 +432,38 @@ public class XJoinSearchComponent extends SearchComponent {
       }
       
       XJoinResults<?> results = (XJoinResults<?>)rb.req.getContext().get(getResultsTag());
-      if (results == null || rb.getResults() == null) {
+      if (results == null) {
         return;
       }
       
-      // general results
-      FieldAppender appender = new FieldAppender((String)params.get(getName() + "." + XJoinParameters.RESULTS_FIELD_LIST, "*"));
-      NamedList general = appender.addNamedList(rb.rsp.getValues(), getName(), results);
-      
-      // per doc results
-      FieldAppender docAppender = new FieldAppender((String)params.get(getName() + "." + XJoinParameters.DOC_FIELD_LIST, "*"));
-      Set<String> joinFields = new HashSet<>();
-      joinFields.add(joinField);
-      for (DocIterator it = rb.getResults().docList.iterator(); it.hasNext(); ) {
-        Document doc = rb.req.getSearcher().doc(it.nextDoc(), joinFields);
-        Object object = results.getResult(doc.get(joinField));
-        if (object != null) {
-          docAppender.addNamedList(general, "doc", object);
+      XJoinStatistics.Request stats = getRequestStatistics(rb.req);
+      if (rb.getResults() != null) {
+        long start = System.nanoTime();
+        
+        // general results
+        FieldAppender appender = new FieldAppender((String)params.get(getName() + "." + XJoinParameters.RESULTS_FIELD_LIST, "*"));
+        NamedList general = appender.addNamedList(rb.rsp.getValues(), getName(), results);
+        
+        // per doc results
+        FieldAppender docAppender = new FieldAppender((String)params.get(getName() + "." + XJoinParameters.DOC_FIELD_LIST, "*"));
+        Set<String> joinFields = new HashSet<>();
+        joinFields.add(joinField);
+        int matched = 0;
+        for (DocIterator it = rb.getResults().docList.iterator(); it.hasNext(); ) {
+          Document doc = rb.req.getSearcher().doc(it.nextDoc(), joinFields);
+          Object object = results.getResult(doc.get(joinField));
+          if (object != null) {
+            docAppender.addNamedList(general, "doc", object);
+            ++matched;
+          }
         }
+        stats.addIdsMatched(matched);
+        statistics.record(stats, XJoinStatistics.Stage.fields, System.nanoTime() - start);
+      }
+      
+      statistics.finish(stats);
+      if (rb.isDebug()) {
+        rb.addDebugInfo(getName(), stats.toNamedList());
       }
   }
   
@@ -151,6 +471,12 @@ public class XJoinSearchComponent extends SearchComponent {
     return joinField;
   }
 
+  @Override
+  @SuppressWarnings("rawtypes")
+  public NamedList getStatistics() {
+    return statistics.toNamedList();
+  }
+
   @Override
   public String getDescription() {
     return "$description$";
@@ -0,0 +1,227 @@
+package org.apache.solr.search.xjoin;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * Stage timings and counts for an XJoin search component. Per request timings are kept
+ * in a Request object in the request context (see XJoinSearchComponent), and shown in
+ * debug output. Cumulative timings are kept in histograms, and shown in the component's
+ * MBean statistics.
+ */
+public class XJoinStatistics {
+  
+  /**
+   * Stages of an XJoin request.
+   */
+  public static enum Stage {
+    external,    // getting external results
+    parse,       // parsing the join id query (XJoinQParserPlugin)
+    valueSource, // evaluating external values (XJoinValueSourceParser), estimated from samples
+    fields       // appending external results to the response
+  }
+  
+  private final Histogram[] histograms = new Histogram[Stage.values().length];
+  
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong idsReturned = new AtomicLong();
+  private final AtomicLong idsMatched = new AtomicLong();
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  private final AtomicLong evaluations = new AtomicLong();
+  
+  public XJoinStatistics() {
+    for (int i = 0; i < histograms.length; ++i) {
+      histograms[i] = new Histogram();
+    }
+  }
+  
+  /**
+   * Record the time taken by a stage of the given request.
+   */
+  public void record(Request request, Stage stage, long nanos) {
+    request.nanos[stage.ordinal()] += nanos;
+    histograms[stage.ordinal()].update(nanos);
+  }
+  
+  /**
+   * Add the counts of a finished request (the value source stage is timed per evaluation,
+   * so is recorded here as a whole).
+   */
+  public void finish(Request request) {
+    requests.incrementAndGet();
+    idsReturned.addAndGet(request.idsReturned);
+    idsMatched.addAndGet(request.idsMatched);
+    cacheHits.addAndGet(request.cacheHits);
+    hedges.addAndGet(request.hedges);
+    if (request.evaluations > 0) {
+      evaluations.addAndGet(request.evaluations);
+      histograms[Stage.valueSource.ordinal()].update(request.getNanos(Stage.valueSource));
+    }
+  }
+  
+  public NamedList<Object> toNamedList() {
+    NamedList<Object> list = new SimpleOrderedMap<>();
+    list.add("requests", requests.get());
+    list.add("idsReturned", idsReturned.get());
+    list.add("idsMatched", idsMatched.get());
+    list.add("cacheHits", cacheHits.get());
+    list.add("hedges", hedges.get());
+    list.add("evaluations", evaluations.get());
+    for (Stage stage : Stage.values()) {
+      list.add(stage.name(), histograms[stage.ordinal()].toNamedList());
+    }
+    return list;
+  }
+  
+  private static double toMillis(long nanos) {
+    return (double)nanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+  
+  /**
+   * Timings and counts for one request.
+   */
+  public static class Request {
+    
+    // one in this many value source evaluations is timed (timing every one would cost
+    // more than the evaluations themselves)
+    private static final int EVALUATION_SAMPLE_RATE = 64;
+    
+    private final long[] nanos = new long[Stage.values().length];
+    
+    private long idsReturned;
+    private long idsMatched;
+    private long cacheHits;
+    private long hedges;
+    private long evaluations;
+    private long samples;
+    
+    public void addIdsReturned(long n) {
+      idsReturned += n;
+    }
+    
+    public void addIdsMatched(long n) {
+      idsMatched += n;
+    }
+    
+    public void addCacheHit() {
+      ++cacheHits;
+    }
+    
+    public void addHedge() {
+      ++hedges;
+    }
+    
+    /**
+     * Count one value source evaluation, returning whether it should be timed (and the
+     * time recorded with addEvaluationSample()).
+     */
+    public boolean addEvaluation() {
+      return evaluations++ % EVALUATION_SAMPLE_RATE == 0;
+    }
+    
+    /**
+     * Record the time taken by a sampled value source evaluation.
+     */
+    public void addEvaluationSample(long nanos) {
+      ++samples;
+      this.nanos[Stage.valueSource.ordinal()] += nanos;
+    }
+    
+    /**
+     * Get the time taken by the given stage (for the value source stage, an estimate
+     * from the sampled evaluations).
+     */
+    public long getNanos(Stage stage) {
+      long nanos = this.nanos[stage.ordinal()];
+      if (stage == Stage.valueSource && samples > 0) {
+        nanos = (long)((double)nanos * evaluations / samples);
+      }
+      return nanos;
+    }
+    
+    public NamedList<Object> toNamedList() {
+      NamedList<Object> list = new SimpleOrderedMap<>();
+      for (Stage stage : Stage.values()) {
+        list.add(stage.name() + "Time", toMillis(getNanos(stage)));
+      }
+      list.add("idsReturned", idsReturned);
+      list.add("idsMatched", idsMatched);
+      list.add("cacheHits", cacheHits);
+      list.add("hedges", hedges);
+      list.add("evaluations", evaluations);
+      return list;
+    }
+    
+  }
+  
+  /**
+   * Lock free histogram of times, with power of two buckets (so percentiles are upper
+   * bounds, accurate to within a factor of two).
+   */
+  private static class Histogram {
+    
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    
+    private final AtomicLong count = new AtomicLong();
+    
+    private final AtomicLong total = new AtomicLong();
+    
+    void update(long nanos) {
+      nanos = Math.max(nanos, 1);
+      buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos));
+      count.incrementAndGet();
+      total.addAndGet(nanos);
+    }
+    
+    // upper bound (ns) of the given percentile
+    long percentile(double p, long n) {
+      long rank = (long)Math.ceil(n * p / 100);
+      long seen = 0;
+      for (int i = 0; i < 64; ++i) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return i < 62 ? (1L << (i + 1)) - 1 : Long.MAX_VALUE;
+        }
+      }
+      return 0;
+    }
+    
+    NamedList<Object> toNamedList() {
+      NamedList<Object> list = new SimpleOrderedMap<>();
+      long n = count.get();
+      list.add("count", n);
+      list.add("totalTime", toMillis(total.get()));
+      if (n > 0) {
+        list.add("avgTime", toMillis(total.get()) / n);
+        list.add("medianTime", toMillis(percentile(50, n)));
+        list.add("95thPcTime", toMillis(percentile(95, n)));
+        list.add("99thPcTime", toMillis(percentile(99, n)));
+      }
+      return list;
+    }
+    
+  }
+
+}
@@ -87,7 +87,7 @@ public class XJoinValueSourceParser extends ValueSourceParser {
     if (results == null) {
       throw new RuntimeException("No xjoin results in request context");
     }
-    return new XJoinValueSource(joinField, results, attribute);
+    return new XJoinValueSource(joinField, results, attribute, xJoin.getRequestStatistics(fqp.getReq()));
   }
   
   /**
@@ -101,17 +101,33 @@ public class XJoinValueSourceParser extends ValueSourceParser {
     // the external process results (generated by XJoinSearchComponent)
     private XJoinResults<?> results;
     
+    // the attribute of external results to use as the value
+    private String attribute;
+    
     // the method on external results objects to use as the value
     private String methodName;
+    
+    // request statistics to record evaluation counts and sampled times in (or null)
+    private XJoinStatistics.Request stats;
 
     /**
      * Create an ExternalValueSource for the given external process results, for
      * extracting the named attribute.
      */
     public XJoinValueSource(String joinField, XJoinResults<?> results, String attribute) {
+      this(joinField, results, attribute, null);
+    }
+    
+    /**
+     * Create an ExternalValueSource as above, recording evaluation counts and (a sample
+     * of) evaluation times in the given request statistics.
+     */
+    public XJoinValueSource(String joinField, XJoinResults<?> results, String attribute, XJoinStatistics.Request stats) {
       this.joinField = joinField;
       this.results = results;
+      this.attribute = attribute;
       this.methodName = NameConverter.getMethodName(attribute);
+      this.stats = stats;
     }
 
     @Override
@@ -123,6 +139,19 @@ public class XJoinValueSourceParser extends ValueSourceParser {
 
         @Override
         public double doubleVal(int doc) {
+          // only a sample of evaluations is timed
+          if (stats == null || ! stats.addEvaluation()) {
+            return value(doc);
+          }
+          long start = System.nanoTime();
+          try {
+            return value(doc);
+          } finally {
+            stats.addEvaluationSample(System.nanoTime() - start);
+          }
+        }
+        
+        private double value(int doc) {
           BytesRef joinValue = joinValues.get(doc);
           if (joinValue == null) {
             throw new RuntimeException("No such doc: " + doc);
@@ -131,6 +160,10 @@ public class XJoinValueSourceParser extends ValueSourceParser {
           if (result == null) {
             return defaultValue;
           }
+          if (result instanceof Map) {
+            Object value = ((Map<?, ?>)result).get(attribute);
+            return value instanceof Number ? ((Number)value).doubleValue() : defaultValue;
+          }
           try {
             Method method = result.getClass().getMethod(methodName);
             return (Double)method.invoke(result);
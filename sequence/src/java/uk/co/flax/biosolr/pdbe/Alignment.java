@@ -1,48 +1,93 @@
 package uk.co.flax.biosolr.pdbe;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A FASTA alignment. Getters are the fields added to XJoin results (see FieldAppender).
+ *
+ * Results may have thousands of alignments, so they are kept compact: overlaps are ints
+ * (0 until set), the percent identity is NaN until set, and the aligned sequences are
+ * kept as bytes (they are ASCII), in buffers that grow as fragments are added.
+ */
 public class Alignment {
 
+	// initial sequence buffer size
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final byte[] EMPTY = new byte[0];
+
 	// set in constructor
     private double eValue;
     private String pdbId;
     private String chain;
-    
+
     // set by set() methods
-    private String querySeq = "";
-    private String retSeq = "";
-    private String queryOverlapStart = "";
-    private String queryOverlapEnd = "";
-    private String dbOverlapStart = "";
-    private String dbOverlapEnd = "";
-    private Double percentIdentity = null;
-    
+    private byte[] querySeq = EMPTY;
+    private int querySeqLength = 0;
+    private byte[] retSeq = EMPTY;
+    private int retSeqLength = 0;
+    private int queryOverlapStart = 0;
+    private int queryOverlapEnd = 0;
+    private int dbOverlapStart = 0;
+    private int dbOverlapEnd = 0;
+    private double percentIdentity = Double.NaN;
+
     public Alignment(String pdbId, String chain, double eValue) {
     	this.pdbId = pdbId;
     	this.chain = chain;
     	this.eValue = eValue;
     }
-    
-    public void addQuerySequence(String q) {
-        querySeq += q;
+
+    public void addQuerySequence(CharSequence q) {
+    	addQuerySequence(q, 0, q.length());
+    }
+
+    /**
+     * Add the characters [start, end) of the given text to the query sequence.
+     */
+    public void addQuerySequence(CharSequence q, int start, int end) {
+    	querySeq = append(querySeq, querySeqLength, q, start, end);
+    	querySeqLength += end - start;
+    }
+
+    public void addReturnSequence(CharSequence r) {
+    	addReturnSequence(r, 0, r.length());
+    }
+
+    /**
+     * Add the characters [start, end) of the given text to the returned sequence.
+     */
+    public void addReturnSequence(CharSequence r, int start, int end) {
+    	retSeq = append(retSeq, retSeqLength, r, start, end);
+    	retSeqLength += end - start;
     }
 
-    public void addReturnSequence(String r) {
-        retSeq += r;
+    // append to a sequence buffer, returning the (possibly new) buffer
+    private static byte[] append(byte[] buffer, int length, CharSequence s, int start, int end) {
+    	int n = end - start;
+    	if (length + n > buffer.length) {
+    		buffer = Arrays.copyOf(buffer, Math.max(Math.max(buffer.length * 2, INITIAL_CAPACITY), length + n));
+    	}
+    	for (int i = 0; i < n; ++i) {
+    		buffer[length + i] = (byte)s.charAt(start + i);
+    	}
+    	return buffer;
     }
 
-    public void setQueryOverlapStart(String s) {
+    public void setQueryOverlapStart(int s) {
         queryOverlapStart = s;
     }
 
-    public void setQueryOverlapEnd(String s) {
+    public void setQueryOverlapEnd(int s) {
         queryOverlapEnd = s;
     }
 
-    public void setDbOverlapStart(String s) {
+    public void setDbOverlapStart(int s) {
         dbOverlapStart = s;
     }
 
-    public void setDbOverlapEnd(String s) {
+    public void setDbOverlapEnd(int s) {
         dbOverlapEnd = s;
     }
 
@@ -50,10 +95,16 @@ public class Alignment {
         percentIdentity = d;
     }
 
+    // NaN if not known
     public double getPercentIdentity() {
         return percentIdentity;
     }
 
+    // percent identity is only known for alignments with details in the results
+    public boolean hasPercentIdentity() {
+        return ! Double.isNaN(percentIdentity);
+    }
+
     public double getEValue() {
         return eValue;
     }
@@ -65,36 +116,36 @@ public class Alignment {
     public String getChain() {
         return chain;
     }
-    
+
     public String getPdbIdChain() {
     	return pdbId + "_" + chain;
     }
-    
+
     public String getQuerySequenceString() {
-        return querySeq;
+        return new String(querySeq, 0, querySeqLength, StandardCharsets.ISO_8859_1);
     }
 
     public String getReturnSequenceString() {
-        return retSeq;
+        return new String(retSeq, 0, retSeqLength, StandardCharsets.ISO_8859_1);
     }
 
-    public String getQueryOverlapStart() {
+    public int getQueryOverlapStart() {
         return queryOverlapStart;
     }
 
-    public String getQueryOverlapEnd() {
+    public int getQueryOverlapEnd() {
         return queryOverlapEnd;
     }
 
-    public String getDbOverlapStart() {
+    public int getDbOverlapStart() {
         return dbOverlapStart;
     }
 
-    public String getDbOverlapEnd() {
+    public int getDbOverlapEnd() {
         return dbOverlapEnd;
     }
-    
+
     public String toString() {
-    	return retSeq;
+    	return getReturnSequenceString();
     }
 }
@@ -0,0 +1,159 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.DoubleDocValues;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.search.FunctionQParser;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.search.ValueSourceParser;
+import org.apache.solr.search.xjoin.NameConverter;
+
+/**
+ * Function aligning a query sequence against the sequence in a (single valued, indexed)
+ * field of each document, with the Smith-Waterman algorithm and ssearch's default scoring
+ * (see SmithWaterman):
+ *
+ *   alignment(molecule_sequence, $seq)
+ *     - the alignment score
+ *
+ *   alignment(molecule_sequence, $seq, percent_identity)
+ *     - a numeric attribute of the full alignment (as an Alignment)
+ *
+ * This is too expensive to evaluate for every document, so is meant for reranking the
+ * top documents of a k-mer query (see SequenceQParserPlugin), e.g.
+ *
+ *   q={!sequence f=molecule_sequence_kmers v=$seq}&amp;rq={!rerank reRankQuery=$rrq reRankDocs=200}
+ *   &amp;rrq={!func}alignment(molecule_sequence,$seq)
+ */
+public class AlignmentValueSourceParser extends ValueSourceParser {
+
+	@Override
+	public ValueSource parse(FunctionQParser fqp) throws SyntaxError {
+		String field = fqp.parseArg();
+		String sequence = fqp.parseArg();
+		if (field == null || sequence == null) {
+			throw new SyntaxError("Expected alignment(field, sequence[, attribute])");
+		}
+		String attribute = fqp.hasMoreArguments() ? fqp.parseArg() : null;
+		try {
+			return new AlignmentValueSource(field, sequence, attribute);
+		} catch (IllegalArgumentException e) {
+			throw new SyntaxError(e.getMessage());
+		}
+	}
+	
+	public static class AlignmentValueSource extends ValueSource {
+		
+		private final String field;
+		
+		private final String sequence;
+		
+		// attribute of the alignment to use as the value (or null for the score)
+		private final String attribute;
+		
+		private final byte[] query;
+		
+		// Alignment method for the attribute (or null)
+		private final Method method;
+		
+		/**
+		 * Throws IllegalArgumentException if the attribute is not a numeric attribute of
+		 * Alignment.
+		 */
+		public AlignmentValueSource(String field, String sequence, String attribute) {
+			this.field = field;
+			this.sequence = sequence;
+			this.attribute = attribute;
+			query = Blosum50.encode(sequence);
+			if (attribute != null) {
+				try {
+					method = Alignment.class.getMethod(NameConverter.getMethodName(attribute));
+				} catch (NoSuchMethodException e) {
+					throw new IllegalArgumentException("No such alignment attribute: " + attribute);
+				}
+				Class<?> type = method.getReturnType();
+				if (type != double.class && type != int.class && ! Number.class.isAssignableFrom(type)) {
+					throw new IllegalArgumentException("Alignment attribute is not numeric: " + attribute);
+				}
+			} else {
+				method = null;
+			}
+		}
+
+		@Override
+		@SuppressWarnings("rawtypes")
+		public FunctionValues getValues(Map context, AtomicReaderContext readerContext) throws IOException {
+			final BinaryDocValues values = FieldCache.DEFAULT.getTerms(readerContext.reader(), field, false);
+			
+			// aligners are not thread safe, but function values are used by one thread
+			final SmithWaterman sw = new SmithWaterman(query, SmithWaterman.DEFAULT_GAP_OPEN, SmithWaterman.DEFAULT_GAP_EXTEND);
+			
+			return new DoubleDocValues(this) {
+				
+				// encoded residues of the current document
+				private byte[] residues = new byte[0];
+				
+				@Override
+				public double doubleVal(int doc) {
+					BytesRef value = values.get(doc);
+					if (value == null || value.length == 0) {
+						return 0;
+					}
+					if (residues.length < value.length) {
+						residues = new byte[value.length];
+					}
+					int n = 0;
+					for (int i = value.offset; i < value.offset + value.length; ++i) {
+						char c = (char)(value.bytes[i] & 0xff);
+						if (! Character.isWhitespace(c)) {
+							residues[n++] = Blosum50.encode(c);
+						}
+					}
+					
+					if (method == null) {
+						return sw.score(residues, 0, n);
+					}
+					Alignment a = new Alignment("", "", 0);
+					sw.align(residues, 0, n, a);
+					try {
+						return ((Number)method.invoke(a)).doubleValue();
+					} catch (IllegalAccessException | InvocationTargetException e) {
+						throw new RuntimeException(e);
+					}
+				}
+				
+			};
+		}
+
+		@Override
+		public String description() {
+			return "alignment(" + field + "," + sequence + (attribute != null ? "," + attribute : "") + ")";
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (! (object instanceof AlignmentValueSource)) {
+				return false;
+			}
+			AlignmentValueSource other = (AlignmentValueSource)object;
+			return field.equals(other.field) && sequence.equals(other.sequence)
+				&& (attribute == null ? other.attribute == null : attribute.equals(other.attribute));
+		}
+
+		@Override
+		public int hashCode() {
+			return (31 * field.hashCode() + sequence.hashCode()) * 31 + (attribute != null ? attribute.hashCode() : 0);
+		}
+		
+	}
+	
+}
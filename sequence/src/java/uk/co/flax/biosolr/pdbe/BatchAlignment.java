@@ -0,0 +1,105 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The alignments of one chain in the results of a batch of query sequences (see
+ * FastaXJoinResultsFactory). Alignment details are those of the best alignment (the one
+ * with the lowest e-value), and getQueries() and getQueryEValues() say which of the
+ * queries (by their position in the request) the chain was found for, and how well.
+ */
+public class BatchAlignment extends Alignment {
+
+	private final Alignment best;
+
+	private final List<Integer> queries = new ArrayList<>();
+
+	private final List<Double> eValues = new ArrayList<>();
+
+	/*package*/ BatchAlignment(Alignment first, int query) {
+		super(first.getPdbId(), first.getChain(), first.getEValue());
+		best = first;
+		queries.add(query);
+		eValues.add(first.getEValue());
+	}
+
+	/*package*/ static BatchAlignment add(BatchAlignment batch, Alignment a, int query) {
+		if (batch == null) {
+			return new BatchAlignment(a, query);
+		}
+		BatchAlignment b = a.getEValue() < batch.best.getEValue() ? new BatchAlignment(a, batch) : batch;
+		b.queries.add(query);
+		b.eValues.add(a.getEValue());
+		return b;
+	}
+
+	// a better alignment replacing that of the given batch
+	private BatchAlignment(Alignment best, BatchAlignment batch) {
+		super(best.getPdbId(), best.getChain(), best.getEValue());
+		this.best = best;
+		queries.addAll(batch.queries);
+		eValues.addAll(batch.eValues);
+	}
+
+	/**
+	 * Get the positions (from 0) of the query sequences the chain was found for.
+	 */
+	public List<Integer> getQueries() {
+		return Collections.unmodifiableList(queries);
+	}
+
+	/**
+	 * Get the e-values of the chain for each of getQueries().
+	 */
+	public List<Double> getQueryEValues() {
+		return Collections.unmodifiableList(eValues);
+	}
+
+	@Override
+	public double getPercentIdentity() {
+		return best.getPercentIdentity();
+	}
+
+	@Override
+	public boolean hasPercentIdentity() {
+		return best.hasPercentIdentity();
+	}
+
+	@Override
+	public String getQuerySequenceString() {
+		return best.getQuerySequenceString();
+	}
+
+	@Override
+	public String getReturnSequenceString() {
+		return best.getReturnSequenceString();
+	}
+
+	@Override
+	public int getQueryOverlapStart() {
+		return best.getQueryOverlapStart();
+	}
+
+	@Override
+	public int getQueryOverlapEnd() {
+		return best.getQueryOverlapEnd();
+	}
+
+	@Override
+	public int getDbOverlapStart() {
+		return best.getDbOverlapStart();
+	}
+
+	@Override
+	public int getDbOverlapEnd() {
+		return best.getDbOverlapEnd();
+	}
+
+	@Override
+	public String toString() {
+		return best.toString();
+	}
+
+}
@@ -0,0 +1,91 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.util.Arrays;
+
+/**
+ * The BLOSUM50 substitution matrix (as used by ssearch by default), with residues
+ * encoded as their index in the matrix. Unknown residues are encoded as X.
+ */
+/*package*/ final class Blosum50 {
+
+	/*package*/ static final String ALPHABET = "ARNDCQEGHILKMFPSTWYVBZX*";
+	
+	/*package*/ static final int SIZE = ALPHABET.length();
+	
+	private static final byte X = (byte)ALPHABET.indexOf('X');
+	
+	private static final int[][] MATRIX = {
+	//    A   R   N   D   C   Q   E   G   H   I   L   K   M   F   P   S   T   W   Y   V   B   Z   X   *
+		{ 5, -2, -1, -2, -1, -1, -1,  0, -2, -1, -2, -1, -1, -3, -1,  1,  0, -3, -2,  0, -2, -1, -1, -5 }, // A
+		{-2,  7, -1, -2, -4,  1,  0, -3,  0, -4, -3,  3, -2, -3, -3, -1, -1, -3, -1, -3, -1,  0, -1, -5 }, // R
+		{-1, -1,  7,  2, -2,  0,  0,  0,  1, -3, -4,  0, -2, -4, -2,  1,  0, -4, -2, -3,  4,  0, -1, -5 }, // N
+		{-2, -2,  2,  8, -4,  0,  2, -1, -1, -4, -4, -1, -4, -5, -1,  0, -1, -5, -3, -4,  5,  1, -1, -5 }, // D
+		{-1, -4, -2, -4, 13, -3, -3, -3, -3, -2, -2, -3, -2, -2, -4, -1, -1, -5, -3, -1, -3, -3, -2, -5 }, // C
+		{-1,  1,  0,  0, -3,  7,  2, -2,  1, -3, -2,  2,  0, -4, -1,  0, -1, -1, -1, -3,  0,  4, -1, -5 }, // Q
+		{-1,  0,  0,  2, -3,  2,  6, -3,  0, -4, -3,  1, -2, -3, -1, -1, -1, -3, -2, -3,  1,  5, -1, -5 }, // E
+		{ 0, -3,  0, -1, -3, -2, -3,  8, -2, -4, -4, -2, -3, -4, -2,  0, -2, -3, -3, -4, -1, -2, -2, -5 }, // G
+		{-2,  0,  1, -1, -3,  1,  0, -2, 10, -4, -3,  0, -1, -1, -2, -1, -2, -3,  2, -4,  0,  0, -1, -5 }, // H
+		{-1, -4, -3, -4, -2, -3, -4, -4, -4,  5,  2, -3,  2,  0, -3, -3, -1, -3, -1,  4, -4, -3, -1, -5 }, // I
+		{-2, -3, -4, -4, -2, -2, -3, -4, -3,  2,  5, -3,  3,  1, -4, -3, -1, -2, -1,  1, -4, -3, -1, -5 }, // L
+		{-1,  3,  0, -1, -3,  2,  1, -2,  0, -3, -3,  6, -2, -4, -1,  0, -1, -3, -2, -3,  0,  1, -1, -5 }, // K
+		{-1, -2, -2, -4, -2,  0, -2, -3, -1,  2,  3, -2,  7,  0, -3, -2, -1, -1,  0,  1, -3, -1, -1, -5 }, // M
+		{-3, -3, -4, -5, -2, -4, -3, -4, -1,  0,  1, -4,  0,  8, -4, -3, -2,  1,  4, -1, -4, -4, -2, -5 }, // F
+		{-1, -3, -2, -1, -4, -1, -1, -2, -2, -3, -4, -1, -3, -4, 10, -1, -1, -4, -3, -3, -2, -1, -2, -5 }, // P
+		{ 1, -1,  1,  0, -1,  0, -1,  0, -1, -3, -3,  0, -2, -3, -1,  5,  2, -4, -2, -2,  0,  0, -1, -5 }, // S
+		{ 0, -1,  0, -1, -1, -1, -1, -2, -2, -1, -1, -1, -1, -2, -1,  2,  5, -3, -2,  0,  0, -1,  0, -5 }, // T
+		{-3, -3, -4, -5, -5, -1, -3, -3, -3, -3, -2, -3, -1,  1, -4, -4, -3, 15,  2, -3, -5, -2, -3, -5 }, // W
+		{-2, -1, -2, -3, -3, -1, -2, -3,  2, -1, -1, -2,  0,  4, -3, -2, -2,  2,  8, -1, -3, -2, -1, -5 }, // Y
+		{ 0, -3, -3, -4, -1, -3, -3, -4, -4,  4,  1, -3,  1, -1, -3, -2,  0, -3, -1,  5, -4, -3, -1, -5 }, // V
+		{-2, -1,  4,  5, -3,  0,  1, -1,  0, -4, -4,  0, -3, -4, -2,  0,  0, -5, -3, -4,  5,  2, -1, -5 }, // B
+		{-1,  0,  0,  1, -3,  4,  5, -2,  0, -3, -3,  1, -1, -4, -1,  0, -1, -2, -2, -3,  2,  5, -1, -5 }, // Z
+		{-1, -1, -1, -1, -2, -1, -1, -2, -1, -1, -1, -1, -1, -2, -2, -1,  0, -3, -1, -1, -1, -1, -1, -5 }, // X
+		{-5, -5, -5, -5, -5, -5, -5, -5, -5, -5, -5, -5, -5, -5, -5, -5, -5, -5, -5, -5, -5, -5, -5,  1 }, // *
+	};
+	
+	// residue (upper or lower case ASCII) to index
+	private static final byte[] CODES = new byte[128];
+	
+	static {
+		for (int i = 0; i < CODES.length; ++i) {
+			CODES[i] = X;
+		}
+		for (int i = 0; i < SIZE; ++i) {
+			char c = ALPHABET.charAt(i);
+			CODES[c] = (byte)i;
+			CODES[Character.toLowerCase(c)] = (byte)i;
+		}
+	}
+	
+	private Blosum50() { }
+	
+	/**
+	 * Encode a residue.
+	 */
+	/*package*/ static byte encode(char c) {
+		return c < CODES.length ? CODES[c] : X;
+	}
+	
+	/**
+	 * Encode a sequence of residues, ignoring white space.
+	 */
+	/*package*/ static byte[] encode(CharSequence sequence) {
+		byte[] codes = new byte[sequence.length()];
+		int n = 0;
+		for (int i = 0; i < sequence.length(); ++i) {
+			char c = sequence.charAt(i);
+			if (! Character.isWhitespace(c)) {
+				codes[n++] = encode(c);
+			}
+		}
+		return n == codes.length ? codes : Arrays.copyOf(codes, n);
+	}
+	
+	/*package*/ static char decode(byte code) {
+		return ALPHABET.charAt(code);
+	}
+	
+	/*package*/ static int score(int a, int b) {
+		return MATRIX[a][b];
+	}
+	
+}
@@ -1,17 +1,25 @@
 package uk.co.flax.biosolr.pdbe;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.rmi.RemoteException;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import uk.ac.ebi.webservices.axis1.stubs.fasta.InputParameters;
 import uk.ac.ebi.webservices.axis1.stubs.fasta.JDispatcherService_PortType;
@@ -19,8 +27,18 @@ import uk.ac.ebi.webservices.axis1.stubs.fasta.JDispatcherService_PortType;
 public class FastaJob implements Runnable {
 	
 	private static final Logger LOG = Logger.getLogger(FastaJob.class.getName());
+	
+	// status polling delays (ms) for submit() - the delay doubles after each poll, up
+	// to the maximum, and a random amount up to half the delay is taken off
+	private static final long MIN_POLL_DELAY = 200;
+	private static final long MAX_POLL_DELAY = 5000;
+	
+	// charset of FASTA output
+	/*package*/ static final Charset CHARSET = StandardCharsets.UTF_8;
 
     private JDispatcherService_PortType fasta;
+    
+    private FastaResultSource source;
 
     private String email;
     
@@ -36,16 +54,10 @@ public class FastaJob implements Runnable {
     private String status;
     private boolean interrupted;
     
-    // regexp patterns
-    private Pattern pattern1 = Pattern.compile("^PDB:(.*?_.*?)\\s+(.+?)\\s+([0-9.e-]+?)$|^PRE_PDB:(\\w{4} Entity)\\s+(.+?)\\s+([0-9.e-]+?)$");
-    private Pattern pattern2 = Pattern.compile("^>>PDB:(.*?_.*?)\\s+.*?$|^>>PRE_PDB:(\\w{4} Entity).*?$");
-    private Pattern pattern3 = Pattern.compile("^Smith-Waterman score:.*?\\;(.*?)\\% .*? overlap \\((.*?)\\)$");
-    private Pattern pattern4 = Pattern.compile("^EMBOS  (\\s*.*?)$");            
-    private Pattern pattern5 = Pattern.compile("^PDB:.*? (\\s*.*?)$|^PRE_PD.*? (\\s*.*?)$");
-    
-    // sometimes an alignment appears twice in the results - need to ignore all but
-    // the first, so remember those we have completed
-    private Set<Alignment> completeAlignments = new HashSet<>();
+    // file the raw results are written to as they are read (or null), and whether
+    // that is finished
+    private Path spool;
+    private volatile boolean spooled;
     
     public IOException getException() {
     	return exception;
@@ -55,20 +67,121 @@ public class FastaJob implements Runnable {
     	return status;
     }
     
+    /**
+     * Get the parsed results, fetching them if not already fetched. Results are parsed
+     * as they are read from the result source, so are never all in memory at once. If
+     * a spool file is set, the raw results are written to it as they are read.
+     */
     public FastaJobResults getResults() throws IOException {
     	if (results == null) {
-        	String id = fasta.getResultTypes(jobId)[0].getIdentifier();
-            byte[] result = fasta.getResult(jobId, id, null);
-            InputStream in = new ByteArrayInputStream(result);
-            results = parseResults(new BufferedReader(new InputStreamReader(in)));
+    		try (InputStream in = openRawResults()) {
+    			results = FastaResultsParser.parse(new BufferedReader(new InputStreamReader(in, CHARSET)));
+    		}
             results.chooseShownAlignments();
     	}
     	return results;
     }
     
-    public byte[] getRawResults() throws RemoteException {
+    /**
+     * Open the raw results (encoded in CHARSET). If a spool file is set, the results are
+     * read from it once it has been written (i.e. the results were fully read once
+     * before), and otherwise they are fetched again.
+     */
+    public InputStream openRawResults() throws IOException {
+    	if (spooled) {
+    		return Files.newInputStream(spool);
+    	}
     	String id = fasta.getResultTypes(jobId)[0].getIdentifier();
-        return fasta.getResult(jobId, id, null);
+    	InputStream in = source.openResult(jobId, id);
+    	return spool != null ? new SpoolInputStream(in) : in;
+    }
+    
+    public byte[] getRawResults() throws IOException {
+    	try (InputStream in = openRawResults()) {
+    		ByteArrayOutputStream out = new ByteArrayOutputStream();
+    		byte[] buffer = new byte[8192];
+    		int n;
+    		while ((n = in.read(buffer)) >= 0) {
+    			out.write(buffer, 0, n);
+    		}
+    		return out.toByteArray();
+    	}
+    }
+    
+    /**
+     * Write the raw results to the given file as they are fetched, so they are only
+     * fetched once, however often they are read (see openRawResults()).
+     */
+    public void setSpool(Path spool) {
+    	this.spool = spool;
+    	spooled = false;
+    }
+    
+    // copies the results to the spool file as they are read
+    private class SpoolInputStream extends FilterInputStream {
+    	
+    	private final OutputStream out;
+    	
+    	private SpoolInputStream(InputStream in) throws IOException {
+    		super(in);
+    		try {
+    			out = new BufferedOutputStream(Files.newOutputStream(spool));
+    		} catch (IOException e) {
+    			in.close();
+    			throw e;
+    		}
+    	}
+    	
+    	@Override
+    	public int read() throws IOException {
+    		int b = super.read();
+    		if (b >= 0) {
+    			out.write(b);
+    		} else {
+    			finish();
+    		}
+    		return b;
+    	}
+    	
+    	@Override
+    	public int read(byte[] b, int off, int len) throws IOException {
+    		int n = super.read(b, off, len);
+    		if (n > 0) {
+    			out.write(b, off, n);
+    		} else if (n < 0) {
+    			finish();
+    		}
+    		return n;
+    	}
+    	
+    	@Override
+    	public long skip(long n) throws IOException {
+    		// skipped bytes must still be spooled
+    		byte[] buffer = new byte[(int)Math.min(n, 8192)];
+    		int read = read(buffer, 0, buffer.length);
+    		return Math.max(read, 0);
+    	}
+    	
+    	@Override
+    	public boolean markSupported() {
+    		return false;
+    	}
+    	
+    	// the whole result has been read
+    	private void finish() throws IOException {
+    		out.flush();
+    		spooled = true;
+    	}
+    	
+    	@Override
+    	public void close() throws IOException {
+    		try {
+    			super.close();
+    		} finally {
+    			out.close();
+    		}
+    	}
+    	
     }
     
     public boolean isInterrupted() {
@@ -80,7 +193,16 @@ public class FastaJob implements Runnable {
     }
     
     public FastaJob(JDispatcherService_PortType fasta, String email, InputParameters params) {
+    	this(fasta, new FastaSoapResultSource(fasta), email, params);
+    }
+    
+    /**
+     * Create a job submitted and polled through the given service, with results fetched
+     * from the given source.
+     */
+    public FastaJob(JDispatcherService_PortType fasta, FastaResultSource source, String email, InputParameters params) {
     	this.fasta = fasta;
+    	this.source = source;
     	this.email = email;
     	this.params = params;
     	jobId = null;
@@ -98,15 +220,6 @@ public class FastaJob implements Runnable {
     	return params;
     }
 
-    private int firstGroup(Matcher m) {
-    	for (int n = 1; n <= m.groupCount(); ++n) {
-    		if (m.group(n) != null) {
-    			return n;
-    		}
-    	}
-    	return 0;
-    }
-    
     public void run() {
     	try {
 	        jobId = fasta.run(email, "", params);
@@ -127,90 +240,92 @@ public class FastaJob implements Runnable {
     	}
     }
     
-    // create an Alignment from a matching line
-    private Alignment parseAlignment(Matcher matcher) {
-    	int n = firstGroup(matcher);
-    	String pdbIdChain = matcher.group(n);
-        if (pdbIdChain.contains("Entity")) {
-        	pdbIdChain = pdbIdChain.replaceFirst(" ", "_");
-        }
-        String[] s = pdbIdChain.split("_");
-        String pdbId = s[0];
-        String chain = s[1];
-        double eValue = new Double(matcher.group(n + 2));
-        return new Alignment(pdbId, chain, eValue);
+    /**
+     * Submit the job and poll for its status on the given scheduler, rather than blocking
+     * the calling thread. The returned future completes with the (parsed) job results, or
+     * exceptionally if the job fails. Cancelling the future stops polling. The blocking
+     * calls (submitting, polling and fetching the results) are made on the scheduler too.
+     */
+    public CompletableFuture<FastaJobResults> submit(ScheduledExecutorService scheduler) {
+    	return submit(scheduler, scheduler);
     }
     
-    private FastaJobResults parseResults(BufferedReader reader) throws IOException {
-        results = new FastaJobResults();
-
-        String line = "";
-        while (line != null) {
-            Matcher matcher1 = pattern1.matcher(line);
-            Matcher matcher2 = pattern2.matcher(line);
-            if (matcher1.find()) {
-                Alignment alignment = parseAlignment(matcher1);
-                results.addAlignment(alignment);                
-                line = reader.readLine();
-            } else if (matcher2.find()) {
-            	int n = firstGroup(matcher2);
-                String pdbIdChain = matcher2.group(n);
-                
-                if (pdbIdChain.contains("Entity")) {
-                	pdbIdChain = pdbIdChain.replaceFirst(" ", "_");  
-                }
-                
-                Alignment a = results.getAlignment(pdbIdChain);
-                assert a != null;
-
-                // ignore second set of sequence details for this alignment
-                // (but still need to consume lines)
-                if (completeAlignments.contains(a)) {
-                	a = null;
-                }
-                
-                while ((line = reader.readLine()) != null) {
-                    Matcher m2 = pattern2.matcher(line);
-                    Matcher m3 = pattern3.matcher(line);
-                    Matcher m4 = pattern4.matcher(line);
-                    Matcher m5 = pattern5.matcher(line);
-
-                    if (m3.find()) {
-                        double identity = new Double(m3.group(1));
-                        String overLap = m3.group(2);
-                        String[] o = overLap.split(":");
-                        String[] oIn = o[0].split("-");
-                        String[] oOut = o[1].split("-");
-                        if (a != null) {
-	                        a.setPercentIdentity(identity);
-	                        a.setQueryOverlapStart(oIn[0]);
-	                        a.setQueryOverlapEnd(oIn[1]);
-	                        a.setDbOverlapStart(oOut[0]);
-	                        a.setDbOverlapEnd(oOut[1]);
-                        }
-                    } else if (m2.find()) {
-                        break;
-                    } else if (m4.find()) {
-                    	if (a != null) {
-                    		a.addQuerySequence(m4.group(1));
-                    	}
-                    } else if (m5.find()) {
-                        int n4 = firstGroup(m5);
-                        if (a != null) {
-                        	a.addReturnSequence(m5.group(n4));
-                        }
-                    }
-                }
-                
-                if (a != null) {
-	                completeAlignments.add(a);
-                }
-            } else {
-            	line = reader.readLine();
-            }
-        }
-        
-        return results;
+    /**
+     * Submit the job and poll for its status as above, but with the scheduler only
+     * timing the polls - the blocking calls are made on the given executor, so a slow
+     * call (e.g. fetching a large result) never holds up polling for other jobs.
+     */
+    public CompletableFuture<FastaJobResults> submit(final ScheduledExecutorService scheduler, final Executor executor) {
+    	final CompletableFuture<FastaJobResults> future = new CompletableFuture<>();
+    	execute(executor, future, new Runnable() {
+    		@Override
+    		public void run() {
+    			try {
+    				jobId = fasta.run(email, "", params);
+    				poll(scheduler, executor, future, MIN_POLL_DELAY);
+    			} catch (IOException e) {
+    				exception = e;
+    				future.completeExceptionally(e);
+    			} catch (RuntimeException e) {
+    				future.completeExceptionally(e);
+    			}
+    		}
+    	});
+    	return future;
+    }
+    
+    // run a task for the given future on the given executor, unless the future is done
+    // (failing the future if the executor has been shut down)
+    private static void execute(Executor executor, CompletableFuture<?> future, Runnable task) {
+    	if (future.isDone()) {
+    		return;
+    	}
+    	try {
+    		executor.execute(task);
+    	} catch (RejectedExecutionException e) {
+    		future.completeExceptionally(e);
+    	}
+    }
+    
+    // schedule the next status poll after (about) the given delay
+    private void poll(final ScheduledExecutorService scheduler, final Executor executor,
+    		final CompletableFuture<FastaJobResults> future, final long delay) {
+    	final Runnable check = new Runnable() {
+    		@Override
+    		public void run() {
+    			if (future.isDone()) {
+    				return;
+    			}
+    			try {
+    				status = fasta.getStatus(jobId);
+    				LOG.log(Level.FINE, status);
+    				if (status.equals(FastaStatus.RUNNING)) {
+    					poll(scheduler, executor, future, Math.min(delay * 2, MAX_POLL_DELAY));
+    				} else if (status.equals(FastaStatus.DONE)) {
+    					future.complete(getResults());
+    				} else {
+    					LOG.log(Level.SEVERE, "Error with job: " + jobId + " (" + status + ")");
+    					future.completeExceptionally(new IOException("Unexpected FASTA job status: " + status));
+    				}
+    			} catch (IOException e) {
+    				exception = e;
+    				future.completeExceptionally(e);
+    			} catch (RuntimeException e) {
+    				future.completeExceptionally(e);
+    			}
+    		}
+    	};
+    	long jittered = delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    	try {
+	    	scheduler.schedule(new Runnable() {
+	    		@Override
+	    		public void run() {
+	    			execute(executor, future, check);
+	    		}
+	    	}, jittered, TimeUnit.MILLISECONDS);
+    	} catch (RejectedExecutionException e) {
+    		future.completeExceptionally(e);
+    	}
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+
+import uk.ac.ebi.webservices.axis1.stubs.fasta.InputParameters;
+
+/**
+ * Identifies a FASTA search by the job parameters that affect its results, so that
+ * identical searches can share a job (or cached results). Sequences are normalised by
+ * removing white space and upper casing.
+ */
+public class FastaJobKey {
+
+    private final String sequence;
+    private final String program;
+    private final String[] database;
+    private final String sType;
+    private final Double expLowLim;
+    private final Double expUpperLim;
+    private final Integer scores;
+    private final Integer alignments;
+    
+    private final int hashCode;
+    
+    public FastaJobKey(InputParameters params) {
+    	sequence = params.getSequence() != null ? params.getSequence().replaceAll("\\s+", "").toUpperCase(Locale.ENGLISH) : null;
+    	program = params.getProgram();
+    	database = params.getDatabase() != null ? params.getDatabase().clone() : null;
+    	sType = params.getStype();
+    	expLowLim = params.getExplowlim();
+    	expUpperLim = params.getExpupperlim();
+    	scores = params.getScores();
+    	alignments = params.getAlignments();
+    	hashCode = Objects.hash(sequence, program, Arrays.hashCode(database), sType,
+    			                expLowLim, expUpperLim, scores, alignments);
+    }
+    
+    /**
+     * Get a hex SHA-1 digest of the (normalised) parameters, e.g. for use as a file name.
+     */
+    public String getDigest() {
+    	StringBuilder sb = new StringBuilder();
+    	sb.append(program).append('\0');
+    	sb.append(Arrays.toString(database)).append('\0');
+    	sb.append(sType).append('\0');
+    	sb.append(expLowLim).append('\0');
+    	sb.append(expUpperLim).append('\0');
+    	sb.append(scores).append('\0');
+    	sb.append(alignments).append('\0');
+    	sb.append(sequence);
+    	try {
+    		byte[] digest = MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+    		StringBuilder hex = new StringBuilder(digest.length * 2);
+    		for (byte b : digest) {
+    			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    		}
+    		return hex.toString();
+    	} catch (NoSuchAlgorithmException e) {
+    		throw new RuntimeException(e);
+    	}
+    }
+    
+    @Override
+    public boolean equals(Object object) {
+    	if (! (object instanceof FastaJobKey)) {
+    		return false;
+    	}
+    	FastaJobKey other = (FastaJobKey)object;
+    	return hashCode == other.hashCode
+    		&& Objects.equals(sequence, other.sequence)
+    		&& Objects.equals(program, other.program)
+    		&& Arrays.equals(database, other.database)
+    		&& Objects.equals(sType, other.sType)
+    		&& Objects.equals(expLowLim, other.expLowLim)
+    		&& Objects.equals(expUpperLim, other.expUpperLim)
+    		&& Objects.equals(scores, other.scores)
+    		&& Objects.equals(alignments, other.alignments);
+    }
+    
+    @Override
+    public int hashCode() {
+    	return hashCode;
+    }
+    
+}
@@ -0,0 +1,225 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.ebi.webservices.axis1.stubs.fasta.InputParameters;
+import uk.ac.ebi.webservices.axis1.stubs.fasta.JDispatcherService_PortType;
+import uk.ac.ebi.webservices.axis1.stubs.fasta.WsParameterDetails;
+import uk.ac.ebi.webservices.axis1.stubs.fasta.WsParameters;
+import uk.ac.ebi.webservices.axis1.stubs.fasta.WsRawOutputParameters;
+import uk.ac.ebi.webservices.axis1.stubs.fasta.WsResultType;
+
+/**
+ * Local stand-in for the FASTA service, replaying recorded job output, for testing and
+ * load testing without the real service. Output is looked up by the job's sequence
+ * (ignoring white space and case) in a directory of recordings (see getPath() and
+ * record()), falling back to a default file (or failing the job, if there is none).
+ *
+ * Jobs report RUNNING until the configured latency has passed since they were run, and
+ * then report each of the configured statuses in turn (the last repeating) - by default
+ * just FINISHED, but e.g. RUNNING,ERROR makes failing jobs.
+ *
+ * A job is forgotten once its output has been served. Jobs whose output is never
+ * fetched (failed or abandoned ones) are forgotten JOB_EXPIRY ms after the latency has
+ * passed, so long load tests don't accumulate them.
+ */
+public class FastaReplayService implements JDispatcherService_PortType, FastaResultSource {
+
+	// result type of the recorded output
+	/*package*/ static final String RESULT_TYPE = "out";
+
+	// recording file name suffix
+	private static final String SUFFIX = ".out";
+
+	// how long (ms) after the latency has passed a job's output may still be fetched
+	/*package*/ static final long JOB_EXPIRY = 10 * 60 * 1000;
+
+	private final Path dir;
+
+	private final Path defaultFile;
+
+	private final long latency;
+
+	private final List<String> statuses;
+
+	private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+	private final AtomicLong nextId = new AtomicLong();
+
+	// when expired jobs were last looked for
+	private final AtomicLong lastExpired = new AtomicLong(System.currentTimeMillis());
+
+	/**
+	 * Create a service replaying recordings from the given directory (or null), with the
+	 * given default output file (or null), latency (ms) and statuses (null or empty for
+	 * just FINISHED).
+	 */
+	public FastaReplayService(Path dir, Path defaultFile, long latency, List<String> statuses) {
+		this.dir = dir;
+		this.defaultFile = defaultFile;
+		this.latency = latency;
+		this.statuses = statuses != null && statuses.size() > 0 ? statuses : Arrays.asList(FastaStatus.DONE);
+	}
+
+	/**
+	 * A replayed job: its output file, when it was run, and the number of status polls
+	 * after the latency has passed.
+	 */
+	private static class Job {
+
+		private final Path file;
+
+		private final long started;
+
+		private int polls;
+
+		private Job(Path file) {
+			this.file = file;
+			started = System.currentTimeMillis();
+		}
+
+	}
+
+	/**
+	 * Get the file holding the recorded output for the given sequence in the given
+	 * directory (named by a digest of the sequence).
+	 */
+	public static Path getPath(Path dir, String sequence) {
+		String normalised = sequence.replaceAll("\\s+", "").toUpperCase(Locale.ENGLISH);
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(normalised.getBytes(StandardCharsets.UTF_8));
+			return dir.resolve(String.format("%040x", new BigInteger(1, digest)) + SUFFIX);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Record the output of a job for the given sequence in the given directory.
+	 */
+	public static void record(Path dir, String sequence, InputStream output) throws IOException {
+		Files.createDirectories(dir);
+		Path path = getPath(dir, sequence);
+		Path tmp = Files.createTempFile(dir, "record", ".tmp");
+		try {
+			Files.copy(output, tmp, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	@Override
+	public String run(String email, String title, InputParameters parameters) throws RemoteException {
+		Path file = null;
+		if (dir != null && parameters.getSequence() != null) {
+			file = getPath(dir, parameters.getSequence());
+		}
+		if (file == null || ! Files.exists(file)) {
+			file = defaultFile;
+		}
+		if (file == null) {
+			throw new RemoteException("No recorded output for sequence: " + parameters.getSequence());
+		}
+		expire(System.currentTimeMillis());
+		String jobId = "replay-" + nextId.incrementAndGet();
+		jobs.put(jobId, new Job(file));
+		return jobId;
+	}
+
+	/**
+	 * Forget jobs which have expired (looking at most once per JOB_EXPIRY, so this is
+	 * cheap to call for every job run).
+	 */
+	/*package*/ void expire(long now) {
+		long last = lastExpired.get();
+		if (now - last < JOB_EXPIRY || ! lastExpired.compareAndSet(last, now)) {
+			return;
+		}
+		for (Iterator<Job> it = jobs.values().iterator(); it.hasNext(); ) {
+			if (now - it.next().started > latency + JOB_EXPIRY) {
+				it.remove();
+			}
+		}
+	}
+
+	/*package*/ int getNumJobs() {
+		return jobs.size();
+	}
+
+	private Job getJob(String jobId) throws RemoteException {
+		Job job = jobId != null ? jobs.get(jobId) : null;
+		if (job == null) {
+			throw new RemoteException("No such job: " + jobId);
+		}
+		return job;
+	}
+
+	@Override
+	public String getStatus(String jobId) throws RemoteException {
+		Job job = getJob(jobId);
+		if (System.currentTimeMillis() - job.started < latency) {
+			return FastaStatus.RUNNING;
+		}
+		synchronized (job) {
+			return statuses.get(Math.min(job.polls++, statuses.size() - 1));
+		}
+	}
+
+	@Override
+	public WsResultType[] getResultTypes(String jobId) throws RemoteException {
+		getJob(jobId);
+		WsResultType type = new WsResultType();
+		type.setIdentifier(RESULT_TYPE);
+		return new WsResultType[] { type };
+	}
+
+	@Override
+	public byte[] getResult(String jobId, String type, WsRawOutputParameters parameters) throws RemoteException {
+		try {
+			byte[] result = Files.readAllBytes(getJob(jobId).file);
+			jobs.remove(jobId);
+			return result;
+		} catch (IOException e) {
+			throw new RemoteException("Cannot read recorded output", e);
+		}
+	}
+
+	/**
+	 * Stream the output of a job (so FastaJob reads recordings as it would the REST
+	 * service).
+	 */
+	@Override
+	public InputStream openResult(String jobId, String type) throws IOException {
+		InputStream in = Files.newInputStream(getJob(jobId).file);
+		jobs.remove(jobId);
+		return in;
+	}
+
+	@Override
+	public WsParameters getParameters() throws RemoteException {
+		throw new RemoteException("Not supported by the replay service");
+	}
+
+	@Override
+	public WsParameterDetails getParameterDetails(String parameterId) throws RemoteException {
+		throw new RemoteException("Not supported by the replay service");
+	}
+
+}
@@ -0,0 +1,63 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+/**
+ * Fetch job output from the EBI job dispatcher REST service (jobs may still be submitted
+ * and polled through SOAP - job ids are the same), streaming it rather than having it
+ * all in memory first, e.g. from
+ * 
+ *   http://www.ebi.ac.uk/Tools/services/rest/fasta/result/{job id}/{type}
+ *
+ * Pooled connections are released when the source is closed (by
+ * FastaXJoinResultsFactory).
+ */
+public class FastaRestResultSource implements FastaResultSource, Closeable {
+
+	private final HttpClient client;
+	
+	private final String url;
+	
+	/**
+	 * Create a source for the given REST service URL (up to, but not including, the
+	 * "/result" part), using the given HttpClientUtil properties (e.g. timeouts).
+	 */
+	public FastaRestResultSource(String url, ModifiableSolrParams clientParams) {
+		this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+		client = HttpClientUtil.createClient(clientParams);
+	}
+	
+	@Override
+	public InputStream openResult(String jobId, String type) throws IOException {
+		HttpGet get = new HttpGet(url + "/result/" + jobId + "/" + type);
+		HttpResponse response = client.execute(get);
+		HttpEntity entity = response.getEntity();
+		int status = response.getStatusLine().getStatusCode();
+		if (status != HttpStatus.SC_OK || entity == null) {
+			EntityUtils.consumeQuietly(entity);
+			throw new IOException("Unexpected HTTP status " + status + " from " + get.getURI());
+		}
+		// closing the content releases the connection
+		return entity.getContent();
+	}
+	
+	/**
+	 * Shut down the client's connection pool.
+	 */
+	@Override
+	public void close() {
+		client.getConnectionManager().shutdown();
+	}
+	
+}
@@ -0,0 +1,19 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where FastaJob fetches the output of finished jobs from. The output is read as a
+ * stream, so it can be parsed as it arrives (see FastaSoapResultSource and
+ * FastaRestResultSource).
+ */
+public interface FastaResultSource {
+
+	/**
+	 * Open the output of the given type (e.g. "out") of a finished job. The caller must
+	 * close the stream.
+	 */
+	InputStream openResult(String jobId, String type) throws IOException;
+	
+}
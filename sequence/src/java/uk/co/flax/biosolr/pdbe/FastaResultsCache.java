@@ -0,0 +1,250 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persistent cache of parsed FASTA results on local disk, one (compressed binary) file
+ * per search, named by the digest of its FastaJobKey. The total size of the cache is
+ * bounded by evicting the least recently used files (by modification time, which is
+ * updated on each hit). The total size is tracked in memory (having been measured once
+ * when the cache is opened), so the directory is only scanned when the bound is
+ * exceeded - and then the cache is cut back to below the bound, so that it isn't
+ * scanned again for a while.
+ *
+ * Each file records the cache version it was written with. Changing the version (e.g.
+ * when the FASTA database is updated) invalidates all existing entries.
+ */
+public class FastaResultsCache {
+
+	private static final Logger LOG = Logger.getLogger(FastaResultsCache.class.getName());
+
+	private static final int MAGIC = 0xFA57AC4E;
+
+	// increment when the file format changes
+	private static final int FORMAT = 2;
+
+	private static final String SUFFIX = ".fasta";
+
+	// fraction of the maximum size the cache is cut back to by eviction
+	private static final double EVICT_TO = 0.9;
+
+	private final Path dir;
+
+	private final long maxBytes;
+
+	private final String version;
+
+	// total size of the cache files (approximate, between evictions)
+	private final AtomicLong totalBytes = new AtomicLong();
+
+	public FastaResultsCache(Path dir, long maxBytes, String version) throws IOException {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.version = version != null ? version : "";
+		Files.createDirectories(dir);
+		evict();
+	}
+
+	/*package*/ long getSize() {
+		return totalBytes.get();
+	}
+
+	// get the size of a file, or 0 if there is no such file
+	private static long size(Path path) {
+		try {
+			return Files.size(path);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	private Path path(FastaJobKey key) {
+		return dir.resolve(key.getDigest() + SUFFIX);
+	}
+
+	/**
+	 * Get the cached results for the given search, or null if there are none (or they
+	 * are from a different cache version, or can't be read).
+	 */
+	public FastaJobResults get(FastaJobKey key) {
+		Path path = path(key);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path))))) {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT || ! version.equals(in.readUTF())) {
+				long size = size(path);
+				if (Files.deleteIfExists(path)) {
+					totalBytes.addAndGet(-size);
+				}
+				return null;
+			}
+			FastaJobResults results = read(in);
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+			return results;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Cannot read cached FASTA results: " + path, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Store the results of the given search (then evict old entries if this makes the
+	 * cache too big).
+	 */
+	public void put(FastaJobKey key, FastaJobResults results) {
+		Path path = path(key);
+		Path tmp = null;
+		try {
+			tmp = Files.createTempFile(dir, null, ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT);
+				out.writeUTF(version);
+				write(out, results);
+			}
+			long size = Files.size(tmp);
+			long replaced = size(path);
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			totalBytes.addAndGet(size - replaced);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Cannot cache FASTA results: " + path, e);
+			try {
+				if (tmp != null) {
+					Files.deleteIfExists(tmp);
+				}
+			} catch (IOException e2) {
+				// ignore
+			}
+			return;
+		}
+		if (totalBytes.get() > maxBytes) {
+			evict();
+		}
+	}
+
+	private static void write(DataOutputStream out, FastaJobResults results) throws IOException {
+		out.writeInt(results.getNumChains());
+		for (Alignment a : results.getAlignments(false).values()) {
+			writeString(out, a.getPdbId());
+			writeString(out, a.getChain());
+			out.writeDouble(a.getEValue());
+			out.writeBoolean(a.hasPercentIdentity());
+			if (a.hasPercentIdentity()) {
+				out.writeDouble(a.getPercentIdentity());
+			}
+			out.writeInt(a.getQueryOverlapStart());
+			out.writeInt(a.getQueryOverlapEnd());
+			out.writeInt(a.getDbOverlapStart());
+			out.writeInt(a.getDbOverlapEnd());
+			writeString(out, a.getQuerySequenceString());
+			writeString(out, a.getReturnSequenceString());
+		}
+	}
+
+	private static FastaJobResults read(DataInputStream in) throws IOException {
+		FastaJobResults results = new FastaJobResults();
+		int n = in.readInt();
+		for (int i = 0; i < n; ++i) {
+			Alignment a = new Alignment(readString(in), readString(in), in.readDouble());
+			if (in.readBoolean()) {
+				a.setPercentIdentity(in.readDouble());
+			}
+			a.setQueryOverlapStart(in.readInt());
+			a.setQueryOverlapEnd(in.readInt());
+			a.setDbOverlapStart(in.readInt());
+			a.setDbOverlapEnd(in.readInt());
+			a.addQuerySequence(readString(in));
+			a.addReturnSequence(readString(in));
+			results.addAlignment(a);
+		}
+		results.chooseShownAlignments();
+		return results;
+	}
+
+	// strings can be longer than writeUTF() allows
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Measure the cache, and if it is over its size bound, delete the least recently
+	 * used entries until it is back below the bound (by a margin).
+	 */
+	private synchronized void evict() {
+		final List<Path> paths = new ArrayList<>();
+		final List<FileTime> times = new ArrayList<>();
+		long total = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+			for (Path path : stream) {
+				try {
+					total += Files.size(path);
+					times.add(Files.getLastModifiedTime(path));
+					paths.add(path);
+				} catch (NoSuchFileException e) {
+					// deleted since listing
+				}
+			}
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Cannot list FASTA results cache: " + dir, e);
+			return;
+		}
+		if (total <= maxBytes) {
+			totalBytes.set(total);
+			return;
+		}
+
+		List<Integer> order = new ArrayList<>(paths.size());
+		for (int i = 0; i < paths.size(); ++i) {
+			order.add(i);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i, Integer j) {
+				return times.get(i).compareTo(times.get(j));
+			}
+		});
+		long target = (long)(maxBytes * EVICT_TO);
+		for (int i : order) {
+			if (total <= target) {
+				break;
+			}
+			try {
+				long size = Files.size(paths.get(i));
+				Files.deleteIfExists(paths.get(i));
+				total -= size;
+			} catch (IOException e) {
+				// already gone, or can't be deleted
+			}
+		}
+		totalBytes.set(total);
+	}
+
+}
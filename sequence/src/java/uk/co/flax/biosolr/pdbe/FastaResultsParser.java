@@ -0,0 +1,286 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Single pass parser for FASTA (ssearch) output. Each line is classified by its prefix,
+ * and fields are extracted by index, without regular expressions. The lines recognised
+ * are:
+ *
+ *   PDB:1CZI_E mol:protein length:323  CHYMOSIN  ( 323) 2180 527.2 1.2e-148
+ *   PRE_PDB:4RLD Entity 1                        ( 330)  492 123.5   4e-27
+ *     - an alignment in the scores list (the last field is the e-value)
+ *
+ *   >>PDB:1CZI_E mol:protein length:323  CHYMOSIN  (323 aa)
+ *   >>PRE_PDB:4RLD Entity 1                        (330 aa)
+ *     - start of the details for an alignment, in which are found:
+ *
+ *   Smith-Waterman score: 2180; 100.0% identity (100.0% similar) in 323 aa overlap (1-323:1-323)
+ *   EMBOS  GEVASVPLTNYLDSQYFGKIYLGTPPQEFTVLFDTGSSDFWVPSIYCKSNACKNHQRFDP
+ *   PDB:1C GEVASVPLTNYLDSQYFGKIYLGTPPQEFTVLFDTGSSDFWVPSIYCKSNACKNHQRFDP
+ *     - percent identity and overlaps, and query and returned sequence fragments
+ */
+/*package*/ class FastaResultsParser {
+
+	private static final String PDB = "PDB:";
+	private static final String PRE_PDB = "PRE_PDB:";
+	private static final String PRE_PD = "PRE_PD";
+	private static final String DETAILS_PDB = ">>PDB:";
+	private static final String DETAILS_PRE_PDB = ">>PRE_PDB:";
+	private static final String SMITH_WATERMAN = "Smith-Waterman score:";
+	private static final String QUERY = "EMBOS  ";
+	private static final String OVERLAP = " overlap (";
+	private static final String ENTITY = " Entity";
+
+	// length of a PRE_PDB id and " Entity"
+	private static final int ENTITY_LENGTH = 4 + ENTITY.length();
+
+	private FastaResultsParser() { }
+
+	/**
+	 * Parse FASTA output into alignments (shown alignments are not chosen).
+	 */
+	public static FastaJobResults parse(BufferedReader reader) throws IOException {
+		FastaJobResults results = new FastaJobResults();
+
+	    // sometimes an alignment appears twice in the results - need to ignore all but
+	    // the first, so remember those we have completed
+		Set<Alignment> completeAlignments = new HashSet<>();
+
+		String line = reader.readLine();
+		while (line != null) {
+			Alignment alignment = parseScore(line);
+			if (alignment != null) {
+				results.addAlignment(alignment);
+				line = reader.readLine();
+				continue;
+			}
+
+			String pdbIdChain = parseDetails(line);
+			if (pdbIdChain == null) {
+				line = reader.readLine();
+				continue;
+			}
+
+			Alignment a = results.getAlignment(pdbIdChain);
+
+			// ignore second set of sequence details for this alignment
+			// (but still need to consume lines)
+			if (completeAlignments.contains(a)) {
+				a = null;
+			}
+
+			while ((line = reader.readLine()) != null) {
+				if (parseSmithWaterman(line, a)) {
+					continue;
+				}
+				if (parseDetails(line) != null) {
+					break;
+				}
+				if (line.startsWith(QUERY)) {
+					if (a != null) {
+						a.addQuerySequence(line, QUERY.length(), line.length());
+					}
+					continue;
+				}
+				int fragment = parseReturnSequence(line);
+				if (fragment >= 0 && a != null) {
+					a.addReturnSequence(line, fragment, line.length());
+				}
+			}
+
+			if (a != null) {
+				completeAlignments.add(a);
+			}
+		}
+
+		return results;
+	}
+
+	// same as \s in regular expressions
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	// same as \w in regular expressions
+	private static boolean isWordChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+
+	// index of the first white space at or after the given index, or -1
+	private static int indexOfSpace(String line, int from) {
+		for (int i = from; i < line.length(); ++i) {
+			if (isSpace(line.charAt(i))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// end of a PDB id and chain starting at the given index, i.e. the first white space
+	// after the first underscore (or -1)
+	private static int endOfPdbIdChain(String line, int start) {
+		int underscore = line.indexOf('_', start);
+		return underscore >= 0 ? indexOfSpace(line, underscore + 1) : -1;
+	}
+
+	// end of an "XXXX Entity" id starting at the given index (or -1)
+	private static int endOfEntity(String line, int start) {
+		int end = start + ENTITY_LENGTH;
+		if (line.length() < end || ! line.startsWith(ENTITY, start + 4)) {
+			return -1;
+		}
+		for (int i = start; i < start + 4; ++i) {
+			if (! isWordChar(line.charAt(i))) {
+				return -1;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Parse an alignment from the scores list, or return null if the line isn't one.
+	 */
+	private static Alignment parseScore(String line) {
+		int start, end;
+		if (line.startsWith(PDB)) {
+			start = PDB.length();
+			end = endOfPdbIdChain(line, start);
+		} else if (line.startsWith(PRE_PDB)) {
+			start = PRE_PDB.length();
+			end = endOfEntity(line, start);
+			if (end >= 0 && (end == line.length() || ! isSpace(line.charAt(end)))) {
+				end = -1;
+			}
+		} else {
+			return null;
+		}
+		if (end < 0) {
+			return null;
+		}
+
+		// the e-value is the last field, and there must be another field before it
+		int last = line.length() - 1;
+		while (last >= 0 && ! isSpace(line.charAt(last))) {
+			char c = line.charAt(last);
+			if ((c < '0' || c > '9') && c != '.' && c != 'e' && c != '-') {
+				return null;
+			}
+			--last;
+		}
+		if (last == line.length() - 1 || last < end + 2) {
+			return null;
+		}
+
+		String pdbIdChain = toPdbIdChain(line.substring(start, end));
+		int underscore = pdbIdChain.indexOf('_');
+		int chainEnd = pdbIdChain.indexOf('_', underscore + 1);
+		String pdbId = pdbIdChain.substring(0, underscore);
+		String chain = pdbIdChain.substring(underscore + 1, chainEnd >= 0 ? chainEnd : pdbIdChain.length());
+		double eValue = Double.parseDouble(line.substring(last + 1));
+		return new Alignment(pdbId, chain, eValue);
+	}
+
+	// "XXXX Entity" becomes "XXXX_Entity"
+	private static String toPdbIdChain(String id) {
+		int space = id.indexOf(' ');
+		if (space < 0 || ! id.contains("Entity")) {
+			return id;
+		}
+		return id.substring(0, space) + "_" + id.substring(space + 1);
+	}
+
+	/**
+	 * Parse the PDB id and chain from the line starting an alignment's details, or return
+	 * null if the line isn't one.
+	 */
+	private static String parseDetails(String line) {
+		if (line.startsWith(DETAILS_PDB)) {
+			int end = endOfPdbIdChain(line, DETAILS_PDB.length());
+			return end >= 0 ? toPdbIdChain(line.substring(DETAILS_PDB.length(), end)) : null;
+		}
+		if (line.startsWith(DETAILS_PRE_PDB)) {
+			int end = endOfEntity(line, DETAILS_PRE_PDB.length());
+			return end >= 0 ? toPdbIdChain(line.substring(DETAILS_PRE_PDB.length(), end)) : null;
+		}
+		return null;
+	}
+
+	/**
+	 * Parse percent identity and overlaps into the given alignment (if not null), returning
+	 * false if the line isn't a Smith-Waterman score line.
+	 */
+	private static boolean parseSmithWaterman(String line, Alignment a) {
+		if (! line.startsWith(SMITH_WATERMAN) || ! line.endsWith(")")) {
+			return false;
+		}
+		int semicolon = line.indexOf(';', SMITH_WATERMAN.length());
+		if (semicolon < 0) {
+			return false;
+		}
+		int percent = line.indexOf("% ", semicolon + 1);
+		if (percent < 0) {
+			return false;
+		}
+		int overlap = line.indexOf(OVERLAP, percent + 2);
+		if (overlap < 0) {
+			return false;
+		}
+
+		double identity = Double.parseDouble(line.substring(semicolon + 1, percent));
+
+		// query start-end:db start-end
+		int start = overlap + OVERLAP.length();
+		int end = line.length() - 1;
+		int colon = line.indexOf(':', start);
+		int queryDash = line.indexOf('-', start);
+		int dbDash = colon >= 0 ? line.indexOf('-', colon + 1) : -1;
+		if (colon < 0 || queryDash < 0 || queryDash > colon || dbDash < 0) {
+			return false;
+		}
+		if (a != null) {
+			a.setPercentIdentity(identity);
+			a.setQueryOverlapStart(parseInt(line, start, queryDash));
+			a.setQueryOverlapEnd(parseInt(line, queryDash + 1, colon));
+			a.setDbOverlapStart(parseInt(line, colon + 1, dbDash));
+			a.setDbOverlapEnd(parseInt(line, dbDash + 1, end));
+		}
+		return true;
+	}
+
+	// parse the (non-negative) integer in line[start, end)
+	private static int parseInt(String line, int start, int end) {
+		if (start == end) {
+			throw new NumberFormatException("Empty number in: " + line);
+		}
+		int n = 0;
+		for (int i = start; i < end; ++i) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9') {
+				throw new NumberFormatException("Bad number in: " + line);
+			}
+			n = n * 10 + (c - '0');
+		}
+		return n;
+	}
+
+	/**
+	 * Get the start of the returned sequence fragment in a line, or -1 if the line isn't
+	 * one.
+	 */
+	private static int parseReturnSequence(String line) {
+		int space;
+		if (line.startsWith(PDB)) {
+			space = line.indexOf(' ', PDB.length());
+		} else if (line.startsWith(PRE_PD)) {
+			space = line.indexOf(' ', PRE_PD.length());
+		} else {
+			return -1;
+		}
+		return space >= 0 ? space + 1 : -1;
+	}
+
+}
@@ -0,0 +1,31 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import uk.ac.ebi.webservices.axis1.stubs.fasta.JDispatcherService_PortType;
+
+/**
+ * Fetch job output through the FASTA SOAP service. The SOAP stubs only return the
+ * output as a whole (the stream just wraps it), so FastaRestResultSource is better for
+ * large results.
+ */
+public class FastaSoapResultSource implements FastaResultSource {
+
+	private final JDispatcherService_PortType fasta;
+	
+	public FastaSoapResultSource(JDispatcherService_PortType fasta) {
+		this.fasta = fasta;
+	}
+	
+	@Override
+	public InputStream openResult(String jobId, String type) throws IOException {
+		byte[] result = fasta.getResult(jobId, type, null);
+		if (result == null) {
+			throw new IOException("No " + type + " result for FASTA job " + jobId);
+		}
+		return new ByteArrayInputStream(result);
+	}
+	
+}
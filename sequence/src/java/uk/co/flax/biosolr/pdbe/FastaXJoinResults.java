@@ -0,0 +1,75 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.search.xjoin.XJoinResults;
+
+/**
+ * XJoin results for FASTA alignments, with join ids in the PDB Solr entry_entity format
+ * (lower case PDB id, and chain number instead of letter, e.g. 1czi_5 for 1CZI_E).
+ * 
+ * The join ids are worked out and sorted once, at construction, with the alignments in
+ * the same order, so getJoinIds() and getResult() (which is called for each document
+ * scored by an XJoin value source) allocate nothing.
+ */
+public class FastaXJoinResults implements XJoinResults<String> {
+
+	// sorted entry_entity join ids
+	private final String[] joinIds;
+	
+	// alignments, in join id order
+	private final Alignment[] alignments;
+	
+	private final List<String> joinIdList;
+	
+	public FastaXJoinResults(Map<String, Alignment> alignments) {
+		final String[] entries = new String[alignments.size()];
+		Integer[] order = new Integer[entries.length];
+		Alignment[] values = alignments.values().toArray(new Alignment[entries.length]);
+		for (int i = 0; i < entries.length; ++i) {
+			entries[i] = getEntryEntity(values[i]);
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i, Integer j) {
+				return entries[i].compareTo(entries[j]);
+			}
+		});
+		
+		joinIds = new String[entries.length];
+		this.alignments = new Alignment[entries.length];
+		for (int i = 0; i < order.length; ++i) {
+			joinIds[i] = entries[order[i]];
+			this.alignments[i] = values[order[i]];
+		}
+		joinIdList = Collections.unmodifiableList(Arrays.asList(joinIds));
+	}
+	
+	@Override
+    public Iterable<String> getJoinIds() {
+    	return joinIdList;
+    }
+    
+	@Override
+    public Alignment getResult(String joinId) {
+    	int i = Arrays.binarySearch(joinIds, joinId);
+    	return i >= 0 ? alignments[i] : null;
+    }
+
+    private static String getEntryEntity(Alignment a) {
+    	// pdb SOLR entry_entity: lower case, and numbers for chain instead of letters
+    	if (a.getChain().length() == 1) {
+        	int chainId = (int)a.getChain().charAt(0) - (int)'A' + 1;
+        	return a.getPdbId().toLowerCase() + "_" + chainId;
+    	} else {
+    		// chain is "Entity" (from PRE_PDB entries)
+    		return a.getPdbId().toLowerCase() + "_" + a.getChain().toLowerCase();
+    	}
+    }
+
+}
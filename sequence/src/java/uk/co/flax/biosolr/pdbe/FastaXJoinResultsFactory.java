@@ -1,32 +1,58 @@
 package uk.co.flax.biosolr.pdbe;
 
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
-
+import java.io.Closeable;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import javax.xml.rpc.ServiceException;
 
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.search.xjoin.XJoinResults;
 import org.apache.solr.search.xjoin.XJoinResultsFactory;
+import org.apache.solr.util.DefaultSolrThreadFactory;
 
 import uk.ac.ebi.webservices.axis1.stubs.fasta.InputParameters;
 import uk.ac.ebi.webservices.axis1.stubs.fasta.JDispatcherService_PortType;
 import uk.ac.ebi.webservices.axis1.stubs.fasta.JDispatcherService_Service;
 import uk.ac.ebi.webservices.axis1.stubs.fasta.JDispatcherService_ServiceLocator;
-import uk.ac.ebi.webservices.axis1.stubs.fasta.WsResultType;
 
 /**
  * Connect to FASTA service and generate a PDB id filter based on a user supplied
  * sequence.
+ * 
+ * FASTA jobs are polled on a scheduler, so waiting for a job to finish costs no thread
+ * (see getResultsAsync()). The scheduler only times the polls: the blocking calls to
+ * the service (submitting jobs, getting their status, and fetching and parsing their
+ * results) are made by a bounded pool of threads, so a slow call or a large result
+ * holds up no other job. Both are shut down when the factory is closed (by
+ * XJoinSearchComponent, when the core closes). Concurrent identical searches
+ * share one FASTA job. Optionally, parsed results are cached on disk (see
+ * FastaResultsCache), so repeated searches don't need a FASTA job at all. Job output
+ * is parsed as it is read - with result.url set, it is streamed from the REST service
+ * (see FastaRestResultSource) rather than fetched whole through SOAP. Several
+ * sequences may be searched at once, with their results merged. For testing, jobs may
+ * be replayed from recorded output instead (see FastaReplayService).
  */
-public class FastaXJoinResultsFactory implements XJoinResultsFactory<String> {
+public class FastaXJoinResultsFactory implements XJoinResultsFactory<String>, Closeable {
 	
 	// initialisation parameters
 	public static final String INIT_EMAIL = "email";
@@ -34,6 +60,15 @@ public class FastaXJoinResultsFactory implements XJoinResultsFactory<String> {
 	public static final String INIT_DATABASE = "database";
 	public static final String INIT_STYPE = "stype";
 	public static final String INIT_DEBUG_FILE = "debug.file";
+	public static final String INIT_REPLAY_DIR = "replay.dir";
+	public static final String INIT_REPLAY_LATENCY = "replay.latency";
+	public static final String INIT_REPLAY_STATUSES = "replay.statuses";
+	public static final String INIT_CACHE_DIR = "cache.dir";
+	public static final String INIT_CACHE_SIZE = "cache.size";
+	public static final String INIT_CACHE_VERSION = "cache.version";
+	public static final String INIT_RESULT_URL = "result.url";
+	public static final String INIT_RESULT_TIMEOUT = "result.timeout";
+	public static final String INIT_THREADS = "threads";
 	
 	// request parameters
 	public static final String FASTA_EXPLOWLIM = "explowlim";
@@ -42,28 +77,55 @@ public class FastaXJoinResultsFactory implements XJoinResultsFactory<String> {
 	public static final String FASTA_SCORES = "scores";
 	public static final String FASTA_ALIGNMENTS = "alignments";
 	public static final String FASTA_UNIQUE_PDB_IDS = "unique_pdb_ids";
+	public static final String FASTA_COMBINE = "combine";
+	
+	// values of the combine parameter, for several sequences
+	public static final String COMBINE_UNION = "union";
+	public static final String COMBINE_INTERSECTION = "intersection";
+	
+	// default number of threads for submitting and polling FASTA jobs, and fetching their
+	// results
+	private static final int DEFAULT_THREADS = 8;
+	
+	// default disk cache size (MB)
+	private static final long DEFAULT_CACHE_SIZE = 1024;
+	
+	// times the polls of FASTA jobs
+	private ScheduledExecutorService scheduler;
+	
+	// makes the (blocking) calls to the FASTA service
+	private ThreadPoolExecutor executor;
 	
 	private JDispatcherService_PortType fasta;
+	private FastaResultSource source;
 	private String email;
 	private String program;
 	private String database;
 	private String sType;
+	
+	// FASTA jobs in progress
+	private final Map<FastaJobKey, InFlight> inFlight = new HashMap<>();
+	
+	// disk cache of parsed results (or null)
+	private FastaResultsCache cache;
 
 	@Override
 	@SuppressWarnings("rawtypes")
 	public void init(NamedList args) {
+		// with recorded output (a default debug file, and/or a directory of recordings by
+		// sequence), jobs are replayed rather than run by the FASTA service
 		String debugFile = (String)args.get(INIT_DEBUG_FILE);
-		if (debugFile != null) {
-			try {
-				byte[] result = Files.readAllBytes(Paths.get(debugFile));
-				fasta = mock(JDispatcherService_PortType.class);
-				when(fasta.getStatus(null)).thenReturn(FastaStatus.DONE);
-				WsResultType[] types = new WsResultType[] { mock(WsResultType.class) };
-				when(fasta.getResultTypes(null)).thenReturn(types);
-				when(fasta.getResult(null, null, null)).thenReturn(result);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
+		String replayDir = (String)args.get(INIT_REPLAY_DIR);
+		if (debugFile != null || replayDir != null) {
+			Number latency = (Number)args.get(INIT_REPLAY_LATENCY);
+			String statuses = (String)args.get(INIT_REPLAY_STATUSES);
+			FastaReplayService replay = new FastaReplayService(
+					replayDir != null ? Paths.get(replayDir) : null,
+					debugFile != null ? Paths.get(debugFile) : null,
+					latency != null ? latency.longValue() : 0,
+					statuses != null ? Arrays.asList(statuses.split("\\s*,\\s*")) : null);
+			fasta = replay;
+			source = replay;
 		} else {
 	        JDispatcherService_Service service = new JDispatcherService_ServiceLocator();
 	        try {
@@ -71,12 +133,83 @@ public class FastaXJoinResultsFactory implements XJoinResultsFactory<String> {
 			} catch (ServiceException e) {
 				throw new RuntimeException(e);
 			}
+			
+	        // results are fetched through SOAP, unless a REST service URL is given
+	        String resultUrl = (String)args.get(INIT_RESULT_URL);
+	        if (resultUrl != null) {
+	        	ModifiableSolrParams clientParams = new ModifiableSolrParams();
+	        	Object timeout = args.get(INIT_RESULT_TIMEOUT);
+	        	if (timeout != null) {
+	        		clientParams.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, timeout.toString());
+	        		clientParams.set(HttpClientUtil.PROP_SO_TIMEOUT, timeout.toString());
+	        	}
+	        	source = new FastaRestResultSource(resultUrl, clientParams);
+	        } else {
+	        	source = new FastaSoapResultSource(fasta);
+	        }
 		}
 		
         email = (String)args.get(INIT_EMAIL);
         program = (String)args.get(INIT_PROGRAM);
         database = (String)args.get(INIT_DATABASE);
         sType = (String)args.get(INIT_STYPE);
+        
+        Number threads = (Number)args.get(INIT_THREADS);
+        int numThreads = threads != null ? threads.intValue() : DEFAULT_THREADS;
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("fastaPoll"));
+        executor = new ThreadPoolExecutor(numThreads, numThreads,
+        		10, TimeUnit.SECONDS, // terminate idle threads after 10 sec
+        		new LinkedBlockingQueue<Runnable>(), daemonThreads("fasta"));
+        executor.allowCoreThreadTimeOut(true);
+        
+        String cacheDir = (String)args.get(INIT_CACHE_DIR);
+        if (cacheDir != null) {
+        	Number cacheSize = (Number)args.get(INIT_CACHE_SIZE);
+        	long maxBytes = (cacheSize != null ? cacheSize.longValue() : DEFAULT_CACHE_SIZE) << 20;
+        	try {
+				cache = new FastaResultsCache(Paths.get(cacheDir), maxBytes, (String)args.get(INIT_CACHE_VERSION));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+        }
+	}
+	
+	// threads which don't stop the JVM exiting
+	private static ThreadFactory daemonThreads(String prefix) {
+		final ThreadFactory threads = new DefaultSolrThreadFactory(prefix);
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = threads.newThread(r);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+	
+	/**
+	 * Stop polling, cancel all the FASTA jobs in progress (so no search waits for them
+	 * forever), and release the result source's connections.
+	 */
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+		executor.shutdownNow();
+		List<InFlight> jobs;
+		synchronized (inFlight) {
+			jobs = new ArrayList<>(inFlight.values());
+			inFlight.clear();
+		}
+		for (InFlight job : jobs) {
+			job.submitted.cancel(true);
+		}
+		if (source instanceof Closeable) {
+			try {
+				((Closeable)source).close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
 	}
 	
 	private String getParam(SolrParams params, String name) {
@@ -88,77 +221,236 @@ public class FastaXJoinResultsFactory implements XJoinResultsFactory<String> {
 	}
 	
 	/**
-	 * Call out to the FASTA service and add a filter query based on the response.
+	 * Call out to the FASTA service and add a filter query based on the response. This
+	 * waits for getResultsAsync().
 	 */
 	@Override
 	public XJoinResults<String> getResults(SolrParams params) throws IOException {
+		CompletableFuture<XJoinResults<String>> future = getResultsAsync(params);
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("FASTA job was interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+	
+	/**
+	 * Submit a FASTA job, returning a future for the results (the job is polled on the
+	 * factory's scheduler). If an identical search is in progress, its job is shared.
+	 * Cancelling the future stops polling once no other search shares the job. If the
+	 * results are in the disk cache, the returned future is already complete.
+	 * 
+	 * If there are several sequence parameters, a job is submitted for each (all at
+	 * once), and the results are merged - the union of the chains found for any of the
+	 * sequences, or with combine=intersection, only those found for all of them. Each
+	 * result is then a BatchAlignment, saying which sequences the chain was found for.
+	 */
+	public CompletableFuture<XJoinResults<String>> getResultsAsync(SolrParams params) {
+		String[] sequences = params.getParams(FASTA_SEQUENCE);
+		if (sequences == null || sequences.length == 0) {
+			throw new RuntimeException("Missing or empty " + FASTA_SEQUENCE);
+		}
+		for (String sequence : sequences) {
+			if (sequence.length() == 0) {
+				throw new RuntimeException("Missing or empty " + FASTA_SEQUENCE);
+			}
+		}
+		if (sequences.length == 1) {
+			final CompletableFuture<Map<String, Alignment>> alignments = getAlignmentsAsync(params, sequences[0]);
+			final CompletableFuture<XJoinResults<String>> future = alignments.thenApply(new Function<Map<String, Alignment>, XJoinResults<String>>() {
+				@Override
+				public XJoinResults<String> apply(Map<String, Alignment> alignments) {
+					return new FastaXJoinResults(alignments);
+				}
+			});
+			// cancelling a dependent stage doesn't cancel its source, so pass it on
+			future.whenComplete(new BiConsumer<XJoinResults<String>, Throwable>() {
+				@Override
+				public void accept(XJoinResults<String> results, Throwable t) {
+					if (future.isCancelled()) {
+						alignments.cancel(true);
+					}
+				}
+			});
+			return future;
+		}
+		
+		String combine = params.get(FASTA_COMBINE, COMBINE_UNION);
+		if (! combine.equals(COMBINE_UNION) && ! combine.equals(COMBINE_INTERSECTION)) {
+			throw new RuntimeException("Bad " + FASTA_COMBINE + " (must be " + COMBINE_UNION + " or " + COMBINE_INTERSECTION + "): " + combine);
+		}
+		final boolean intersection = combine.equals(COMBINE_INTERSECTION);
+		
+		final List<CompletableFuture<Map<String, Alignment>>> futures = new ArrayList<>();
+		for (String sequence : sequences) {
+			futures.add(getAlignmentsAsync(params, sequence));
+		}
+		final CompletableFuture<XJoinResults<String>> future = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+				.thenApply(new Function<Void, XJoinResults<String>>() {
+			@Override
+			public XJoinResults<String> apply(Void v) {
+				return merge(futures, intersection);
+			}
+		});
+		future.whenComplete(new BiConsumer<XJoinResults<String>, Throwable>() {
+			@Override
+			public void accept(XJoinResults<String> results, Throwable t) {
+				if (future.isCancelled()) {
+					for (CompletableFuture<Map<String, Alignment>> f : futures) {
+						f.cancel(true);
+					}
+				}
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * Merge the (completed) results of a batch of sequences.
+	 */
+	private static XJoinResults<String> merge(List<CompletableFuture<Map<String, Alignment>>> futures, boolean intersection) {
+		Map<String, BatchAlignment> batch = new LinkedHashMap<>();
+		for (int query = 0; query < futures.size(); ++query) {
+			for (Alignment a : futures.get(query).join().values()) {
+				batch.put(a.getPdbIdChain(), BatchAlignment.add(batch.get(a.getPdbIdChain()), a, query));
+			}
+		}
+		Map<String, Alignment> alignments = new LinkedHashMap<>();
+		for (Map.Entry<String, BatchAlignment> e : batch.entrySet()) {
+			if (! intersection || e.getValue().getQueries().size() == futures.size()) {
+				alignments.put(e.getKey(), e.getValue());
+			}
+		}
+		return new FastaXJoinResults(alignments);
+	}
+	
+	/**
+	 * Get the alignments for one sequence (see getResultsAsync()).
+	 */
+	private CompletableFuture<Map<String, Alignment>> getAlignmentsAsync(SolrParams params, String sequence) {
 		InputParameters input = new InputParameters();
     	input.setProgram(program);
     	input.setDatabase(new String[] { database });
     	input.setStype(sType);
-        input.setSequence(getParam(params, FASTA_SEQUENCE));
+        input.setSequence(sequence);
         input.setExplowlim(new Double(getParam(params, FASTA_EXPLOWLIM)));
         input.setExpupperlim(new Double(getParam(params, FASTA_EXPUPPERLIM)));
         input.setScores(new Integer(getParam(params, FASTA_SCORES)));
         input.setAlignments(new Integer(getParam(params, FASTA_ALIGNMENTS)));
+        final boolean unique = new Boolean(params.get(FASTA_UNIQUE_PDB_IDS));
 	    
-        FastaJob job = new FastaJob(fasta, email, input);
-		job.run();
-		
-		if (! job.resultsOk()) {
-			if (job.getException() != null) {
-				throw new RuntimeException(job.getException());
+        if (cache != null) {
+        	FastaJobResults results = cache.get(new FastaJobKey(input));
+        	if (results != null) {
+        		return CompletableFuture.completedFuture(results.getAlignments(unique));
+        	}
+        }
+	    
+        final InFlight job = getJob(input);
+        final CompletableFuture<Map<String, Alignment>> future = job.future.thenApply(new Function<FastaJobResults, Map<String, Alignment>>() {
+			@Override
+			public Map<String, Alignment> apply(FastaJobResults results) {
+				return results.getAlignments(unique);
+			}
+		});
+        future.whenComplete(new BiConsumer<Map<String, Alignment>, Throwable>() {
+			@Override
+			public void accept(Map<String, Alignment> alignments, Throwable t) {
+				if (future.isCancelled()) {
+					release(job);
+				}
+			}
+		});
+        return future;
+	}
+	
+	/**
+	 * Get the in progress job for the given parameters, submitting a new job if there
+	 * is none.
+	 */
+	private InFlight getJob(InputParameters input) {
+		final FastaJobKey key = new FastaJobKey(input);
+		synchronized (inFlight) {
+			InFlight job = inFlight.get(key);
+			if (job == null) {
+				final CompletableFuture<FastaJobResults> submitted = new FastaJob(fasta, source, email, input).submit(scheduler, executor);
+				
+				// searches wait for the job to be cached and forgotten, so a search made
+				// after one has its results never shares the job
+				CompletableFuture<FastaJobResults> future = submitted.whenComplete(new BiConsumer<FastaJobResults, Throwable>() {
+					@Override
+					public void accept(FastaJobResults results, Throwable t) {
+						if (cache != null && results != null) {
+							cache.put(key, results);
+						}
+						synchronized (inFlight) {
+							InFlight done = inFlight.get(key);
+							if (done != null && done.submitted == submitted) {
+								inFlight.remove(key);
+							}
+						}
+					}
+				});
+				job = new InFlight(key, submitted, future);
+				inFlight.put(key, job);
 			}
-			if (! FastaStatus.DONE.equals(job.getStatus())) {
-				throw new RuntimeException("Unexpected FASTA job status: " + job.getStatus());
+			++job.waiters;
+			return job;
+		}
+	}
+	
+	/**
+	 * Get the number of FASTA jobs in progress.
+	 */
+	/*package*/ int getJobsInFlight() {
+		synchronized (inFlight) {
+			return inFlight.size();
+		}
+	}
+	
+	/**
+	 * A search is no longer waiting for the given job - cancel it if no other search is.
+	 */
+	private void release(InFlight job) {
+		synchronized (inFlight) {
+			if (--job.waiters > 0) {
+				return;
 			}
-			if (job.isInterrupted()) {
-				throw new RuntimeException("FASTA job was interrupted");
+			if (inFlight.get(job.key) == job) {
+				inFlight.remove(job.key);
 			}
-			throw new RuntimeException("No results");
 		}
+		job.submitted.cancel(true);
+	}
+	
+	/**
+	 * A FASTA job in progress, and the number of searches waiting for it.
+	 */
+	private static class InFlight {
 		
-		FastaJobResults results = job.getResults();
-		boolean unique = new Boolean(params.get(FASTA_UNIQUE_PDB_IDS));
-		final Map<String, Alignment> alignments = results.getAlignments(unique);
+		private final FastaJobKey key;
+		
+		// the job itself (cancelled to stop polling), and its results once dealt with
+		// by getJob()
+		private final CompletableFuture<FastaJobResults> submitted;
+		private final CompletableFuture<FastaJobResults> future;
+		
+		private int waiters;
+		
+		private InFlight(FastaJobKey key, CompletableFuture<FastaJobResults> submitted, CompletableFuture<FastaJobResults> future) {
+			this.key = key;
+			this.submitted = submitted;
+			this.future = future;
+		}
 		
-		return new XJoinResults<String>() {
-
-			@Override
-		    public Iterable<String> getJoinIds() {
-		    	String[] entries = new String[alignments.size()];
-		    	int i = 0;
-		    	for (Alignment a : alignments.values()) {
-		    		entries[i++] = getEntryEntity(a);
-		    	}
-		    	Arrays.sort(entries);
-		    	return Arrays.asList(entries);
-		    }
-		    
-			@Override
-		    public Alignment getResult(String joinId) {
-		    	String[] bits = joinId.split("_");
-		    	if (bits.length != 2) {
-		    		throw new RuntimeException("Bad entry_entity format: " + joinId);
-		    	}
-		    	String pdbId = bits[0].toUpperCase();
-		    	int chain = Integer.parseInt(bits[1]) + 'A' - 1;
-		    	String pdbIdChain = pdbId + "_" + Character.valueOf((char)chain);
-		    	return alignments.get(pdbIdChain);
-		    }
-			
-		};
 	}
 
-    private String getEntryEntity(Alignment a) {
-    	// pdb SOLR entry_entity: lower case, and numbers for chain instead of letters
-    	if (a.getChain().length() == 1) {
-        	int chainId = (int)a.getChain().charAt(0) - (int)'A' + 1;
-        	return a.getPdbId().toLowerCase() + "_" + chainId;
-    	} else {
-    		// chain is "Entity" (from PRE_PDB entries)
-    		return a.getPdbId().toLowerCase() + "_" + a.getChain().toLowerCase();
-    	}
-    }
-
 }
@@ -0,0 +1,281 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Inverted index from protein 3-mers to the sequences of a SequenceDatabase containing
+ * them, used to pick candidate sequences for Smith-Waterman search (BLAST style) rather
+ * than aligning the query against every sequence.
+ *
+ * Candidates are chosen in two stages: first, the sequences with the most 3-mers in
+ * common with the query are found from the index; then these are ranked by the most
+ * 3-mer hits on any one diagonal (i.e. without gaps), by scanning each sequence.
+ *
+ * The index is built offline (see main()) and memory mapped, so it takes no heap, and
+ * is shared between processes via the page cache. It must be built from the same
+ * sequence file it is used with (the number of sequences and residues are checked).
+ * Only 3-mers of the 20 standard residues are indexed.
+ */
+public class KmerIndex {
+
+	private static final int MAGIC = 0x4B4D4552;
+
+	// increment when the file format changes
+	private static final int FORMAT = 1;
+
+	/*package*/ static final int K = 3;
+
+	// number of standard residues (which have the lowest codes in Blosum50)
+	private static final int RESIDUES = 20;
+
+	private static final int NUM_KMERS = RESIDUES * RESIDUES * RESIDUES;
+
+	// size of the file header
+	private static final int HEADER = 4 * 4 + 8;
+
+	// candidates first chosen by 3-mers in common, per candidate finally wanted
+	private static final int PRESELECT = 4;
+
+	private final SequenceDatabase database;
+
+	// start of each 3-mer's postings (and the end of the last)
+	private final IntBuffer offsets;
+
+	// sequence numbers, by 3-mer
+	private final IntBuffer postings;
+
+	private KmerIndex(SequenceDatabase database, IntBuffer offsets, IntBuffer postings) {
+		this.database = database;
+		this.offsets = offsets;
+		this.postings = postings;
+	}
+
+	/**
+	 * Get the 3-mer at the given position of an encoded sequence, or -1 if it has a
+	 * non-standard residue.
+	 */
+	/*package*/ static int kmer(byte[] residues, int i) {
+		int a = residues[i], b = residues[i + 1], c = residues[i + 2];
+		if (a >= RESIDUES || b >= RESIDUES || c >= RESIDUES) {
+			return -1;
+		}
+		return (a * RESIDUES + b) * RESIDUES + c;
+	}
+
+	/**
+	 * Build an index of the database, and write it to the given file.
+	 */
+	public static void build(SequenceDatabase database, Path path) throws IOException {
+		byte[] residues = database.getResidues();
+
+		// count postings for each 3-mer, then fill them in
+		int[] offsets = new int[NUM_KMERS + 1];
+		for (int s = 0; s < database.size(); ++s) {
+			for (int i = database.getStart(s); i <= database.getEnd(s) - K; ++i) {
+				int kmer = kmer(residues, i);
+				if (kmer >= 0) {
+					++offsets[kmer + 1];
+				}
+			}
+		}
+		for (int kmer = 0; kmer < NUM_KMERS; ++kmer) {
+			if (offsets[kmer + 1] > Integer.MAX_VALUE - offsets[kmer]) {
+				throw new IOException("Too many 3-mers in database for index");
+			}
+			offsets[kmer + 1] += offsets[kmer];
+		}
+		int[] postings = new int[offsets[NUM_KMERS]];
+		int[] next = Arrays.copyOf(offsets, NUM_KMERS);
+		for (int s = 0; s < database.size(); ++s) {
+			for (int i = database.getStart(s); i <= database.getEnd(s) - K; ++i) {
+				int kmer = kmer(residues, i);
+				if (kmer >= 0) {
+					postings[next[kmer]++] = s;
+				}
+			}
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeInt(K);
+			out.writeInt(database.size());
+			out.writeLong(database.getNumResidues());
+			for (int offset : offsets) {
+				out.writeInt(offset);
+			}
+			for (int s : postings) {
+				out.writeInt(s);
+			}
+		}
+	}
+
+	/**
+	 * Memory map the index in the given file, built for the given database.
+	 */
+	public static KmerIndex load(SequenceDatabase database, Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Index too large to map: " + path);
+			}
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT || buffer.getInt() != K) {
+				throw new IOException("Not a 3-mer index (or wrong format version): " + path);
+			}
+			if (buffer.getInt() != database.size() || buffer.getLong() != database.getNumResidues()) {
+				throw new IOException("Index was not built from this sequence database: " + path);
+			}
+
+			buffer.position(HEADER);
+			IntBuffer offsets = buffer.slice().asIntBuffer();
+			offsets.limit(NUM_KMERS + 1);
+			buffer.position(HEADER + 4 * (NUM_KMERS + 1));
+			IntBuffer postings = buffer.slice().asIntBuffer();
+			if (postings.limit() != offsets.get(NUM_KMERS)) {
+				throw new IOException("Truncated index: " + path);
+			}
+			return new KmerIndex(database, offsets, postings);
+		}
+	}
+
+	/**
+	 * Get (up to) the given number of candidate sequences for the (encoded) query, in
+	 * increasing order of sequence number. Sequences with no 3-mers in common with the
+	 * query are never candidates.
+	 */
+	public int[] getCandidates(byte[] query, int n) {
+		// first stage: 3-mers in common
+		int[] hits = new int[database.size()];
+		for (int q = 0; q <= query.length - K; ++q) {
+			int kmer = kmer(query, q);
+			if (kmer < 0) {
+				continue;
+			}
+			for (int i = offsets.get(kmer), end = offsets.get(kmer + 1); i < end; ++i) {
+				++hits[postings.get(i)];
+			}
+		}
+		int[] preselected = top(hits, null, n * PRESELECT);
+
+		// second stage: 3-mer hits on the best diagonal
+		int[] queryKmers = new int[NUM_KMERS + 1];
+		int[] queryPositions = positions(query, queryKmers);
+		byte[] residues = database.getResidues();
+		int[] diagonals = new int[0];
+		int[] scores = new int[database.size()];
+		for (int s : preselected) {
+			int start = database.getStart(s);
+			int length = database.getLength(s);
+			if (diagonals.length < query.length + length) {
+				diagonals = new int[query.length + length];
+			} else {
+				Arrays.fill(diagonals, 0, query.length + length, 0);
+			}
+			int best = 0;
+			for (int p = 0; p <= length - K; ++p) {
+				int kmer = kmer(residues, start + p);
+				if (kmer < 0) {
+					continue;
+				}
+				for (int i = queryKmers[kmer], end = queryKmers[kmer + 1]; i < end; ++i) {
+					int d = p - queryPositions[i] + query.length;
+					best = Math.max(best, ++diagonals[d]);
+				}
+			}
+			scores[s] = best;
+		}
+		int[] candidates = top(scores, preselected, n);
+		Arrays.sort(candidates);
+		return candidates;
+	}
+
+	// positions of each 3-mer in the query, with the start of each 3-mer's positions
+	private static int[] positions(byte[] query, int[] starts) {
+		int n = Math.max(query.length - K + 1, 0);
+		for (int q = 0; q < n; ++q) {
+			int kmer = kmer(query, q);
+			if (kmer >= 0) {
+				++starts[kmer + 1];
+			}
+		}
+		for (int kmer = 0; kmer < NUM_KMERS; ++kmer) {
+			starts[kmer + 1] += starts[kmer];
+		}
+		int[] positions = new int[starts[NUM_KMERS]];
+		int[] next = Arrays.copyOf(starts, NUM_KMERS);
+		for (int q = 0; q < n; ++q) {
+			int kmer = kmer(query, q);
+			if (kmer >= 0) {
+				positions[next[kmer]++] = q;
+			}
+		}
+		return positions;
+	}
+
+	/**
+	 * Get (up to) n of the given sequences (or all, if null) with the highest non-zero
+	 * values, in decreasing order of value (and in the given order for ties).
+	 */
+	private static int[] top(int[] values, int[] among, int n) {
+		int size = among != null ? among.length : values.length;
+
+		// count sequences by value, to find the lowest value wanted
+		int max = 0;
+		for (int i = 0; i < size; ++i) {
+			max = Math.max(max, values[among != null ? among[i] : i]);
+		}
+		int[] counts = new int[max + 1];
+		for (int i = 0; i < size; ++i) {
+			++counts[values[among != null ? among[i] : i]];
+		}
+		int threshold = max + 1;
+		int total = 0;
+		while (threshold > 1 && total < n) {
+			total += counts[--threshold];
+		}
+		if (threshold > max) {
+			return new int[0];
+		}
+
+		// take sequences in buckets by value, highest first, until there are enough
+		int[] starts = new int[max + 2];
+		for (int v = max; v >= threshold; --v) {
+			starts[v] = starts[v + 1] + counts[v];
+		}
+		int[] sorted = new int[starts[threshold]];
+		int[] next = new int[max + 2];
+		for (int v = threshold; v <= max; ++v) {
+			next[v] = starts[v + 1];
+		}
+		for (int i = 0; i < size; ++i) {
+			int s = among != null ? among[i] : i;
+			if (values[s] >= threshold) {
+				sorted[next[values[s]]++] = s;
+			}
+		}
+		return sorted.length > n ? Arrays.copyOf(sorted, n) : sorted;
+	}
+
+	/**
+	 * Build an index: KmerIndex sequence-file index-file
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: KmerIndex <FASTA sequence file> <index file>");
+			System.exit(1);
+		}
+		SequenceDatabase database = SequenceDatabase.load(Paths.get(args[0]));
+		build(database, Paths.get(args[1]));
+	}
+
+}
@@ -0,0 +1,104 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.util.AttributeFactory;
+
+/**
+ * Tokenizer splitting a (protein or nucleotide) sequence into overlapping k-mers, e.g.
+ * MKTAY into MKT, KTA, TAY for k = 3. Residues are upper cased, and anything other than
+ * a letter (e.g. white space) is skipped. Sequences shorter than k give no tokens.
+ */
+public class KmerTokenizer extends Tokenizer {
+
+	private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+	
+	private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+	
+	private final int k;
+	
+	// the last k residues read, and their offsets (circular)
+	private final char[] window;
+	private final int[] offsets;
+	
+	// residues read since reset
+	private int count;
+	
+	// offset of the next character to read
+	private int offset;
+	
+	// characters read from the input
+	private final char[] buffer = new char[1024];
+	private int bufferLength;
+	private int bufferPosition;
+	
+	public KmerTokenizer(Reader input, int k) {
+		super(input);
+		this.k = k;
+		window = new char[k];
+		offsets = new int[k];
+	}
+	
+	public KmerTokenizer(AttributeFactory factory, Reader input, int k) {
+		super(factory, input);
+		this.k = k;
+		window = new char[k];
+		offsets = new int[k];
+	}
+
+	@Override
+	public boolean incrementToken() throws IOException {
+		clearAttributes();
+		while (true) {
+			if (bufferPosition == bufferLength) {
+				bufferLength = input.read(buffer);
+				bufferPosition = 0;
+				if (bufferLength <= 0) {
+					bufferLength = 0;
+					return false;
+				}
+			}
+			char c = buffer[bufferPosition++];
+			int o = offset++;
+			if (! Character.isLetter(c)) {
+				continue;
+			}
+			window[count % k] = Character.toUpperCase(c);
+			offsets[count % k] = o;
+			if (++count < k) {
+				continue;
+			}
+			
+			// oldest residue first
+			char[] term = termAtt.resizeBuffer(k);
+			for (int i = 0; i < k; ++i) {
+				term[i] = window[(count + i) % k];
+			}
+			termAtt.setLength(k);
+			int start = offsets[count % k];
+			offsetAtt.setOffset(correctOffset(start), correctOffset(o + 1));
+			return true;
+		}
+	}
+	
+	@Override
+	public void end() throws IOException {
+		super.end();
+		int end = correctOffset(offset);
+		offsetAtt.setOffset(end, end);
+	}
+	
+	@Override
+	public void reset() throws IOException {
+		super.reset();
+		count = 0;
+		offset = 0;
+		bufferLength = 0;
+		bufferPosition = 0;
+	}
+	
+}
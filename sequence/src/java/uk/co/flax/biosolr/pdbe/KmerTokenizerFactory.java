@@ -0,0 +1,40 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.Reader;
+import java.util.Map;
+
+import org.apache.lucene.analysis.util.TokenizerFactory;
+import org.apache.lucene.util.AttributeFactory;
+
+/**
+ * Factory for KmerTokenizer. The k-mer length is given by the k argument (default 3):
+ *
+ *   &lt;fieldType name="kmers" class="solr.TextField" omitNorms="true"&gt;
+ *     &lt;analyzer&gt;
+ *       &lt;tokenizer class="uk.co.flax.biosolr.pdbe.KmerTokenizerFactory" k="3"/&gt;
+ *     &lt;/analyzer&gt;
+ *   &lt;/fieldType&gt;
+ */
+public class KmerTokenizerFactory extends TokenizerFactory {
+	
+	public static final int DEFAULT_K = 3;
+
+	private final int k;
+	
+	public KmerTokenizerFactory(Map<String, String> args) {
+		super(args);
+		k = getInt(args, "k", DEFAULT_K);
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be at least 1");
+		}
+		if (! args.isEmpty()) {
+			throw new IllegalArgumentException("Unknown parameters: " + args);
+		}
+	}
+	
+	@Override
+	public KmerTokenizer create(AttributeFactory factory, Reader input) {
+		return new KmerTokenizer(factory, input, k);
+	}
+	
+}
@@ -1,6 +1,7 @@
 package uk.co.flax.biosolr.pdbe;
 
-import java.rmi.RemoteException;
+import java.io.IOException;
+import java.io.InputStream;
 
 import javax.xml.rpc.ServiceException;
 
@@ -45,14 +46,21 @@ public class Main {
 				job.getException().printStackTrace(System.err);;
 			}
 			
-			System.out.println(new String(job.getRawResults()));
+			try (InputStream in = job.openRawResults()) {
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = in.read(buffer)) >= 0) {
+					System.out.write(buffer, 0, n);
+				}
+				System.out.flush();
+			}
 		} catch (NumberFormatException e) {
 			System.err.println("Cannot parse command line arguments");
 			e.printStackTrace(System.err);
 		} catch (ServiceException e) {
 			System.err.println("Cannot create FASTA service");
 			e.printStackTrace(System.err);
-		} catch (RemoteException e) {
+		} catch (IOException e) {
 			System.err.println("Cannot retrieve FASTA results");
 			e.printStackTrace(System.err);
 		}
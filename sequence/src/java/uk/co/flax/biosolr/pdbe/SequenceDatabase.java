@@ -0,0 +1,119 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Protein sequences loaded from a FASTA file in the format of the PDB seqres file
+ * (pdb_seqres.txt), i.e. with headers like:
+ *
+ *   >101m_A mol:protein length:154  MYOGLOBIN
+ *
+ * Entries which are not proteins (mol:na) are skipped. Residues are held encoded (see
+ * Blosum50) in one array, with the offset of each sequence.
+ */
+public class SequenceDatabase {
+
+	private static final String PROTEIN = "mol:protein";
+	
+	private final String[] pdbIds;
+	
+	private final String[] chains;
+	
+	// encoded residues of all sequences
+	private final byte[] residues;
+	
+	// offset of each sequence in residues (plus the end of the last)
+	private final int[] offsets;
+	
+	private SequenceDatabase(List<String> pdbIds, List<String> chains, byte[] residues, List<Integer> offsets) {
+		this.pdbIds = pdbIds.toArray(new String[pdbIds.size()]);
+		this.chains = chains.toArray(new String[chains.size()]);
+		this.residues = residues;
+		this.offsets = new int[offsets.size()];
+		for (int i = 0; i < this.offsets.length; ++i) {
+			this.offsets[i] = offsets.get(i);
+		}
+	}
+	
+	/**
+	 * Load the sequences in a FASTA file.
+	 */
+	public static SequenceDatabase load(Path path) throws IOException {
+		List<String> pdbIds = new ArrayList<>();
+		List<String> chains = new ArrayList<>();
+		List<Integer> offsets = new ArrayList<>();
+		ByteArrayOutputStream residues = new ByteArrayOutputStream();
+		
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.US_ASCII)) {
+			boolean skip = true;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(">")) {
+					skip = ! line.contains(PROTEIN);
+					if (skip) {
+						continue;
+					}
+					int space = line.indexOf(' ');
+					String id = line.substring(1, space >= 0 ? space : line.length());
+					int underscore = id.indexOf('_');
+					if (underscore < 0) {
+						throw new IOException("Bad sequence id: " + id);
+					}
+					pdbIds.add(id.substring(0, underscore).toUpperCase());
+					chains.add(id.substring(underscore + 1));
+					offsets.add(residues.size());
+				} else if (! skip) {
+					for (int i = 0; i < line.length(); ++i) {
+						char c = line.charAt(i);
+						if (! Character.isWhitespace(c)) {
+							residues.write(Blosum50.encode(c));
+						}
+					}
+				}
+			}
+		}
+		offsets.add(residues.size());
+		
+		return new SequenceDatabase(pdbIds, chains, residues.toByteArray(), offsets);
+	}
+	
+	public int size() {
+		return pdbIds.length;
+	}
+	
+	public long getNumResidues() {
+		return residues.length;
+	}
+	
+	public String getPdbId(int i) {
+		return pdbIds[i];
+	}
+	
+	public String getChain(int i) {
+		return chains[i];
+	}
+	
+	/*package*/ byte[] getResidues() {
+		return residues;
+	}
+	
+	/*package*/ int getStart(int i) {
+		return offsets[i];
+	}
+	
+	/*package*/ int getEnd(int i) {
+		return offsets[i + 1];
+	}
+	
+	public int getLength(int i) {
+		return offsets[i + 1] - offsets[i];
+	}
+	
+}
@@ -0,0 +1,105 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.QueryParsing;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.util.SolrPluginUtils;
+
+/**
+ * Query parser turning a sequence into a disjunction of its k-mers, for a field analysed
+ * with KmerTokenizerFactory (the field's query analyzer splits the sequence), e.g.
+ *
+ *   {!sequence f=molecule_sequence_kmers mm=10%}GEVASVPLTNYLDSQYFGKIYLGTPPQEFTV
+ *
+ * Each distinct k-mer is one optional clause, so documents sharing more k-mers with the
+ * query score higher. The optional mm parameter sets the minimum number of k-mers which
+ * must match (as for dismax). Candidates found this way can be reranked by alignment
+ * score (see AlignmentValueSourceParser).
+ */
+public class SequenceQParserPlugin extends QParserPlugin {
+
+	public static final String NAME = "sequence";
+	
+	public static final String MM = "mm";
+	
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void init(NamedList args) {
+		// nothing to do
+	}
+
+	@Override
+	public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+		return new SequenceQParser(qstr, localParams, params, req);
+	}
+	
+	private static class SequenceQParser extends QParser {
+		
+		private SequenceQParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+			super(qstr, localParams, params, req);
+		}
+
+		@Override
+		public Query parse() throws SyntaxError {
+			String field = localParams.get(QueryParsing.F);
+			if (field == null) {
+				throw new SyntaxError("Missing field (f) for sequence query");
+			}
+			if (qstr == null || qstr.trim().length() == 0) {
+				throw new SyntaxError("Missing sequence for sequence query");
+			}
+			
+			SchemaField sf = req.getSchema().getField(field);
+			Set<String> kmers = new LinkedHashSet<>();
+			try {
+				tokenize(sf.getType().getQueryAnalyzer(), field, kmers);
+			} catch (IOException e) {
+				throw new SyntaxError("Cannot analyse sequence: " + e.getMessage());
+			}
+			
+			BooleanQuery query = new BooleanQuery();
+			try {
+				for (String kmer : kmers) {
+					query.add(new TermQuery(new Term(field, kmer)), BooleanClause.Occur.SHOULD);
+				}
+			} catch (BooleanQuery.TooManyClauses e) {
+				throw new SyntaxError("Sequence has too many distinct k-mers: " + kmers.size());
+			}
+			String mm = localParams.get(MM);
+			if (mm != null) {
+				SolrPluginUtils.setMinShouldMatch(query, mm);
+			}
+			return query;
+		}
+		
+		private void tokenize(Analyzer analyzer, String field, Set<String> kmers) throws IOException {
+			try (TokenStream stream = analyzer.tokenStream(field, qstr)) {
+				CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+				stream.reset();
+				while (stream.incrementToken()) {
+					kmers.add(termAtt.toString());
+				}
+				stream.end();
+			}
+		}
+		
+	}
+	
+}
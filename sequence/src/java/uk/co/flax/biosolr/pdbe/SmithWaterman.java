@@ -0,0 +1,281 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.util.Arrays;
+
+/**
+ * Smith-Waterman local alignment of a query against database sequences, with affine gap
+ * penalties and the BLOSUM50 matrix.
+ *
+ * Scores are computed with Farrar's striped algorithm (Bioinformatics 23(2), 2007): the
+ * query profile is laid out in LANES interleaved segments, so the inner loops work on
+ * LANES independent query positions at a time (which the JIT can vectorise), and the
+ * vertical gap dependencies between segments are fixed up afterwards by the "lazy F"
+ * loop, which rarely runs more than once. Only scores are computed this way - full
+ * alignments (with traceback) are only made for the best hits, see align().
+ *
+ * Instances hold work arrays, so must not be shared between threads.
+ */
+/*package*/ class SmithWaterman {
+
+	// ssearch defaults for BLOSUM50
+	/*package*/ static final int DEFAULT_GAP_OPEN = 10;
+	/*package*/ static final int DEFAULT_GAP_EXTEND = 2;
+
+	// lanes per vector (as for 16 bit scores in 128 bit registers)
+	/*package*/ static final int LANES = 8;
+
+	// lower than any score, but safe from overflow when penalties are subtracted
+	private static final int NEGATIVE = -(1 << 24);
+
+	// traceback directions: source of H, and whether E and F extend a gap
+	private static final byte H_ZERO = 0;
+	private static final byte H_DIAGONAL = 1;
+	private static final byte H_E = 2;
+	private static final byte H_F = 3;
+	private static final byte H_MASK = 3;
+	private static final byte E_EXTEND = 4;
+	private static final byte F_EXTEND = 8;
+
+	// traceback states
+	private static final int IN_H = 0;
+	private static final int IN_E = 1;
+	private static final int IN_F = 2;
+
+	private final byte[] query;
+
+	// penalty for the first residue of a gap (open plus extend), and for each other
+	private final int gapOpenExtend;
+	private final int gapExtend;
+
+	// query segment length
+	private final int segLength;
+
+	// striped query profile: score of each residue against the query, by segment and lane
+	private final int[][] profile;
+
+	// work arrays for scoring
+	private int[] hStore;
+	private int[] hLoad;
+	private final int[] e;
+	private final int[] h;
+	private final int[] f;
+
+	/**
+	 * Make an aligner for the given (encoded) query with the given gap penalties
+	 * (positive, with gapOpen not including the first extension).
+	 */
+	/*package*/ SmithWaterman(byte[] query, int gapOpen, int gapExtend) {
+		this.query = query;
+		this.gapOpenExtend = gapOpen + gapExtend;
+		this.gapExtend = gapExtend;
+
+		segLength = Math.max((query.length + LANES - 1) / LANES, 1);
+		profile = new int[Blosum50.SIZE][segLength * LANES];
+		for (int r = 0; r < Blosum50.SIZE; ++r) {
+			for (int j = 0; j < segLength; ++j) {
+				for (int k = 0; k < LANES; ++k) {
+					// query position k * segLength + j is in lane k of segment j
+					int i = k * segLength + j;
+					profile[r][j * LANES + k] = i < query.length ? Blosum50.score(query[i], r) : NEGATIVE;
+				}
+			}
+		}
+
+		hStore = new int[segLength * LANES];
+		hLoad = new int[segLength * LANES];
+		e = new int[segLength * LANES];
+		h = new int[LANES];
+		f = new int[LANES];
+	}
+
+	/**
+	 * Get the best local alignment score of the query against residues[from, to).
+	 */
+	/*package*/ int score(byte[] residues, int from, int to) {
+		Arrays.fill(hStore, 0);
+		Arrays.fill(e, NEGATIVE);
+		int best = 0;
+
+		for (int d = from; d < to; ++d) {
+			int[] p = profile[residues[d]];
+
+			// H of the previous column, shifted down one query position
+			int last = (segLength - 1) * LANES;
+			h[0] = 0;
+			for (int k = 1; k < LANES; ++k) {
+				h[k] = hStore[last + k - 1];
+			}
+			Arrays.fill(f, NEGATIVE);
+
+			int[] tmp = hLoad;
+			hLoad = hStore;
+			hStore = tmp;
+
+			for (int j = 0; j < segLength; ++j) {
+				int base = j * LANES;
+				for (int k = 0; k < LANES; ++k) {
+					int s = Math.max(Math.max(h[k] + p[base + k], 0), Math.max(e[base + k], f[k]));
+					best = Math.max(best, s);
+					hStore[base + k] = s;
+					s -= gapOpenExtend;
+					e[base + k] = Math.max(e[base + k] - gapExtend, s);
+					f[k] = Math.max(f[k] - gapExtend, s);
+					h[k] = hLoad[base + k];
+				}
+			}
+
+			// lazy F: carry vertical gaps over segment boundaries until they no longer
+			// improve H
+			shiftF();
+			for (int j = 0; ; ) {
+				int base = j * LANES;
+				boolean improves = false;
+				for (int k = 0; k < LANES; ++k) {
+					if (f[k] > hStore[base + k] - gapOpenExtend) {
+						improves = true;
+						break;
+					}
+				}
+				if (! improves) {
+					break;
+				}
+				for (int k = 0; k < LANES; ++k) {
+					int s = Math.max(hStore[base + k], f[k]);
+					hStore[base + k] = s;
+					e[base + k] = Math.max(e[base + k], s - gapOpenExtend);
+					f[k] -= gapExtend;
+				}
+				if (++j == segLength) {
+					j = 0;
+					shiftF();
+				}
+			}
+		}
+
+		return best;
+	}
+
+	// move F down one query position, from the last segment to the first
+	private void shiftF() {
+		for (int k = LANES - 1; k > 0; --k) {
+			f[k] = f[k - 1];
+		}
+		f[0] = NEGATIVE;
+	}
+
+	/**
+	 * Align the query against residues[from, to) with traceback, setting the percent
+	 * identity, overlaps and aligned sequences of the given alignment. Returns the score.
+	 */
+	/*package*/ int align(byte[] residues, int from, int to, Alignment alignment) {
+		int m = query.length;
+		int n = to - from;
+		byte[][] trace = new byte[m + 1][n + 1];
+
+		// H and F of the previous row, E of the current row
+		int[] hRow = new int[n + 1];
+		int[] fRow = new int[n + 1];
+		Arrays.fill(fRow, NEGATIVE);
+		int best = 0, bestI = 0, bestJ = 0;
+
+		for (int i = 1; i <= m; ++i) {
+			int diagonal = 0;
+			int eCell = NEGATIVE;
+			int left = 0;
+			for (int j = 1; j <= n; ++j) {
+				byte dir = 0;
+
+				int eOpen = left - gapOpenExtend;
+				eCell -= gapExtend;
+				if (eCell > eOpen) {
+					dir |= E_EXTEND;
+				} else {
+					eCell = eOpen;
+				}
+
+				int fOpen = hRow[j] - gapOpenExtend;
+				int fCell = fRow[j] - gapExtend;
+				if (fCell > fOpen) {
+					dir |= F_EXTEND;
+				} else {
+					fCell = fOpen;
+				}
+				fRow[j] = fCell;
+
+				int s = diagonal + Blosum50.score(query[i - 1], residues[from + j - 1]);
+				byte source = H_DIAGONAL;
+				if (eCell > s) {
+					s = eCell;
+					source = H_E;
+				}
+				if (fCell > s) {
+					s = fCell;
+					source = H_F;
+				}
+				if (s <= 0) {
+					s = 0;
+					source = H_ZERO;
+				}
+				trace[i][j] = (byte)(dir | source);
+
+				diagonal = hRow[j];
+				hRow[j] = s;
+				left = s;
+				if (s > best) {
+					best = s;
+					bestI = i;
+					bestJ = j;
+				}
+			}
+		}
+
+		// trace back from the best cell
+		StringBuilder q = new StringBuilder();
+		StringBuilder r = new StringBuilder();
+		int identical = 0;
+		int i = bestI, j = bestJ;
+		int state = IN_H;
+		while (i > 0 && j > 0) {
+			byte dir = trace[i][j];
+			if (state == IN_H) {
+				byte source = (byte)(dir & H_MASK);
+				if (source == H_ZERO) {
+					break;
+				} else if (source == H_DIAGONAL) {
+					char c = Blosum50.decode(query[i - 1]);
+					char d = Blosum50.decode(residues[from + j - 1]);
+					q.append(c);
+					r.append(d);
+					if (c == d) {
+						++identical;
+					}
+					--i;
+					--j;
+				} else {
+					state = source == H_E ? IN_E : IN_F;
+				}
+			} else if (state == IN_E) {
+				q.append('-');
+				r.append(Blosum50.decode(residues[from + j - 1]));
+				state = (dir & E_EXTEND) != 0 ? IN_E : IN_H;
+				--j;
+			} else {
+				q.append(Blosum50.decode(query[i - 1]));
+				r.append('-');
+				state = (dir & F_EXTEND) != 0 ? IN_F : IN_H;
+				--i;
+			}
+		}
+
+		int length = q.length();
+		alignment.addQuerySequence(q.reverse());
+		alignment.addReturnSequence(r.reverse());
+		alignment.setPercentIdentity(length > 0 ? Math.round(identical * 1000.0 / length) / 10.0 : 0);
+		alignment.setQueryOverlapStart(i + 1);
+		alignment.setQueryOverlapEnd(bestI);
+		alignment.setDbOverlapStart(j + 1);
+		alignment.setDbOverlapEnd(bestJ);
+		return best;
+	}
+
+}
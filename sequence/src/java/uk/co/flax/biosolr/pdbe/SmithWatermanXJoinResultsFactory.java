@@ -0,0 +1,338 @@
+package uk.co.flax.biosolr.pdbe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.xjoin.XJoinResults;
+import org.apache.solr.search.xjoin.XJoinResultsFactory;
+
+/**
+ * Local alternative to FastaXJoinResultsFactory: search a PDB seqres FASTA file loaded
+ * into memory (see SequenceDatabase) with a Smith-Waterman search (see SmithWaterman)
+ * split across a ForkJoinPool, rather than calling out to the FASTA service. Takes the
+ * same request parameters as FastaXJoinResultsFactory, and produces the same results
+ * (with the same scoring scheme as ssearch's defaults - BLOSUM50, gap open/extend -10/-2).
+ *
+ * E-values are estimated like ssearch does, from the search's own score distribution:
+ * scores are regressed against ln(sequence length), and the residuals (after trimming
+ * high scoring outliers, i.e. real hits) are taken to follow an extreme value
+ * distribution. This needs a database of realistic size.
+ *
+ * Optionally, a 3-mer index of the database (see KmerIndex) picks candidate sequences,
+ * and only those are scored, which is much faster for large databases. Statistics are
+ * then fitted to the scores of a random sample of sequences.
+ *
+ * The pool's threads are stopped when the factory is closed (by XJoinSearchComponent,
+ * when the core closes).
+ */
+public class SmithWatermanXJoinResultsFactory implements XJoinResultsFactory<String>, Closeable {
+
+	private static final Logger LOG = Logger.getLogger(SmithWatermanXJoinResultsFactory.class.getName());
+
+	// initialisation parameters
+	public static final String INIT_DATABASE_FILE = "database.file";
+	public static final String INIT_THREADS = "threads";
+	public static final String INIT_GAP_OPEN = "gap.open";
+	public static final String INIT_GAP_EXTEND = "gap.extend";
+	public static final String INIT_INDEX_FILE = "index.file";
+	public static final String INIT_CANDIDATES = "candidates";
+	public static final String INIT_SAMPLE_SIZE = "sample.size";
+
+	// defaults for searches with an index
+	private static final int DEFAULT_CANDIDATES = 5000;
+	private static final int DEFAULT_SAMPLE_SIZE = 5000;
+
+	// sequences scored by each fork join task
+	private static final int TASK_SIZE = 256;
+
+	// scores this many standard deviations above the fit are left out of the next fit
+	private static final double Z_TRIM = 5.0;
+
+	private static final double EULER_GAMMA = 0.5772156649;
+
+	private SequenceDatabase database;
+
+	private ForkJoinPool pool;
+
+	private int gapOpen;
+
+	private int gapExtend;
+
+	// 3-mer index for choosing candidates (or null, to score every sequence)
+	private KmerIndex index;
+
+	private int candidates;
+
+	private int sampleSize;
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void init(NamedList args) {
+		String file = (String)args.get(INIT_DATABASE_FILE);
+		if (file == null) {
+			throw new RuntimeException("Missing " + INIT_DATABASE_FILE);
+		}
+		try {
+			database = SequenceDatabase.load(Paths.get(file));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		LOG.info("Loaded " + database.size() + " sequences (" + database.getNumResidues() + " residues) from " + file);
+
+		Number threads = (Number)args.get(INIT_THREADS);
+		pool = new ForkJoinPool(threads != null ? threads.intValue() : Runtime.getRuntime().availableProcessors());
+		Number open = (Number)args.get(INIT_GAP_OPEN);
+		gapOpen = open != null ? open.intValue() : SmithWaterman.DEFAULT_GAP_OPEN;
+		Number extend = (Number)args.get(INIT_GAP_EXTEND);
+		gapExtend = extend != null ? extend.intValue() : SmithWaterman.DEFAULT_GAP_EXTEND;
+
+		String indexFile = (String)args.get(INIT_INDEX_FILE);
+		if (indexFile != null) {
+			try {
+				index = KmerIndex.load(database, Paths.get(indexFile));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		Number n = (Number)args.get(INIT_CANDIDATES);
+		candidates = n != null ? n.intValue() : DEFAULT_CANDIDATES;
+		n = (Number)args.get(INIT_SAMPLE_SIZE);
+		sampleSize = n != null ? n.intValue() : DEFAULT_SAMPLE_SIZE;
+	}
+
+	/**
+	 * Stop the pool's threads.
+	 */
+	@Override
+	public void close() {
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+	}
+
+	private String getParam(SolrParams params, String name) {
+	    String value = params.get(name);
+	    if (value == null || value.length() == 0) {
+	    	throw new RuntimeException("Missing or empty " + name);
+	    }
+		return value;
+	}
+
+	@Override
+	public XJoinResults<String> getResults(SolrParams params) throws IOException {
+		byte[] query = Blosum50.encode(getParam(params, FastaXJoinResultsFactory.FASTA_SEQUENCE));
+		double expLowLim = new Double(getParam(params, FastaXJoinResultsFactory.FASTA_EXPLOWLIM));
+		double expUpperLim = new Double(getParam(params, FastaXJoinResultsFactory.FASTA_EXPUPPERLIM));
+		int scores = new Integer(getParam(params, FastaXJoinResultsFactory.FASTA_SCORES));
+		int alignments = new Integer(getParam(params, FastaXJoinResultsFactory.FASTA_ALIGNMENTS));
+		boolean unique = new Boolean(params.get(FastaXJoinResultsFactory.FASTA_UNIQUE_PDB_IDS));
+
+		FastaJobResults results = search(query, expLowLim, expUpperLim, scores, alignments);
+		return new FastaXJoinResults(results.getAlignments(unique));
+	}
+
+	/**
+	 * Search the database, returning (up to the given number of) hits with e-values in the
+	 * given range, in order of increasing e-value, with full alignments for (up to the
+	 * given number of) the best.
+	 */
+	/*package*/ FastaJobResults search(byte[] query, double expLowLim, double expUpperLim, int maxScores, int maxAlignments) {
+		// with an index, only score candidates, and fit statistics to a random sample
+		int[] targets;
+		double[] fit;
+		int[] scores;
+		if (index != null) {
+			targets = index.getCandidates(query, candidates);
+			scores = score(query, targets);
+			int[] sample = sample(query);
+			fit = fit(sample, score(query, sample));
+		} else {
+			targets = new int[database.size()];
+			for (int i = 0; i < targets.length; ++i) {
+				targets[i] = i;
+			}
+			scores = score(query, targets);
+			fit = fit(targets, scores);
+		}
+
+		final double[] eValues = new double[targets.length];
+		List<Integer> hits = new ArrayList<>();
+		for (int i = 0; i < targets.length; ++i) {
+			eValues[i] = getEValue(fit, targets[i], scores[i]);
+			if (eValues[i] >= expLowLim && eValues[i] <= expUpperLim) {
+				hits.add(i);
+			}
+		}
+		Collections.sort(hits, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i, Integer j) {
+				int c = Double.compare(eValues[i], eValues[j]);
+				return c != 0 ? c : Integer.compare(i, j);
+			}
+		});
+
+		FastaJobResults results = new FastaJobResults();
+		SmithWaterman sw = new SmithWaterman(query, gapOpen, gapExtend);
+		int n = 0;
+		for (int i : hits) {
+			if (n == maxScores) {
+				break;
+			}
+			int t = targets[i];
+			Alignment a = new Alignment(database.getPdbId(t), database.getChain(t), eValues[i]);
+			if (n < maxAlignments) {
+				sw.align(database.getResidues(), database.getStart(t), database.getEnd(t), a);
+			}
+			results.addAlignment(a);
+			++n;
+		}
+		results.chooseShownAlignments();
+		return results;
+	}
+
+	/**
+	 * Score the query against the given sequences, across the pool.
+	 */
+	private int[] score(byte[] query, int[] targets) {
+		int[] scores = new int[targets.length];
+		pool.invoke(new ScoreTask(query, targets, scores, 0, targets.length));
+		return scores;
+	}
+
+	/**
+	 * Choose a random sample of sequences (the same for the same query).
+	 */
+	private int[] sample(byte[] query) {
+		if (sampleSize >= database.size()) {
+			int[] sample = new int[database.size()];
+			for (int i = 0; i < sample.length; ++i) {
+				sample[i] = i;
+			}
+			return sample;
+		}
+		Random random = new Random(Arrays.hashCode(query));
+		int[] sample = new int[sampleSize];
+		for (int i = 0; i < sample.length; ++i) {
+			sample[i] = random.nextInt(database.size());
+		}
+		return sample;
+	}
+
+	/**
+	 * Score a range of target sequences, splitting the range across the pool.
+	 */
+	private class ScoreTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] query;
+
+		private final int[] targets;
+
+		private final int[] scores;
+
+		private final int from;
+
+		private final int to;
+
+		private ScoreTask(byte[] query, int[] targets, int[] scores, int from, int to) {
+			this.query = query;
+			this.targets = targets;
+			this.scores = scores;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > TASK_SIZE) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ScoreTask(query, targets, scores, from, mid), new ScoreTask(query, targets, scores, mid, to));
+				return;
+			}
+			SmithWaterman sw = new SmithWaterman(query, gapOpen, gapExtend);
+			byte[] residues = database.getResidues();
+			for (int i = from; i < to; ++i) {
+				scores[i] = sw.score(residues, database.getStart(targets[i]), database.getEnd(targets[i]));
+			}
+		}
+
+	}
+
+	private double lnLength(int sequence) {
+		return Math.log(Math.max(database.getLength(sequence), 1));
+	}
+
+	/**
+	 * Fit score = rho * ln(length) + mu to the scores of the given sequences, returning rho,
+	 * mu and the standard deviation of the residuals. Scores more than Z_TRIM standard
+	 * deviations above the first fit are left out of the second.
+	 */
+	private double[] fit(int[] sequences, int[] scores) {
+		int n = sequences.length;
+		double[] x = new double[n];
+		for (int i = 0; i < n; ++i) {
+			x[i] = lnLength(sequences[i]);
+		}
+		boolean[] include = new boolean[n];
+		Arrays.fill(include, true);
+
+		double[] fit = fit(x, scores, include);
+		for (int i = 0; i < n; ++i) {
+			include[i] = (scores[i] - fit[0] * x[i] - fit[1]) / fit[2] <= Z_TRIM;
+		}
+		return fit(x, scores, include);
+	}
+
+	/**
+	 * Get the e-value of a score: the z-score of its residual from the fit is taken as
+	 * following an extreme value distribution.
+	 */
+	private double getEValue(double[] fit, int sequence, int score) {
+		double z = (score - fit[0] * lnLength(sequence) - fit[1]) / fit[2];
+		double p = -Math.expm1(-Math.exp(-(Math.PI / Math.sqrt(6) * z + EULER_GAMMA)));
+		return database.size() * p;
+	}
+
+	/**
+	 * Least squares fit of y = rho * x + mu over the included points, returning rho, mu
+	 * and the standard deviation of the residuals.
+	 */
+	private static double[] fit(double[] x, int[] y, boolean[] include) {
+		double n = 0, sx = 0, sy = 0, sxx = 0, sxy = 0;
+		for (int i = 0; i < x.length; ++i) {
+			if (include[i]) {
+				++n;
+				sx += x[i];
+				sy += y[i];
+				sxx += x[i] * x[i];
+				sxy += x[i] * y[i];
+			}
+		}
+		double d = n * sxx - sx * sx;
+		double rho = d > 0 ? (n * sxy - sx * sy) / d : 0;
+		double mu = n > 0 ? (sy - rho * sx) / n : 0;
+		double ss = 0;
+		for (int i = 0; i < x.length; ++i) {
+			if (include[i]) {
+				double r = y[i] - rho * x[i] - mu;
+				ss += r * r;
+			}
+		}
+		double sd = n > 1 ? Math.sqrt(ss / (n - 1)) : 0;
+		return new double[] { rho, mu, sd > 0 ? sd : 1 };
+	}
+
+}
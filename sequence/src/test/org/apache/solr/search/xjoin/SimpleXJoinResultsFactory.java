@@ -19,6 +19,9 @@ package org.apache.solr.search.xjoin;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
@@ -34,6 +37,12 @@ public class SimpleXJoinResultsFactory implements XJoinResultsFactory<String> {
   // all join ids return a result *except* this one!
   private String missingId;
   
+  // time (ms) taken to get results
+  private long delay;
+  
+  // values of the q parameter already seen with the slowOnce parameter
+  private final Set<String> slowed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  
   @Override
   @SuppressWarnings("rawtypes")
   public void init(NamedList args) {
@@ -41,6 +50,8 @@ public class SimpleXJoinResultsFactory implements XJoinResultsFactory<String> {
     values = valuesStr.split(",");
     string = (String)args.get("string");
     missingId = (String)args.get("missingId");
+    Number delay = (Number)args.get("delay");
+    this.delay = delay != null ? delay.longValue() : 0;
   }
   
   public String getMissingId() {
@@ -51,8 +62,24 @@ public class SimpleXJoinResultsFactory implements XJoinResultsFactory<String> {
     return string;
   }
 
+  /**
+   * Get results after the configured delay, or after the time (ms) given by the slowOnce
+   * parameter if this is the first call with the given q parameter.
+   */
   @Override
   public XJoinResults<String> getResults(SolrParams params) throws IOException {
+    long delay = this.delay;
+    String slowOnce = params != null ? params.get("slowOnce") : null;
+    if (slowOnce != null && slowed.add(params.get("q", ""))) {
+      delay = Long.parseLong(slowOnce);
+    }
+    if (delay > 0) {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
     return new Results();
   }
   
@@ -0,0 +1,167 @@
+package org.apache.solr.search.xjoin;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test HttpXJoinResultsFactory against a local stand-in HTTP server.
+ */
+public class TestHttpXJoinResultsFactory {
+
+  static final String ARRAY = "[ { \"id\": \"c\", \"score\": 0.5, \"name\": \"third\" },"
+                            + "  { \"id\": \"a\", \"score\": 2, \"nested\": { \"x\": [ 1, 2 ] } },"
+                            + "  { \"score\": 1.0 },"
+                            + "  { \"id\": \"b\", \"flag\": true, \"name\": null } ]";
+
+  static final String OBJECT = "{ \"count\": 3, \"results\": " + ARRAY + ", \"more\": [ \"x\" ] }";
+
+  HttpServer server;
+
+  // last query string received by the server
+  String query;
+
+  private void serve(final String body, final boolean gzip) throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/search", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        query = exchange.getRequestURI().getQuery();
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean compress = gzip && accept != null && accept.contains("gzip");
+        if (compress) {
+          exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = compress ? new GZIPOutputStream(exchange.getResponseBody()) : exchange.getResponseBody()) {
+          out.write(bytes);
+        }
+      }
+    });
+    server.start();
+  }
+
+  @Before
+  public void setUp() {
+    query = null;
+  }
+
+  @After
+  public void tearDown() {
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private HttpXJoinResultsFactory factory(boolean compression) {
+    NamedList args = new NamedList();
+    args.add(HttpXJoinResultsFactory.INIT_URL, "http://localhost:" + server.getAddress().getPort() + "/search");
+    args.add(HttpXJoinResultsFactory.INIT_COMPRESSION, compression);
+    HttpXJoinResultsFactory factory = new HttpXJoinResultsFactory();
+    factory.init(args);
+    return factory;
+  }
+
+  private void check(XJoinResults<String> results) {
+    assertEquals(Arrays.asList("a", "b", "c"), results.getJoinIds());
+
+    Map<?, ?> a = (Map<?, ?>)results.getResult("a");
+    assertEquals(2L, a.get("score"));
+    assertFalse(a.containsKey("nested"));
+    assertFalse(a.containsKey("name"));
+
+    Map<?, ?> b = (Map<?, ?>)results.getResult("b");
+    assertEquals(true, b.get("flag"));
+    assertEquals(1, b.size());
+
+    Map<?, ?> c = (Map<?, ?>)results.getResult("c");
+    assertEquals(0.5, c.get("score"));
+    assertEquals("third", c.get("name"));
+
+    assertNull(results.getResult("d"));
+  }
+
+  @Test
+  public void testArray() throws IOException {
+    serve(ARRAY, false);
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.add("q", "foobar");
+    check(factory(false).getResults(params));
+    assertEquals("q=foobar", query);
+  }
+
+  @Test
+  public void testObject() throws IOException {
+    serve(OBJECT, false);
+    check(factory(false).getResults(new ModifiableSolrParams()));
+  }
+
+  @Test
+  public void testCompression() throws IOException {
+    serve(OBJECT, true);
+    HttpXJoinResultsFactory factory = factory(true);
+    check(factory.getResults(new ModifiableSolrParams()));
+    // pooled connection is reused
+    check(factory.getResults(new ModifiableSolrParams()));
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void testClose() throws IOException {
+    serve(ARRAY, false);
+    HttpXJoinResultsFactory factory = factory(false);
+    check(factory.getResults(new ModifiableSolrParams()));
+    // the connection pool is shut down
+    factory.close();
+    factory.getResults(new ModifiableSolrParams());
+  }
+
+  @Test
+  @SuppressWarnings("rawtypes")
+  public void testFieldAppender() throws IOException {
+    serve(ARRAY, false);
+    XJoinResults<String> results = factory(false).getResults(new ModifiableSolrParams());
+    FieldAppender appender = new FieldAppender("name");
+    NamedList list = appender.addNamedList(new NamedList(), "doc", results.getResult("c"));
+    assertEquals(1, list.size());
+    assertEquals("third", list.get("name"));
+  }
+
+}
@@ -0,0 +1,56 @@
+package org.apache.solr.search.xjoin;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.Test;
+
+public class TestJoinIdBloomFilter extends AbstractXJoinTestCase {
+
+  @Test
+  public void testMightContain() throws Exception {
+    RefCounted<SolrIndexSearcher> ref = h.getCore().getSearcher();
+    try {
+      int present = 0;
+      int falsePositives = 0;
+      for (AtomicReaderContext context : ref.get().getTopReaderContext().leaves()) {
+        JoinIdBloomFilter filter = JoinIdBloomFilter.build(context.reader(), "id");
+        for (int i = 0; i < numberOfDocs; ++i) {
+          if (filter.mightContain(new BytesRef(Integer.toString(i)))) {
+            ++present;
+          }
+        }
+        for (int i = numberOfDocs; i < numberOfDocs + 1000; ++i) {
+          if (filter.mightContain(new BytesRef(Integer.toString(i)))) {
+            ++falsePositives;
+          }
+        }
+        assertFalse(JoinIdBloomFilter.build(context.reader(), "no_such_field").mightContain(new BytesRef("0")));
+      }
+      // no false negatives
+      assertTrue(present >= numberOfDocs);
+      assertTrue(falsePositives < 100);
+    } finally {
+      ref.decref();
+    }
+  }
+
+}
@@ -21,15 +21,21 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.DocSet;
+import org.apache.solr.search.PostFilter;
 import org.apache.solr.search.QParser;
 import org.apache.solr.search.QParserPlugin;
 import org.apache.solr.search.QueryParsing;
@@ -45,6 +51,7 @@ public class TestXJoinQParserPlugin extends AbstractXJoinTestCase {
   static final String COMPONENT_NAME_2 = "xjoin2";
   static final String COMPONENT_NAME_3 = "xjoin3";
   static final String PARSER_NAME = "xjoin";
+  static final String BLOOM_PARSER_NAME = "xjoin_bloom";
   
   static SolrCore core;
   static SolrQueryRequest req;
@@ -58,9 +65,16 @@ public class TestXJoinQParserPlugin extends AbstractXJoinTestCase {
   }
   
   private static Query parse(String v) throws SyntaxError {
-    ModifiableSolrParams localParams = new ModifiableSolrParams();
+    return parse(v, new ModifiableSolrParams());
+  }
+  
+  private static Query parse(String v, ModifiableSolrParams localParams) throws SyntaxError {
+    return parse(PARSER_NAME, v, localParams);
+  }
+  
+  private static Query parse(String parserName, String v, ModifiableSolrParams localParams) throws SyntaxError {
     localParams.add(QueryParsing.V, v);
-    QParserPlugin qpp = core.getQueryPlugin(PARSER_NAME);
+    QParserPlugin qpp = core.getQueryPlugin(parserName);
     QParser qp = qpp.createParser(null, localParams, null, req);
     return qp.parse();
   }
@@ -83,6 +97,7 @@ public class TestXJoinQParserPlugin extends AbstractXJoinTestCase {
     
     // get a search, used by some tests
     searcher = core.getRegisteredSearcher().get();
+    when(req.getSearcher()).thenReturn(searcher);
   }
   
   @AfterClass
@@ -116,6 +131,55 @@ public class TestXJoinQParserPlugin extends AbstractXJoinTestCase {
     assertFalse(it.hasNext());    
   }
   
+  @Test
+  public void testPostFilter() throws Exception {
+    ModifiableSolrParams localParams = new ModifiableSolrParams();
+    localParams.add(CommonParams.COST, "100");
+    Query q = parse(COMPONENT_NAME, localParams);
+    assertTrue(q instanceof PostFilter);
+
+    // as a post filter
+    DocSet docs = searcher.getDocSet(Arrays.asList(new MatchAllDocsQuery(), q));
+    assertEquals(2, docs.size());
+    DocIterator it = docs.iterator();
+    assertTrue(it.hasNext());
+    assertEquals(1, it.nextDoc());
+    assertTrue(it.hasNext());
+    assertEquals(3, it.nextDoc());
+    assertFalse(it.hasNext());
+    
+    // as a normal query
+    assertEquals(2, searcher.getDocSet(q).size());
+  }
+  
+  @Test
+  public void testBloomFilter() throws Exception {
+    // only the parser configured with a Bloom filter cache uses them
+    assertFalse(parse(COMPONENT_NAME).toString().contains("JoinIdTermsFilter"));
+    Query q = parse(BLOOM_PARSER_NAME, COMPONENT_NAME, new ModifiableSolrParams());
+    assertTrue(q.toString().contains("JoinIdTermsFilter"));
+
+    SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, new SolrQueryResponse()));
+    try {
+      DocSet docs = searcher.getDocSet(q);
+      assertEquals(2, docs.size());
+      DocIterator it = docs.iterator();
+      assertEquals(1, it.nextDoc());
+      assertEquals(3, it.nextDoc());
+      assertFalse(it.hasNext());
+      
+      // as a post filter
+      ModifiableSolrParams localParams = new ModifiableSolrParams();
+      localParams.add(CommonParams.COST, "100");
+      q = parse(BLOOM_PARSER_NAME, COMPONENT_NAME, localParams);
+      docs = searcher.getDocSet(Arrays.asList(new MatchAllDocsQuery(), q));
+      assertEquals(2, docs.size());
+      assertTrue(searcher.getCache("xjoinBloomFilters").size() > 0);
+    } finally {
+      SolrRequestInfo.clearRequestInfo();
+    }
+  }
+  
   @Test(expected=XJoinQParserPlugin.Exception.class)
   public void testConflictingJoinFields() throws Exception {
     parse(COMPONENT_NAME + " OR " + COMPONENT_NAME_3);
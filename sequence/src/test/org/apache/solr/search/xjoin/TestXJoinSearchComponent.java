@@ -21,7 +21,9 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
@@ -85,4 +87,109 @@ public class TestXJoinSearchComponent extends AbstractXJoinTestCase {
     assertFalse(it.hasNext());
   }
   
+  @SuppressWarnings("rawtypes")
+  private NamedList slowRequest(String q, Long timeAllowed) {
+    SolrCore core = h.getCore();
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.add("q", "*:*");
+    params.add("xjoin_slow.external.q", q);
+    if (timeAllowed != null) {
+      params.add("xjoin_slow.timeAllowed", timeAllowed.toString());
+    }
+
+    SolrQueryResponse rsp = new SolrQueryResponse();
+    rsp.add("responseHeader", new SimpleOrderedMap<>());
+    SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+    core.getRequestHandler("slow").handleRequest(req, rsp);
+    req.close();
+    return rsp.getValues();
+  }
+  
+  @Test
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public void testTimeAllowed() {
+    // within the configured time allowed
+    NamedList results = slowRequest("first", null);
+    assertNull(((NamedList)results.get("responseHeader")).get("partialResults"));
+    assertEquals(Arrays.asList("1", "3", "8"), ((NamedList)results.get("xjoin_slow")).get("join_ids"));
+    
+    // out of time, so the last results for the same parameters are used
+    results = slowRequest("first", 10L);
+    assertEquals(true, ((NamedList)results.get("responseHeader")).get("partialResults"));
+    assertEquals(Arrays.asList("1", "3", "8"), ((NamedList)results.get("xjoin_slow")).get("join_ids"));
+    
+    // out of time, and no previous results
+    results = slowRequest("second", 10L);
+    assertEquals(true, ((NamedList)results.get("responseHeader")).get("partialResults"));
+    assertTrue(((List)((NamedList)results.get("xjoin_slow")).get("join_ids")).isEmpty());
+  }
+  
+  @SuppressWarnings("rawtypes")
+  private NamedList hedgeRequest(String q, Long slowOnce) {
+    SolrCore core = h.getCore();
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.add("q", "*:*");
+    params.add("xjoin_hedge.external.q", q);
+    if (slowOnce != null) {
+      params.add("xjoin_hedge.external.slowOnce", slowOnce.toString());
+    }
+    params.add(CommonParams.DEBUG_QUERY, "true");
+
+    SolrQueryResponse rsp = new SolrQueryResponse();
+    rsp.add("responseHeader", new SimpleOrderedMap<>());
+    SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+    core.getRequestHandler("hedge").handleRequest(req, rsp);
+    req.close();
+    return rsp.getValues();
+  }
+  
+  @Test
+  @SuppressWarnings("rawtypes")
+  public void testHedge() {
+    // enough fast calls for hedging to start
+    for (int i = 0; i < 16; ++i) {
+      NamedList results = hedgeRequest("warm" + i, null);
+      assertEquals(0L, ((NamedList)((NamedList)results.get("debug")).get("xjoin_hedge")).get("hedges"));
+    }
+    
+    // the first call is slow, so a hedged call is made, and its results are used
+    long start = System.nanoTime();
+    NamedList results = hedgeRequest("slow", 5000L);
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertTrue("took " + elapsed + "ms", elapsed < 5000);
+    assertNull(((NamedList)results.get("responseHeader")).get("partialResults"));
+    assertEquals(Arrays.asList("1", "3", "8"), ((NamedList)results.get("xjoin_hedge")).get("join_ids"));
+    NamedList debug = (NamedList)((NamedList)results.get("debug")).get("xjoin_hedge");
+    assertEquals(1L, debug.get("hedges"));
+    assertEquals(0L, debug.get("cacheHits"));
+  }
+  
+  @Test
+  @SuppressWarnings("rawtypes")
+  public void testStatistics() {
+    SolrCore core = h.getCore();
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.add("q", "*:*");
+    params.add("fq", "{!xjoin}xjoin");
+    params.add(CommonParams.DEBUG_QUERY, "true");
+
+    SolrQueryResponse rsp = new SolrQueryResponse();
+    rsp.add("responseHeader", new SimpleOrderedMap<>());
+    SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+    core.getRequestHandler(requestHandler).handleRequest(req, rsp);
+    req.close();
+    
+    // per request
+    NamedList debug = (NamedList)((NamedList)rsp.getValues().get("debug")).get(componentName);
+    assertEquals(3L, debug.get("idsReturned"));
+    assertEquals(2L, debug.get("idsMatched"));
+    assertEquals(0L, debug.get("cacheHits"));
+    assertNotNull(debug.get("parseTime"));
+    
+    // cumulative
+    NamedList stats = core.getSearchComponent(componentName).getStatistics();
+    assertTrue((Long)stats.get("requests") > 0);
+    assertTrue((Long)((NamedList)stats.get("external")).get("count") > 0);
+  }
+  
 }
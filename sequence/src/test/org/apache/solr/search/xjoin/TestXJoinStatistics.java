@@ -0,0 +1,62 @@
+package org.apache.solr.search.xjoin;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+public class TestXJoinStatistics {
+
+  @Test
+  @SuppressWarnings("rawtypes")
+  public void sampledEvaluations() {
+    XJoinStatistics statistics = new XJoinStatistics();
+    XJoinStatistics.Request request = new XJoinStatistics.Request();
+    
+    // one in 64 evaluations is timed, and the total time estimated from those
+    int sampled = 0;
+    for (int i = 0; i < 128; ++i) {
+      if (request.addEvaluation()) {
+        request.addEvaluationSample(1000);
+        ++sampled;
+      }
+    }
+    assertEquals(2, sampled);
+    assertEquals(128000, request.getNanos(XJoinStatistics.Stage.valueSource));
+    assertEquals(128L, request.toNamedList().get("evaluations"));
+    
+    statistics.finish(request);
+    NamedList stats = statistics.toNamedList();
+    assertEquals(128L, stats.get("evaluations"));
+    assertEquals(1L, ((NamedList)stats.get("valueSource")).get("count"));
+  }
+  
+  @Test
+  public void firstEvaluationTimed() {
+    XJoinStatistics.Request request = new XJoinStatistics.Request();
+    assertTrue(request.addEvaluation());
+    request.addEvaluationSample(1000);
+    assertFalse(request.addEvaluation());
+    assertEquals(2000, request.getNanos(XJoinStatistics.Stage.valueSource));
+  }
+  
+}
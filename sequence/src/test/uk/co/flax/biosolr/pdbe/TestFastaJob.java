@@ -1,18 +1,35 @@
 package uk.co.flax.biosolr.pdbe;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.StringUtils;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import uk.ac.ebi.webservices.axis1.stubs.fasta.InputParameters;
 import uk.ac.ebi.webservices.axis1.stubs.fasta.JDispatcherService_PortType;
@@ -22,6 +39,9 @@ public class TestFastaJob {
 
 	private static final String RESULT_PATH = "result2";
 	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
 	@Test
 	public void parse() throws IOException, URISyntaxException {
 		byte[] result = Files.readAllBytes(Paths.get(TestFastaJob.class.getResource(RESULT_PATH).toURI()));
@@ -166,4 +186,143 @@ public class TestFastaJob {
 					 "1XS7_D,1SGZ_D,2P4J_C,3UFL_A,3CIB_A,3CIC_B,4FS4_B,3U6A_A,3CID_A", pdbIdChains);
 	}
 	
+	private FastaJob job(String... statuses) throws IOException, URISyntaxException {
+		byte[] result = Files.readAllBytes(Paths.get(TestFastaJob.class.getResource(RESULT_PATH).toURI()));
+		
+		JDispatcherService_PortType fasta = mock(JDispatcherService_PortType.class);
+		when(fasta.getStatus(null)).thenReturn(statuses[0], Arrays.copyOfRange(statuses, 1, statuses.length));
+		WsResultType[] types = new WsResultType[] { mock(WsResultType.class) };
+		when(fasta.getResultTypes(null)).thenReturn(types);
+		when(fasta.getResult(null, null, null)).thenReturn(result);
+		
+		InputParameters params = new InputParameters();
+		params.setSequence("<DUMMY>");
+		return new FastaJob(fasta, "sameer@ebi.ac.uk", params);
+	}
+	
+	@Test
+	public void submit() throws Exception {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			FastaJob job = job(FastaStatus.RUNNING, FastaStatus.RUNNING, FastaStatus.DONE);
+			CompletableFuture<FastaJobResults> future = job.submit(scheduler);
+			FastaJobResults results = future.get(10, TimeUnit.SECONDS);
+			assertEquals(504, results.getNumChains());
+			assertEquals(317, results.getNumEntries());
+			assertEquals(FastaStatus.DONE, job.getStatus());
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void submitFailure() throws Exception {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			CompletableFuture<FastaJobResults> future = job(FastaStatus.RUNNING, "ERROR").submit(scheduler);
+			try {
+				future.get(10, TimeUnit.SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void slowFetch() throws Exception {
+		final byte[] result = Files.readAllBytes(Paths.get(TestFastaJob.class.getResource(RESULT_PATH).toURI()));
+		JDispatcherService_PortType fasta = mock(JDispatcherService_PortType.class);
+		when(fasta.getStatus(null)).thenReturn(FastaStatus.DONE);
+		WsResultType[] types = new WsResultType[] { mock(WsResultType.class) };
+		when(fasta.getResultTypes(null)).thenReturn(types);
+		
+		// fetching this job's result blocks until released
+		final CountDownLatch release = new CountDownLatch(1);
+		FastaResultSource source = new FastaResultSource() {
+			@Override
+			public InputStream openResult(String jobId, String type) throws IOException {
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return new ByteArrayInputStream(result);
+			}
+		};
+		InputParameters params = new InputParameters();
+		params.setSequence("<DUMMY>");
+		
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			CompletableFuture<FastaJobResults> slow = new FastaJob(fasta, source, "sameer@ebi.ac.uk", params).submit(scheduler, executor);
+			
+			// the blocked fetch holds up no polling of other jobs
+			CompletableFuture<FastaJobResults> fast = job(FastaStatus.RUNNING, FastaStatus.RUNNING, FastaStatus.DONE).submit(scheduler, executor);
+			assertEquals(504, fast.get(10, TimeUnit.SECONDS).getNumChains());
+			assertFalse(slow.isDone());
+			
+			release.countDown();
+			assertEquals(504, slow.get(10, TimeUnit.SECONDS).getNumChains());
+		} finally {
+			release.countDown();
+			scheduler.shutdownNow();
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void shutDown() throws Exception {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.shutdown();
+		try {
+			// a job can't be run once the executor is shut down
+			CompletableFuture<FastaJobResults> future = job(FastaStatus.DONE).submit(scheduler, executor);
+			try {
+				future.get(10, TimeUnit.SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof RejectedExecutionException);
+			}
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void spool() throws Exception {
+		final byte[] result = Files.readAllBytes(Paths.get(TestFastaJob.class.getResource(RESULT_PATH).toURI()));
+		JDispatcherService_PortType fasta = mock(JDispatcherService_PortType.class);
+		WsResultType[] types = new WsResultType[] { mock(WsResultType.class) };
+		when(fasta.getResultTypes(null)).thenReturn(types);
+		
+		// count fetches, and give the result a few bytes at a time
+		final AtomicInteger fetches = new AtomicInteger();
+		FastaResultSource source = new FastaResultSource() {
+			@Override
+			public InputStream openResult(String jobId, String type) throws IOException {
+				fetches.incrementAndGet();
+				return new ByteArrayInputStream(result) {
+					@Override
+					public synchronized int read(byte[] b, int off, int len) {
+						return super.read(b, off, Math.min(len, 7));
+					}
+				};
+			}
+		};
+		
+		InputParameters params = new InputParameters();
+		params.setSequence("<DUMMY>");
+		FastaJob job = new FastaJob(fasta, source, "sameer@ebi.ac.uk", params);
+		job.setSpool(folder.newFile().toPath());
+		assertEquals(504, job.getResults().getNumChains());
+		assertArrayEquals(result, job.getRawResults());
+		assertArrayEquals(result, job.getRawResults());
+		assertEquals(1, fetches.get());
+	}
+	
 }
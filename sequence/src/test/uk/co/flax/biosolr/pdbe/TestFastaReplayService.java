@@ -0,0 +1,138 @@
+package uk.co.flax.biosolr.pdbe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.ac.ebi.webservices.axis1.stubs.fasta.InputParameters;
+
+public class TestFastaReplayService {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path dir;
+
+	private Path result;
+
+	private Path result2;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.newFolder().toPath();
+		result = Paths.get(TestFastaReplayService.class.getResource("result").toURI());
+		result2 = Paths.get(TestFastaReplayService.class.getResource("result2").toURI());
+		FastaReplayService.record(dir, "GEVASVPLTNYLDSQ", Files.newInputStream(result));
+	}
+
+	private InputParameters params(String sequence) {
+		InputParameters params = new InputParameters();
+		params.setSequence(sequence);
+		return params;
+	}
+
+	@Test
+	public void replay() throws Exception {
+		FastaReplayService replay = new FastaReplayService(dir, result2, 0, null);
+
+		// recordings are found by sequence, ignoring case and white space
+		String jobId = replay.run(null, "", params("gevasvpltn ylDSQ"));
+		assertEquals(FastaStatus.DONE, replay.getStatus(jobId));
+		assertEquals(FastaReplayService.RESULT_TYPE, replay.getResultTypes(jobId)[0].getIdentifier());
+		assertArrayEquals(Files.readAllBytes(result), replay.getResult(jobId, FastaReplayService.RESULT_TYPE, null));
+
+		// anything else gets the default
+		jobId = replay.run(null, "", params("KPLSIHYGTGSMQGI"));
+		assertArrayEquals(Files.readAllBytes(result2), replay.getResult(jobId, FastaReplayService.RESULT_TYPE, null));
+	}
+
+	@Test(expected=RemoteException.class)
+	public void noRecording() throws Exception {
+		new FastaReplayService(dir, null, 0, null).run(null, "", params("KPLSIHYGTGSMQGI"));
+	}
+
+	@Test
+	public void statuses() throws Exception {
+		FastaReplayService replay = new FastaReplayService(dir, null, 200, Arrays.asList(FastaStatus.RUNNING, "ERROR"));
+		String jobId = replay.run(null, "", params("GEVASVPLTNYLDSQ"));
+		assertEquals(FastaStatus.RUNNING, replay.getStatus(jobId));
+		Thread.sleep(300);
+		assertEquals(FastaStatus.RUNNING, replay.getStatus(jobId));
+		assertEquals("ERROR", replay.getStatus(jobId));
+		assertEquals("ERROR", replay.getStatus(jobId));
+	}
+
+	@Test
+	public void job() throws Exception {
+		FastaReplayService replay = new FastaReplayService(dir, null, 300, null);
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			long start = System.nanoTime();
+			FastaJob job = new FastaJob(replay, replay, "", params("GEVASVPLTNYLDSQ"));
+			FastaJobResults results = job.submit(scheduler).get(10, TimeUnit.SECONDS);
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+			assertEquals(73, results.getNumChains());
+
+			replay = new FastaReplayService(dir, null, 0, Arrays.asList("ERROR"));
+			try {
+				new FastaJob(replay, replay, "", params("GEVASVPLTNYLDSQ")).submit(scheduler).get(10, TimeUnit.SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+	@Test
+	public void forget() throws Exception {
+		FastaReplayService replay = new FastaReplayService(dir, result2, 0, null);
+
+		// jobs are forgotten once their output is fetched
+		String jobId = replay.run(null, "", params("GEVASVPLTNYLDSQ"));
+		assertEquals(1, replay.getNumJobs());
+		replay.openResult(jobId, FastaReplayService.RESULT_TYPE).close();
+		assertEquals(0, replay.getNumJobs());
+		try {
+			replay.getStatus(jobId);
+			fail();
+		} catch (RemoteException e) {
+			// expected
+		}
+
+		// or once they expire, if it never is
+		replay.run(null, "", params("GEVASVPLTNYLDSQ"));
+		long now = System.currentTimeMillis();
+		replay.expire(now);
+		assertEquals(1, replay.getNumJobs());
+		replay.expire(now + 2 * FastaReplayService.JOB_EXPIRY);
+		assertEquals(0, replay.getNumJobs());
+	}
+
+	@Test
+	public void record() throws Exception {
+		FastaReplayService.record(dir, "GEVASVPLTNYLDSQ", new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(FastaReplayService.getPath(dir, "GEVASVPLTNYLDSQ")));
+		assertEquals(1, dir.toFile().list().length);
+	}
+
+}
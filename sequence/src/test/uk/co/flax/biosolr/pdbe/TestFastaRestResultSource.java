@@ -0,0 +1,17 @@
+package uk.co.flax.biosolr.pdbe;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.junit.Test;
+
+public class TestFastaRestResultSource {
+
+	@Test(expected=IllegalStateException.class)
+	public void close() throws Exception {
+		FastaRestResultSource source = new FastaRestResultSource("http://localhost:1/fasta/", new ModifiableSolrParams());
+		source.close();
+
+		// no connections once the pool is shut down
+		source.openResult("job", FastaReplayService.RESULT_TYPE);
+	}
+
+}
@@ -0,0 +1,135 @@
+package uk.co.flax.biosolr.pdbe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.ac.ebi.webservices.axis1.stubs.fasta.InputParameters;
+import uk.ac.ebi.webservices.axis1.stubs.fasta.JDispatcherService_PortType;
+import uk.ac.ebi.webservices.axis1.stubs.fasta.WsResultType;
+
+public class TestFastaResultsCache {
+
+	private static final String RESULT_PATH = "result2";
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private FastaJobResults results;
+	
+	@Before
+	public void setUp() throws Exception {
+		byte[] result = Files.readAllBytes(Paths.get(TestFastaResultsCache.class.getResource(RESULT_PATH).toURI()));
+		JDispatcherService_PortType fasta = mock(JDispatcherService_PortType.class);
+		WsResultType[] types = new WsResultType[] { mock(WsResultType.class) };
+		when(fasta.getResultTypes(null)).thenReturn(types);
+		when(fasta.getResult(null, null, null)).thenReturn(result);
+		results = new FastaJob(fasta, "sameer@ebi.ac.uk", params("GEVASVPLTNYLDSQ")).getResults();
+	}
+	
+	private InputParameters params(String sequence) {
+		InputParameters params = new InputParameters();
+		params.setProgram("ssearch");
+		params.setDatabase(new String[] { "pdb" });
+		params.setStype("protein");
+        params.setSequence(sequence);
+        params.setExplowlim(0.0d);
+        params.setExpupperlim(1.0d);
+        params.setScores(1000);
+        params.setAlignments(1000);
+		return params;
+	}
+	
+	@Test
+	public void roundTrip() throws Exception {
+		FastaResultsCache cache = new FastaResultsCache(folder.getRoot().toPath(), 1 << 20, "1");
+		FastaJobKey key = new FastaJobKey(params("GEVASVPLTNYLDSQ"));
+		assertNull(cache.get(key));
+		cache.put(key, results);
+		
+		// sequence is normalised
+		FastaJobResults cached = cache.get(new FastaJobKey(params("gevasvpltn ylds\nq")));
+		assertNotNull(cached);
+		assertEquals(504, cached.getNumChains());
+		assertEquals(317, cached.getNumEntries());
+		assertEquals(results.getAlignments(true).keySet(), cached.getAlignments(true).keySet());
+		for (Alignment a : results.getAlignments(false).values()) {
+			Alignment c = cached.getAlignment(a.getPdbIdChain());
+			assertEquals(a.getEValue(), c.getEValue(), 0);
+			assertEquals(a.hasPercentIdentity(), c.hasPercentIdentity());
+			assertEquals(a.getQuerySequenceString(), c.getQuerySequenceString());
+			assertEquals(a.getReturnSequenceString(), c.getReturnSequenceString());
+			assertEquals(a.getDbOverlapEnd(), c.getDbOverlapEnd());
+		}
+		
+		// different parameters
+		assertNull(cache.get(new FastaJobKey(params("KPLSIHYGTGSMQGI"))));
+		
+		// persistent, but invalidated by a new version
+		assertNotNull(new FastaResultsCache(folder.getRoot().toPath(), 1 << 20, "1").get(key));
+		assertNull(new FastaResultsCache(folder.getRoot().toPath(), 1 << 20, "2").get(key));
+		assertNull(cache.get(key));
+	}
+	
+	@Test
+	public void eviction() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		FastaResultsCache cache = new FastaResultsCache(dir, 1 << 20, "1");
+		FastaJobKey key1 = new FastaJobKey(params("AAAA"));
+		cache.put(key1, results);
+		long size = Files.size(dir.resolve(key1.getDigest() + ".fasta"));
+		
+		// room for two entries
+		cache = new FastaResultsCache(dir, 2 * size + size / 2, "1");
+		FastaJobKey key2 = new FastaJobKey(params("CCCC"));
+		FastaJobKey key3 = new FastaJobKey(params("GGGG"));
+		cache.put(key2, results);
+		Files.setLastModifiedTime(dir.resolve(key1.getDigest() + ".fasta"), FileTime.fromMillis(1000));
+		Files.setLastModifiedTime(dir.resolve(key2.getDigest() + ".fasta"), FileTime.fromMillis(2000));
+		cache.put(key3, results);
+		
+		assertNull(cache.get(key1));
+		assertNotNull(cache.get(key2));
+		assertNotNull(cache.get(key3));
+		File[] files = folder.getRoot().listFiles();
+		assertTrue(files.length == 2);
+	}
+	
+	@Test
+	public void size() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		FastaResultsCache cache = new FastaResultsCache(dir, 1 << 20, "1");
+		assertEquals(0, cache.getSize());
+		FastaJobKey key1 = new FastaJobKey(params("AAAA"));
+		cache.put(key1, results);
+		long size = Files.size(dir.resolve(key1.getDigest() + ".fasta"));
+		assertEquals(size, cache.getSize());
+		
+		// replacing an entry doesn't change the size
+		cache.put(key1, results);
+		assertEquals(size, cache.getSize());
+		cache.put(new FastaJobKey(params("CCCC")), results);
+		assertEquals(2 * size, cache.getSize());
+		
+		// measured when opened, and entries from other versions are deleted when found
+		cache = new FastaResultsCache(dir, 1 << 20, "2");
+		assertEquals(2 * size, cache.getSize());
+		assertNull(cache.get(key1));
+		assertEquals(size, cache.getSize());
+	}
+	
+}
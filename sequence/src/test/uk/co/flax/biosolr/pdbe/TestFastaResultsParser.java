@@ -0,0 +1,70 @@
+package uk.co.flax.biosolr.pdbe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class TestFastaResultsParser {
+
+	private static final String OUTPUT =
+			"The best scores are:                                      s-w bits E(523190)\n" +
+			"PDB:1CZI_E mol:protein length:323  CHYMOSIN  ( 323) 2180 527.2 1.2e-148\n" +
+			"PRE_PDB:4RLD Entity 1                        ( 330)  492 123.5   4e-27\n" +
+			"PDB:2XYZ_A no e-value here\n" +
+			"\n" +
+			">>PDB:1CZI_E mol:protein length:323  CHYMOSIN  (323 aa)\n" +
+			" s-w opt: 2180  Z-score: 2797.9  bits: 527.2 E(523190): 1.2e-148\n" +
+			"Smith-Waterman score: 2180; 100.0% identity (100.0% similar) in 323 aa overlap (1-323:1-323)\n" +
+			"EMBOS  GEVASVPLTNYLDSQ\n" +
+			"PDB:1C GEVASVPLTNYLDSQ\n" +
+			"EMBOS  FGKIYLGTPPQEFTV\n" +
+			"PDB:1C FGKIYLGTPPQEFTV\n" +
+			">>PRE_PDB:4RLD Entity 1                        (330 aa)\n" +
+			"Smith-Waterman score: 492; 35.5% identity (60.1% similar) in 310 aa overlap (5-314:12-321)\n" +
+			"EMBOS  KIYLGTPP\n" +
+			"PRE_PD KLYIGSPP\n" +
+			">>PDB:1CZI_E mol:protein length:323  CHYMOSIN  (323 aa)\n" +
+			"Smith-Waterman score: 1; 1.0% identity (1.0% similar) in 1 aa overlap (9-9:9-9)\n" +
+			"EMBOS  XXXX\n";
+
+	@Test
+	public void parse() throws IOException {
+		FastaJobResults results = FastaResultsParser.parse(new BufferedReader(new StringReader(OUTPUT)));
+		assertEquals(2, results.getNumChains());
+
+		Alignment a = results.getAlignment("1CZI_E");
+		assertNotNull(a);
+		assertEquals("1CZI", a.getPdbId());
+		assertEquals("E", a.getChain());
+		assertEquals(1.2e-148, a.getEValue(), 0);
+		assertEquals(100.0, a.getPercentIdentity(), 0);
+		assertEquals(1, a.getQueryOverlapStart());
+		assertEquals(323, a.getQueryOverlapEnd());
+		assertEquals(1, a.getDbOverlapStart());
+		assertEquals(323, a.getDbOverlapEnd());
+
+		// the repeated details are ignored
+		assertEquals("GEVASVPLTNYLDSQFGKIYLGTPPQEFTV", a.getQuerySequenceString());
+		assertEquals("GEVASVPLTNYLDSQFGKIYLGTPPQEFTV", a.getReturnSequenceString());
+
+		Alignment e = results.getAlignment("4RLD_Entity");
+		assertNotNull(e);
+		assertEquals("4RLD", e.getPdbId());
+		assertEquals("Entity", e.getChain());
+		assertEquals(4e-27, e.getEValue(), 0);
+		assertEquals(35.5, e.getPercentIdentity(), 0);
+		assertEquals(5, e.getQueryOverlapStart());
+		assertEquals(321, e.getDbOverlapEnd());
+		assertEquals("KIYLGTPP", e.getQuerySequenceString());
+		assertEquals("KLYIGSPP", e.getReturnSequenceString());
+
+		assertNull(results.getAlignment("2XYZ_A"));
+	}
+
+}
@@ -0,0 +1,52 @@
+package uk.co.flax.biosolr.pdbe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestFastaXJoinResults {
+
+	@Test
+	public void index() {
+		Map<String, Alignment> alignments = new LinkedHashMap<>();
+		Alignment[] a = new Alignment[] {
+				new Alignment("1CZI", "E", 1e-100),
+				new Alignment("4RLD", "Entity", 1e-20),
+				new Alignment("1CZI", "A", 1e-10),
+				new Alignment("2ABC", "B", 1e-5)
+		};
+		for (Alignment alignment : a) {
+			alignments.put(alignment.getPdbIdChain(), alignment);
+		}
+		FastaXJoinResults results = new FastaXJoinResults(alignments);
+		
+		List<String> joinIds = new ArrayList<>();
+		for (String joinId : results.getJoinIds()) {
+			joinIds.add(joinId);
+		}
+		assertEquals(Arrays.asList("1czi_1", "1czi_5", "2abc_2", "4rld_entity"), joinIds);
+		assertSame(a[0], results.getResult("1czi_5"));
+		assertSame(a[1], results.getResult("4rld_entity"));
+		assertSame(a[2], results.getResult("1czi_1"));
+		assertSame(a[3], results.getResult("2abc_2"));
+		assertNull(results.getResult("1czi_2"));
+		assertNull(results.getResult("1czi"));
+		assertSame(results.getJoinIds(), results.getJoinIds());
+	}
+	
+	@Test(expected=UnsupportedOperationException.class)
+	public void immutable() {
+		Map<String, Alignment> alignments = new LinkedHashMap<>();
+		alignments.put("1CZI_E", new Alignment("1CZI", "E", 1e-100));
+		((List<String>)new FastaXJoinResults(alignments).getJoinIds()).set(0, "1czi_1");
+	}
+	
+}
@@ -0,0 +1,227 @@
+package uk.co.flax.biosolr.pdbe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.xjoin.XJoinResults;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestFastaXJoinResultsFactory {
+
+	private static final String RESULT_PATH = "result2";
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private FastaXJoinResultsFactory factory;
+	
+	@Before
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public void setUp() throws Exception {
+		NamedList args = new NamedList();
+		args.add(FastaXJoinResultsFactory.INIT_DEBUG_FILE, Paths.get(TestFastaXJoinResultsFactory.class.getResource(RESULT_PATH).toURI()).toString());
+		args.add(FastaXJoinResultsFactory.INIT_PROGRAM, "ssearch");
+		args.add(FastaXJoinResultsFactory.INIT_DATABASE, "pdb");
+		args.add(FastaXJoinResultsFactory.INIT_STYPE, "protein");
+		factory = new FastaXJoinResultsFactory();
+		factory.init(args);
+	}
+	
+	@After
+	public void tearDown() {
+		factory.close();
+	}
+	
+	private ModifiableSolrParams params(String sequence) {
+		ModifiableSolrParams params = new ModifiableSolrParams();
+		params.add(FastaXJoinResultsFactory.FASTA_SEQUENCE, sequence);
+		params.add(FastaXJoinResultsFactory.FASTA_EXPLOWLIM, "0.0");
+		params.add(FastaXJoinResultsFactory.FASTA_EXPUPPERLIM, "1.0");
+		params.add(FastaXJoinResultsFactory.FASTA_SCORES, "1000");
+		params.add(FastaXJoinResultsFactory.FASTA_ALIGNMENTS, "1000");
+		return params;
+	}
+	
+	@Test
+	public void coalescing() throws Exception {
+		CompletableFuture<XJoinResults<String>> f1 = factory.getResultsAsync(params("GEVASVPLTNYLDSQ"));
+		CompletableFuture<XJoinResults<String>> f2 = factory.getResultsAsync(params("GEVASVPLTNYLDSQ"));
+		CompletableFuture<XJoinResults<String>> f3 = factory.getResultsAsync(params("KPLSIHYGTGSMQGI"));
+		
+		// identical searches share job results (so alignments), different ones don't
+		Object a1 = f1.get(10, TimeUnit.SECONDS).getResult("1czi_5");
+		Object a2 = f2.get(10, TimeUnit.SECONDS).getResult("1czi_5");
+		Object a3 = f3.get(10, TimeUnit.SECONDS).getResult("1czi_5");
+		assertNotNull(a1);
+		assertSame(a1, a2);
+		assertNotSame(a1, a3);
+		
+		// a finished job is not shared
+		Object a4 = factory.getResults(params("GEVASVPLTNYLDSQ")).getResult("1czi_5");
+		assertNotSame(a1, a4);
+	}
+	
+	private static List<String> list(Iterable<String> joinIds) {
+		List<String> list = new ArrayList<>();
+		for (String joinId : joinIds) {
+			list.add(joinId);
+		}
+		return list;
+	}
+	
+	// recorded output for two queries: 1CZI_E is found by both (better by the second),
+	// 4AUC_A only by the first and 1CMS_A only by the second
+	private static final String OUTPUT1 =
+			"The best scores are:                                      s-w bits E(523190)\n" +
+			"PDB:1CZI_E mol:protein length:323  CHYMOSIN  ( 323)  101  30.2 1.5e-10\n" +
+			"PDB:4AUC_A mol:protein length:323  CHYMOSIN  ( 323)   98  29.1   3e-08\n" +
+			"\n" +
+			">>PDB:1CZI_E mol:protein length:323  CHYMOSIN  (323 aa)\n" +
+			"Smith-Waterman score: 101; 86.7% identity (93.3% similar) in 15 aa overlap (1-15:1-15)\n" +
+			"EMBOS  GEVASVPLTNYLDSQ\n" +
+			"PDB:1C GEVASVPLTNYLDAA\n" +
+			">>PDB:4AUC_A mol:protein length:323  CHYMOSIN  (323 aa)\n" +
+			"Smith-Waterman score: 98; 80.0% identity (86.7% similar) in 15 aa overlap (1-15:1-15)\n" +
+			"EMBOS  GEVASVPLTNYLDSQ\n" +
+			"PDB:4A GEVASVPLTNYLAAA\n";
+	
+	private static final String OUTPUT2 =
+			"The best scores are:                                      s-w bits E(523190)\n" +
+			"PDB:1CZI_E mol:protein length:323  CHYMOSIN  ( 323)  150  45.0 1.2e-20\n" +
+			"PDB:1CMS_A mol:protein length:323  PROCHYMOSIN A/B ( 323)  90  27.0   4e-07\n" +
+			"\n" +
+			">>PDB:1CZI_E mol:protein length:323  CHYMOSIN  (323 aa)\n" +
+			"Smith-Waterman score: 150; 100.0% identity (100.0% similar) in 15 aa overlap (21-35:21-35)\n" +
+			"EMBOS  KPLSIHYGTGSMQGI\n" +
+			"PDB:1C KPLSIHYGTGSMQGI\n" +
+			">>PDB:1CMS_A mol:protein length:323  PROCHYMOSIN A/B  (323 aa)\n" +
+			"Smith-Waterman score: 90; 73.3% identity (80.0% similar) in 15 aa overlap (21-35:21-35)\n" +
+			"EMBOS  KPLSIHYGTGSMQGI\n" +
+			"PDB:1C KPLSIHYAAASMQAA\n";
+	
+	@Test
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public void batch() throws Exception {
+		Path dir = folder.newFolder().toPath();
+		FastaReplayService.record(dir, "GEVASVPLTNYLDSQ", new ByteArrayInputStream(OUTPUT1.getBytes(StandardCharsets.UTF_8)));
+		FastaReplayService.record(dir, "KPLSIHYGTGSMQGI", new ByteArrayInputStream(OUTPUT2.getBytes(StandardCharsets.UTF_8)));
+		NamedList args = new NamedList();
+		args.add(FastaXJoinResultsFactory.INIT_REPLAY_DIR, dir.toString());
+		args.add(FastaXJoinResultsFactory.INIT_PROGRAM, "ssearch");
+		args.add(FastaXJoinResultsFactory.INIT_DATABASE, "pdb");
+		args.add(FastaXJoinResultsFactory.INIT_STYPE, "protein");
+		FastaXJoinResultsFactory replay = new FastaXJoinResultsFactory();
+		replay.init(args);
+		try {
+			ModifiableSolrParams params = params("GEVASVPLTNYLDSQ");
+			params.add(FastaXJoinResultsFactory.FASTA_SEQUENCE, "KPLSIHYGTGSMQGI");
+			
+			XJoinResults<String> union = replay.getResults(params);
+			assertEquals(Arrays.asList("1cms_1", "1czi_5", "4auc_1"), list(union.getJoinIds()));
+			BatchAlignment first = (BatchAlignment)union.getResult("4auc_1");
+			assertEquals(Arrays.asList(0), first.getQueries());
+			assertEquals(Arrays.asList(3e-8), first.getQueryEValues());
+			BatchAlignment second = (BatchAlignment)union.getResult("1cms_1");
+			assertEquals(Arrays.asList(1), second.getQueries());
+			assertEquals(Arrays.asList(4e-7), second.getQueryEValues());
+			
+			// the best alignment is from the second query, but both queries are listed
+			BatchAlignment both = (BatchAlignment)union.getResult("1czi_5");
+			assertEquals(Arrays.asList(0, 1), both.getQueries());
+			assertEquals(Arrays.asList(1.5e-10, 1.2e-20), both.getQueryEValues());
+			assertEquals(1.2e-20, both.getEValue(), 0);
+			assertEquals(100.0, both.getPercentIdentity(), 0);
+			assertEquals(21, both.getQueryOverlapStart());
+			assertEquals("KPLSIHYGTGSMQGI", both.getReturnSequenceString());
+			
+			params.set(FastaXJoinResultsFactory.FASTA_COMBINE, FastaXJoinResultsFactory.COMBINE_INTERSECTION);
+			XJoinResults<String> intersection = replay.getResults(params);
+			assertEquals(Arrays.asList("1czi_5"), list(intersection.getJoinIds()));
+			assertNull(intersection.getResult("4auc_1"));
+			assertNull(intersection.getResult("1cms_1"));
+			both = (BatchAlignment)intersection.getResult("1czi_5");
+			assertEquals(Arrays.asList(0, 1), both.getQueries());
+			assertEquals(1.2e-20, both.getEValue(), 0);
+		} finally {
+			replay.close();
+		}
+	}
+	
+	@Test
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public void close() throws Exception {
+		NamedList args = new NamedList();
+		args.add(FastaXJoinResultsFactory.INIT_DEBUG_FILE, Paths.get(TestFastaXJoinResultsFactory.class.getResource(RESULT_PATH).toURI()).toString());
+		args.add(FastaXJoinResultsFactory.INIT_REPLAY_LATENCY, 10000L);
+		FastaXJoinResultsFactory slow = new FastaXJoinResultsFactory();
+		slow.init(args);
+		
+		// closing the factory fails searches waiting for jobs
+		CompletableFuture<XJoinResults<String>> future = slow.getResultsAsync(params("GEVASVPLTNYLDSQ"));
+		slow.close();
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException | CancellationException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public void cancel() throws Exception {
+		NamedList args = new NamedList();
+		args.add(FastaXJoinResultsFactory.INIT_DEBUG_FILE, Paths.get(TestFastaXJoinResultsFactory.class.getResource(RESULT_PATH).toURI()).toString());
+		args.add(FastaXJoinResultsFactory.INIT_REPLAY_LATENCY, 10000L);
+		FastaXJoinResultsFactory slow = new FastaXJoinResultsFactory();
+		slow.init(args);
+		try {
+			// cancelling the only search waiting for a job releases the job
+			CompletableFuture<XJoinResults<String>> future = slow.getResultsAsync(params("GEVASVPLTNYLDSQ"));
+			assertEquals(1, slow.getJobsInFlight());
+			future.cancel(true);
+			assertEquals(0, slow.getJobsInFlight());
+			
+			// likewise for a batch
+			ModifiableSolrParams params = params("GEVASVPLTNYLDSQ");
+			params.add(FastaXJoinResultsFactory.FASTA_SEQUENCE, "KPLSIHYGTGSMQGI");
+			future = slow.getResultsAsync(params);
+			assertEquals(2, slow.getJobsInFlight());
+			future.cancel(true);
+			assertEquals(0, slow.getJobsInFlight());
+		} finally {
+			slow.close();
+		}
+	}
+	
+	@Test(expected=RuntimeException.class)
+	public void badCombine() throws Exception {
+		ModifiableSolrParams params = params("GEVASVPLTNYLDSQ");
+		params.add(FastaXJoinResultsFactory.FASTA_SEQUENCE, "KPLSIHYGTGSMQGI");
+		params.add(FastaXJoinResultsFactory.FASTA_COMBINE, "both");
+		factory.getResults(params);
+	}
+	
+}
@@ -0,0 +1,77 @@
+package uk.co.flax.biosolr.pdbe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestKmerIndex {
+
+	private static final String QUERY = "GEVASVPLTNYLDSQYFGKIYLGTPPQEFTV";
+	
+	private Path file;
+	
+	private Path indexFile;
+	
+	private SequenceDatabase database;
+	
+	@Before
+	public void setUp() throws IOException {
+		file = Files.createTempFile("seqres", ".txt");
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+			// 0: unrelated, 1: the query with an insertion, 2: some query 3-mers, but
+			// scattered, 3: the query
+			writer.write(">1aaa_A mol:protein length:20  A\nWWWWWWWWWWWWWWWWWWWW\n");
+			writer.write(">1bbb_A mol:protein length:38  B\nGEVASVPLTNYLDSQKKKKKKKYFGKIYLGTPPQEFTV\n");
+			writer.write(">1ccc_A mol:protein length:30  C\nGEVWWWSVPWWWNYLWWWSQYWWWTPPWWW\n");
+			writer.write(">1ddd_A mol:protein length:31  D\n" + QUERY + "\n");
+		}
+		database = SequenceDatabase.load(file);
+		indexFile = Files.createTempFile("seqres", ".idx");
+		KmerIndex.build(database, indexFile);
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+		Files.deleteIfExists(indexFile);
+	}
+	
+	@Test
+	public void candidates() throws IOException {
+		KmerIndex index = KmerIndex.load(database, indexFile);
+		byte[] query = Blosum50.encode(QUERY);
+		
+		// sequences are returned in order, and those with no 3-mers in common never are
+		assertArrayEquals(new int[] { 1, 2, 3 }, index.getCandidates(query, 10));
+		
+		// hits on one diagonal count for more than hits on many
+		assertArrayEquals(new int[] { 1, 3 }, index.getCandidates(query, 2));
+		assertArrayEquals(new int[] { 3 }, index.getCandidates(query, 1));
+		assertEquals(0, index.getCandidates(Blosum50.encode("XXXXX"), 10).length);
+	}
+	
+	@Test
+	public void wrongDatabase() throws IOException {
+		Path other = Files.createTempFile("seqres", ".txt");
+		try {
+			Files.write(other, ">1aaa_A mol:protein length:5  A\nWWWWW\n".getBytes(StandardCharsets.US_ASCII));
+			KmerIndex.load(SequenceDatabase.load(other), indexFile);
+			fail("Index loaded for the wrong database");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			Files.deleteIfExists(other);
+		}
+	}
+	
+}
@@ -0,0 +1,61 @@
+package uk.co.flax.biosolr.pdbe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.junit.Test;
+
+public class TestKmerTokenizer {
+
+	private static void assertTokens(Tokenizer tokenizer, String[] terms, int[] starts, int[] ends) throws IOException {
+		CharTermAttribute termAtt = tokenizer.getAttribute(CharTermAttribute.class);
+		OffsetAttribute offsetAtt = tokenizer.getAttribute(OffsetAttribute.class);
+		tokenizer.reset();
+		for (int i = 0; i < terms.length; ++i) {
+			assertTrue(tokenizer.incrementToken());
+			assertEquals(terms[i], termAtt.toString());
+			assertEquals(starts[i], offsetAtt.startOffset());
+			assertEquals(ends[i], offsetAtt.endOffset());
+		}
+		assertFalse(tokenizer.incrementToken());
+		tokenizer.end();
+		tokenizer.close();
+	}
+	
+	@Test
+	public void kmers() throws IOException {
+		assertTokens(new KmerTokenizer(new StringReader("MKTAY"), 3),
+				new String[] { "MKT", "KTA", "TAY" }, new int[] { 0, 1, 2 }, new int[] { 3, 4, 5 });
+	}
+	
+	@Test
+	public void skipsWhiteSpace() throws IOException {
+		// upper cased, and offsets span skipped characters
+		assertTokens(new KmerTokenizer(new StringReader("mk\nta y"), 3),
+				new String[] { "MKT", "KTA", "TAY" }, new int[] { 0, 1, 3 }, new int[] { 4, 5, 7 });
+	}
+	
+	@Test
+	public void shortSequence() throws IOException {
+		assertTokens(new KmerTokenizer(new StringReader("ACGT"), 5), new String[0], new int[0], new int[0]);
+	}
+	
+	@Test
+	public void factory() throws IOException {
+		Map<String, String> args = new HashMap<>();
+		args.put("k", "2");
+		KmerTokenizerFactory factory = new KmerTokenizerFactory(args);
+		assertTokens(factory.create(new StringReader("ACGT")),
+				new String[] { "AC", "CG", "GT" }, new int[] { 0, 1, 2 }, new int[] { 2, 3, 4 });
+	}
+	
+}
@@ -0,0 +1,58 @@
+package uk.co.flax.biosolr.pdbe;
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestSequenceSearch extends SolrTestCaseJ4 {
+
+	private static final String QUERY = "GEVASVPLTNYLDSQYFGKIYLGTPPQEFTVLFDTGSSDFWVPS";
+	
+	// every fourth residue changed: fewer 3-mers in common, but a good alignment
+	private static final String MUTATED = "GEVWSVPATNYADSQAFGKAYLGAPPQAFTVAFDTASSDAWVPA";
+	
+	// the query's 3-mers, in reverse order: many 3-mers in common, but a poor alignment
+	private static final String SHUFFLED = "VPSDFWGSSFDTTVLQEFTPPYLGGKIQYFLDSTNYVPLVAS";
+	
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		initCore("solrconfig.xml", "schema.xml", "xjoin/solr");
+		
+		assertNull(h.validateUpdate(adoc("id", "1", "colour", "red", "sequence", QUERY)));
+		assertNull(h.validateUpdate(adoc("id", "2", "colour", "red", "sequence", MUTATED)));
+		assertNull(h.validateUpdate(adoc("id", "3", "colour", "red", "sequence", SHUFFLED)));
+		assertNull(h.validateUpdate(adoc("id", "4", "colour", "red", "sequence", "WWWWWWWWWWWWWWW")));
+		assertNull(h.validateUpdate(adoc("id", "5", "colour", "red")));
+		assertNull(h.validateUpdate(commit()));
+	}
+	
+	@Test
+	public void kmers() {
+		assertQ(req("q", "{!sequence f=sequence_kmers}" + QUERY, "fl", "id"),
+				"//*[@numFound='3']");
+		assertQ(req("q", "{!sequence f=sequence_kmers mm=100%}" + QUERY, "fl", "id"),
+				"//*[@numFound='1']",
+				"//result/doc[1]/str[@name='id'][.='1']");
+	}
+	
+	@Test
+	public void rerank() {
+		assertQ(req("q", "{!sequence f=sequence_kmers v=$seq}", "seq", QUERY,
+				    "rq", "{!rerank reRankQuery=$rrq reRankDocs=10 reRankWeight=1}",
+				    "rrq", "{!func}alignment(sequence,$seq)", "fl", "id"),
+				"//*[@numFound='3']",
+				"//result/doc[1]/str[@name='id'][.='1']",
+				"//result/doc[2]/str[@name='id'][.='2']",
+				"//result/doc[3]/str[@name='id'][.='3']");
+	}
+	
+	@Test
+	public void alignmentFunction() {
+		byte[] query = Blosum50.encode(QUERY);
+		int score = new SmithWaterman(query, SmithWaterman.DEFAULT_GAP_OPEN, SmithWaterman.DEFAULT_GAP_EXTEND).score(query, 0, query.length);
+		assertQ(req("q", "id:1", "seq", QUERY, "fl", "id,sw:alignment(sequence,$seq),identity:alignment(sequence,$seq,percent_identity)"),
+				"//result/doc[1]/double[@name='sw'][.='" + (double)score + "']",
+				"//result/doc[1]/double[@name='identity'][.='100.0']");
+	}
+	
+}
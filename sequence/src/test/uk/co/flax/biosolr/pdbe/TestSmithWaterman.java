@@ -0,0 +1,100 @@
+package uk.co.flax.biosolr.pdbe;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestSmithWaterman {
+
+	private static final String RESULT_PATH = "result2";
+	
+	private static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+	
+	// plain (unstriped) Smith-Waterman with affine gaps, for comparison
+	private static int score(byte[] query, byte[] db, int gapOpen, int gapExtend) {
+		int negative = -1000000;
+		int[][] h = new int[query.length + 1][db.length + 1];
+		int[][] e = new int[query.length + 1][db.length + 1];
+		int[][] f = new int[query.length + 1][db.length + 1];
+		for (int i = 0; i <= query.length; ++i) {
+			e[i][0] = f[i][0] = negative;
+		}
+		for (int j = 0; j <= db.length; ++j) {
+			e[0][j] = f[0][j] = negative;
+		}
+		int best = 0;
+		for (int i = 1; i <= query.length; ++i) {
+			for (int j = 1; j <= db.length; ++j) {
+				e[i][j] = Math.max(h[i][j - 1] - gapOpen - gapExtend, e[i][j - 1] - gapExtend);
+				f[i][j] = Math.max(h[i - 1][j] - gapOpen - gapExtend, f[i - 1][j] - gapExtend);
+				h[i][j] = Math.max(Math.max(0, h[i - 1][j - 1] + Blosum50.score(query[i - 1], db[j - 1])), Math.max(e[i][j], f[i][j]));
+				best = Math.max(best, h[i][j]);
+			}
+		}
+		return best;
+	}
+	
+	private static String random(Random random, int length) {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < length; ++i) {
+			s.append(RESIDUES.charAt(random.nextInt(RESIDUES.length())));
+		}
+		return s.toString();
+	}
+	
+	@Test
+	public void striped() {
+		Random random = new Random(42);
+		for (int n = 0; n < 1000; ++n) {
+			String query = random(random, 1 + random.nextInt(60));
+			
+			// mutate the query, with insertions, to get gapped alignments
+			StringBuilder db = new StringBuilder(random(random, random.nextInt(10)));
+			for (int i = 0; i < query.length(); ++i) {
+				db.append(random.nextInt(5) == 0 ? random(random, 1) : query.substring(i, i + 1));
+				if (random.nextInt(10) == 0) {
+					db.append(random(random, 1 + random.nextInt(4)));
+				}
+			}
+			
+			byte[] q = Blosum50.encode(query);
+			byte[] d = Blosum50.encode(db);
+			SmithWaterman sw = new SmithWaterman(q, 10, 2);
+			int expected = score(q, d, 10, 2);
+			assertEquals(query + " " + db, expected, sw.score(d, 0, d.length));
+			assertEquals(query + " " + db, expected, sw.align(d, 0, d.length, new Alignment("1ABC", "A", 0)));
+		}
+	}
+	
+	@Test
+	public void ssearch() throws IOException {
+		// compare with the scores, identities and overlaps in ssearch output
+		FastaJobResults results;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(TestSmithWaterman.class.getResourceAsStream(RESULT_PATH)))) {
+			results = FastaResultsParser.parse(reader);
+		}
+		byte[] query = Blosum50.encode(results.getAlignment("1CZI_E").getQuerySequenceString());
+		SmithWaterman sw = new SmithWaterman(query, 10, 2);
+		assertEquals(2180, sw.score(query, 0, query.length));
+		
+		String[] pdbIdChains = { "3CMS_A", "4AA9_A", "1QRP_E", "3CIB_B" };
+		int[] scores = { 2174, 1885, 1303, 335 };
+		for (int i = 0; i < pdbIdChains.length; ++i) {
+			Alignment expected = results.getAlignment(pdbIdChains[i]);
+			byte[] db = Blosum50.encode(expected.getReturnSequenceString().replace("-", ""));
+			assertEquals(scores[i], sw.score(db, 0, db.length));
+			
+			Alignment a = new Alignment(expected.getPdbId(), expected.getChain(), expected.getEValue());
+			assertEquals(scores[i], sw.align(db, 0, db.length, a));
+			assertEquals(expected.getPercentIdentity(), a.getPercentIdentity(), 0);
+			assertEquals(expected.getQueryOverlapStart(), a.getQueryOverlapStart());
+			assertEquals(expected.getQueryOverlapEnd(), a.getQueryOverlapEnd());
+		}
+	}
+	
+}
@@ -0,0 +1,154 @@
+package uk.co.flax.biosolr.pdbe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.xjoin.XJoinResults;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSmithWatermanXJoinResultsFactory {
+
+	private static final String RESULT_PATH = "result2";
+	
+	private static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+	
+	// number of unrelated sequences in the database
+	private static final int RANDOM_SEQUENCES = 2000;
+	
+	private Path file;
+	
+	private Path indexFile;
+	
+	private String query;
+	
+	private SmithWatermanXJoinResultsFactory factory;
+	
+	@Before
+	public void setUp() throws IOException {
+		// real sequences from the ssearch output, and random ones (with a DNA entry, which
+		// should be skipped)
+		FastaJobResults results;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(TestSmithWatermanXJoinResultsFactory.class.getResourceAsStream(RESULT_PATH)))) {
+			results = FastaResultsParser.parse(reader);
+		}
+		query = results.getAlignment("1CZI_E").getQuerySequenceString();
+		
+		Random random = new Random(42);
+		file = Files.createTempFile("seqres", ".txt");
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+			writer.write(">1abc_A mol:na length:12  DNA\nACGTACGTACGT\n");
+			for (String pdbIdChain : new String[] { "1CZI_E", "4AA9_A", "1QRP_E", "3CIB_B" }) {
+				Alignment a = results.getAlignment(pdbIdChain);
+				writer.write(">" + a.getPdbId().toLowerCase() + "_" + a.getChain() + " mol:protein length:0  TEST\n");
+				writer.write(a.getReturnSequenceString().replace("-", "") + "\n");
+			}
+			for (int i = 0; i < RANDOM_SEQUENCES; ++i) {
+				int length = 100 + random.nextInt(300);
+				writer.write(String.format(">%04d_A mol:protein length:%d  RANDOM\n", 1000 + i, length));
+				for (int j = 0; j < length; ++j) {
+					writer.write(RESIDUES.charAt(random.nextInt(RESIDUES.length())));
+				}
+				writer.write("\n");
+			}
+		}
+		
+		indexFile = Files.createTempFile("seqres", ".idx");
+		KmerIndex.build(SequenceDatabase.load(file), indexFile);
+		
+		factory = factory(false);
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private SmithWatermanXJoinResultsFactory factory(boolean index) {
+		NamedList args = new NamedList();
+		args.add(SmithWatermanXJoinResultsFactory.INIT_DATABASE_FILE, file.toString());
+		args.add(SmithWatermanXJoinResultsFactory.INIT_THREADS, 2);
+		if (index) {
+			args.add(SmithWatermanXJoinResultsFactory.INIT_INDEX_FILE, indexFile.toString());
+			args.add(SmithWatermanXJoinResultsFactory.INIT_CANDIDATES, 20);
+			args.add(SmithWatermanXJoinResultsFactory.INIT_SAMPLE_SIZE, 500);
+		}
+		SmithWatermanXJoinResultsFactory factory = new SmithWatermanXJoinResultsFactory();
+		factory.init(args);
+		return factory;
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		factory.close();
+		Files.deleteIfExists(file);
+		Files.deleteIfExists(indexFile);
+	}
+	
+	@Test
+	public void search() throws IOException {
+		check(factory);
+	}
+	
+	@Test
+	public void searchWithIndex() throws IOException {
+		SmithWatermanXJoinResultsFactory indexed = factory(true);
+		try {
+			check(indexed);
+		} finally {
+			indexed.close();
+		}
+	}
+	
+	@Test(expected=RejectedExecutionException.class)
+	public void close() throws IOException {
+		SmithWatermanXJoinResultsFactory closed = factory(false);
+		closed.close();
+		closed.search(Blosum50.encode(query), 0.0, 0.001, 1000, 1000);
+	}
+	
+	private void check(SmithWatermanXJoinResultsFactory factory) throws IOException {
+		ModifiableSolrParams params = new ModifiableSolrParams();
+		params.add(FastaXJoinResultsFactory.FASTA_SEQUENCE, query);
+		params.add(FastaXJoinResultsFactory.FASTA_EXPLOWLIM, "0.0");
+		params.add(FastaXJoinResultsFactory.FASTA_EXPUPPERLIM, "0.001");
+		params.add(FastaXJoinResultsFactory.FASTA_SCORES, "1000");
+		params.add(FastaXJoinResultsFactory.FASTA_ALIGNMENTS, "1000");
+		XJoinResults<String> results = factory.getResults(params);
+		
+		// the real sequences are found, the random ones aren't
+		Iterator<String> it = results.getJoinIds().iterator();
+		assertEquals("1czi_5", it.next());
+		assertEquals("1qrp_5", it.next());
+		assertEquals("3cib_2", it.next());
+		assertEquals("4aa9_1", it.next());
+		assertTrue(! it.hasNext());
+		
+		Alignment self = (Alignment)results.getResult("1czi_5");
+		assertNotNull(self);
+		assertEquals(100.0, self.getPercentIdentity(), 0);
+		assertEquals(1, self.getQueryOverlapStart());
+		assertEquals(323, self.getQueryOverlapEnd());
+		assertEquals(query, self.getQuerySequenceString());
+		assertEquals(query, self.getReturnSequenceString());
+		
+		Alignment a = (Alignment)results.getResult("3cib_2");
+		assertEquals(26.9, a.getPercentIdentity(), 0);
+		assertTrue(self.getEValue() < a.getEValue());
+		
+		assertNull(results.getResult("1000_1"));
+	}
+	
+}
@@ -18,6 +18,7 @@ package uk.co.flax.biosolr;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -31,18 +32,24 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause.Occur;
-import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.queries.TermsFilter;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.lucene.util.IntsRef;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.DocSet;
@@ -63,26 +70,56 @@ public class FacetTreeGenerator {
 	private final String childField;
 	private final String labelField;
 	private final int maxLevels;
-	
-	private final Set<String> docFields;
-	
-	private Map<String, String> labels = new HashMap<>();
+	private final String facetField;
+	private final String ancestorField;
 	
 	public FacetTreeGenerator(String collection, String nodeField, String childField, String labelField, int maxLevels) {
+		this(collection, nodeField, childField, labelField, maxLevels, null, null);
+	}
+	
+	/**
+	 * Construct a generator which can count the distinct documents below each
+	 * node exactly, using the ancestors of each document's facet values.
+	 * @param collection the collection holding the hierarchy, or <code>null</code>
+	 * for the current collection.
+	 * @param nodeField the hierarchy's node ID field.
+	 * @param childField the hierarchy's child ID field.
+	 * @param labelField the hierarchy's label field (optional).
+	 * @param maxLevels the maximum number of levels of parents to find, or
+	 * <code>0</code> for all of them.
+	 * @param facetField the field being faceted in the current collection.
+	 * @param ancestorField a field in the current collection holding the IDs of
+	 * all the ancestors of the document's facet field values, or <code>null</code>
+	 * to total the counts of each node's children instead.
+	 */
+	public FacetTreeGenerator(String collection, String nodeField, String childField, String labelField, int maxLevels,
+			String facetField, String ancestorField) {
 		this.collection = collection;
 		this.nodeField = nodeField;
 		this.childField = childField;
 		this.labelField = labelField;
 		this.maxLevels = maxLevels;
-		
-		docFields = new HashSet<String>(Arrays.asList(nodeField, childField));
-		if (labelField != null && StringUtils.isNotBlank(labelField)) {
-			docFields.add(labelField);
-		}
+		this.facetField = facetField;
+		this.ancestorField = ancestorField;
 	}
 	
 	
 	public List<SimpleOrderedMap<Object>> generateTree(ResponseBuilder rb, NamedList<Integer> facetValues) throws IOException {
+		return generateTree(rb, facetValues, null);
+	}
+	
+	/**
+	 * Generate the facet trees for a set of facet values.
+	 * @param rb the response builder.
+	 * @param facetValues the facet values.
+	 * @param docs the documents the facet values were counted over, used to count
+	 * the exact totals if there is an ancestor field, or <code>null</code> (eg. for
+	 * merged distributed counts) to total the counts of each node's children.
+	 * @return the facet trees.
+	 * @throws IOException
+	 */
+	public List<SimpleOrderedMap<Object>> generateTree(ResponseBuilder rb, NamedList<Integer> facetValues, DocSet docs)
+			throws IOException {
 		List<SimpleOrderedMap<Object>> retVal = null;
 		
 		// First get the searcher for the required collection
@@ -92,7 +129,19 @@ public class FacetTreeGenerator {
 			// Make sure all the fields are in the searcher's schema
 			validateFields(searcherRef.get());
 
-			List<TreeFacetField> fTrees = processFacetTree(searcherRef.get(), extractFacetValues(facetValues));
+			DocSet totalDocs = null;
+			if (ancestorField != null && docs != null) {
+				if (rb.req.getSchema().getFieldOrNull(ancestorField) == null) {
+					throw new SolrException(ErrorCode.BAD_REQUEST, "\"" + ancestorField
+							+ "\" is not a valid field name");
+				}
+				totalDocs = docs;
+			} else if (ancestorField != null) {
+				LOGGER.debug("No documents to count - totalling child counts for {}", facetField);
+			}
+
+			List<TreeFacetField> fTrees = processFacetTree(searcherRef.get(), extractFacetValues(facetValues),
+					rb.req.getSearcher(), totalDocs);
 
 			retVal = convertTreeFacetFields(fTrees);
 		} finally {
@@ -154,34 +203,53 @@ public class FacetTreeGenerator {
 	
 	/**
 	 * Process the terms from the incoming facets, and use them to build a list of nodes
-	 * which are then be converted into a hierarchical facet structure. This does multiple
-	 * additional searches to find the parent entries for each of the nodes.
+	 * which are then be converted into a hierarchical facet structure. The nodes and
+	 * their parents are found in the searcher's cached hierarchy if there is one, or
+	 * otherwise by multiple additional searches.
 	 * @param searcher the searcher to use to build the tree.
 	 * @param facetMap the incoming facet values.
+	 * @param docSearcher the searcher for the current collection.
+	 * @param docs the documents to count exact totals for, or <code>null</code>
+	 * to total the counts of each node's children.
 	 * @return a list of TreeFacetFields, each of which is the root of a hierarchical
 	 * node structure.
 	 * @throws IOException
 	 */
-	private List<TreeFacetField> processFacetTree(SolrIndexSearcher searcher, Map<String, Integer> facetMap) throws IOException {
-		// Extract the facet keys to a volatile set
-		Set<String> facetKeys = new HashSet<>(facetMap.keySet());
+	private List<TreeFacetField> processFacetTree(SolrIndexSearcher searcher, Map<String, Integer> facetMap,
+			SolrIndexSearcher docSearcher, DocSet docs) throws IOException {
+		FacetTreeHierarchy.Key key = new FacetTreeHierarchy.Key(nodeField, childField, labelField);
+		FacetTreeHierarchy hierarchy = FacetTreeHierarchy.getCached(searcher, key);
+		if (hierarchy == null) {
+			hierarchy = findHierarchy(searcher, key, facetMap.keySet());
+		}
 
-		// Build a map of parent - child node IDs. This should contain the parents
-		// of all our starting facet terms.
-		Map<String, Set<String>> nodeChildren = findParentEntries(searcher, facetKeys);
+		// Get the counts and ordinals of the starting facet terms
+		int[] counts = new int[hierarchy.size()];
+		BitSet treeNodes = new BitSet(hierarchy.size());
+		for (Entry<String, Integer> entry : facetMap.entrySet()) {
+			int ord = hierarchy.getOrdinal(entry.getKey());
+			if (ord >= 0) {
+				counts[ord] = entry.getValue();
+				treeNodes.set(ord);
+			}
+		}
 
-		// Find the details for the starting facet terms, if there are any which haven't 
-		// been found already.
-		facetKeys.removeAll(nodeChildren.keySet());
-		nodeChildren.putAll(filterEntriesByField(searcher, facetKeys, nodeField));
+		// Add the parents of all our starting facet terms
+		findParentNodes(hierarchy, treeNodes);
 
 		// Find the top nodes
-		Set<String> topUris = findTopLevelNodes(nodeChildren);
-		LOGGER.debug("Found {} top level nodes", topUris.size());
+		int[] topNodes = findTopLevelNodes(hierarchy, treeNodes);
+		LOGGER.debug("Found {} top level nodes", topNodes.length);
+
+		int[] totals = null;
+		if (docs != null) {
+			totals = countDistinctDocs(docSearcher, docs, hierarchy);
+		}
 
-		List<TreeFacetField> tffs = new ArrayList<>(topUris.size());
-		for (String fieldValue : topUris) {
-			tffs.add(buildAccumulatedEntryTree(0, fieldValue, nodeChildren, facetMap));
+		TreeFacetField[] trees = buildAccumulatedEntryTrees(hierarchy, treeNodes, counts, totals);
+		List<TreeFacetField> tffs = new ArrayList<>(topNodes.length);
+		for (int ord : topNodes) {
+			tffs.add(trees[ord]);
 		}
 
 		return tffs;
@@ -205,155 +273,294 @@ public class FacetTreeGenerator {
 	}
 	
 	/**
-	 * Find all parent nodes for the given set of items.
+	 * Search for the given set of items and all of their parent nodes, for use
+	 * when there is no cached hierarchy.
 	 * @param searcher the searcher for the collection being used.
+	 * @param key the fields defining the hierarchy.
 	 * @param facetValues the starting set of node IDs.
-	 * @param childField the item field containing the child values.
-	 * @return a map of nodes, keyed by their IDs.
+	 * @return the hierarchy of the nodes found. The children of the starting nodes
+	 * are only included where they are also parent nodes.
 	 * @throws IOException
 	 */
-	private Map<String, Set<String>> findParentEntries(SolrIndexSearcher searcher, Collection<String> facetValues)
-			throws IOException {
-		Map<String, Set<String>> parentEntries = new HashMap<>();
+	private FacetTreeHierarchy findHierarchy(SolrIndexSearcher searcher, FacetTreeHierarchy.Key key,
+			Collection<String> facetValues) throws IOException {
+		FacetTreeHierarchy.Builder builder = new FacetTreeHierarchy.Builder(searcher, key);
 
 		Set<String> childrenFound = new HashSet<>();
 		Set<String> childIds = new HashSet<>(facetValues);
 
 		int count = 0;
 		while (childIds.size() > 0 && (maxLevels == 0 || maxLevels >= count)) {
-			// Find the direct parents for the current child IDs
-			Map<String, Set<String>> parents = filterEntriesByField(searcher, childIds, childField);
-			parentEntries.putAll(parents);
+			// Find the direct parents for the current child IDs - these are the
+			// next set of nodes whose parents should be found.
+			Set<String> parentIds = filterEntriesByField(searcher, builder, childIds, childField);
 			childrenFound.addAll(childIds);
 
-			// Get the IDs for all the retrieved nodes - these are the next set of
-			// nodes whose parents should be found.
-			childIds = parents.keySet();
 			// Strip out any nodes we've already looked up
-			childIds.removeAll(childrenFound);
+			parentIds.removeAll(childrenFound);
+			childIds = parentIds;
 			
 			count ++;
 		};
 
-		return parentEntries;
+		// Find the details for the starting facet terms, if there are any which haven't 
+		// been found already.
+		Set<String> facetKeys = new HashSet<>();
+		for (String facetValue : facetValues) {
+			if (!builder.containsNode(facetValue)) {
+				facetKeys.add(facetValue);
+			}
+		}
+		filterEntriesByField(searcher, builder, facetKeys, nodeField);
+
+		return builder.build();
 	}
 
 	/**
-	 * Fetch facets for items containing a specific set of values.
+	 * Add the nodes for items containing a specific set of values to a hierarchy.
 	 * @param searcher the searcher for the collection being used.
+	 * @param builder the builder for the hierarchy.
 	 * @param facetValues the incoming values to use as filters.
 	 * @param filterField the item field containing the child values, which will be used
 	 * to filter against.
-	 * @return a map of node value to child values for the items.
+	 * @return the node IDs of the items.
 	 * @throws IOException
 	 */
-	private Map<String, Set<String>> filterEntriesByField(SolrIndexSearcher searcher, Collection<String> facetValues,
-			String filterField) throws IOException {
-		Map<String, Set<String>> filteredEntries = new HashMap<>();
+	private Set<String> filterEntriesByField(SolrIndexSearcher searcher, FacetTreeHierarchy.Builder builder,
+			Collection<String> facetValues, String filterField) throws IOException {
+		if (facetValues.isEmpty()) {
+			return new HashSet<>();
+		}
 
 		LOGGER.debug("Looking up {} entries in field {}", facetValues.size(), filterField);
-		Query filter = buildFilterQuery(filterField, facetValues);
+		Query filter = buildFilterQuery(searcher, filterField, facetValues);
 		LOGGER.trace("Filter query: {}", filter);
 
 		DocSet docs = searcher.getDocSet(filter);
 
-		for (DocIterator it = docs.iterator(); it.hasNext(); ) {
-			Document doc = searcher.doc(it.nextDoc(), docFields);
-			String nodeId = doc.get(nodeField);
-			
-			// Get the children for the node, if necessary
-			Set<String> childIds;
-			if (filterField.equals(nodeField)) {
-				// Filtering on the node field - child IDs are redundant
-				childIds = Collections.emptySet();
-			} else {
-				childIds = new HashSet<>(Arrays.asList(doc.getValues(filterField)));
-				LOGGER.trace("Got {} children for node {}", childIds.size(), nodeId);
-			}
-			filteredEntries.put(nodeId, childIds);
-			
-			// If a label field has been specified, get the first available value
-			if (labelField != null && !labels.containsKey(nodeId)) {
-				String[] labelValues = doc.getValues(labelField);
-				if (labelValues.length > 0) {
-					labels.put(nodeId, labelValues[0]);
-				} else {
-					labels.put(nodeId, null);
+		// If filtering on the node field, child IDs are redundant
+		return builder.addNodes(docs, !filterField.equals(nodeField));
+	}
+
+	/**
+	 * Build a filter query for a field using a set of values. This is a
+	 * constant-score terms filter, so is not limited by the maximum number of
+	 * boolean clauses, and the values are looked up once per segment, in order.
+	 * @param searcher the searcher for the collection being used.
+	 * @param field the field to filter.
+	 * @param values the values to filter by.
+	 * @return the filter query.
+	 */
+	private Query buildFilterQuery(SolrIndexSearcher searcher, String field, Collection<String> values) {
+		FieldType fieldType = searcher.getSchema().getFieldType(field);
+
+		List<BytesRef> terms = new ArrayList<>(values.size());
+		BytesRefBuilder term = new BytesRefBuilder();
+		for (String value : values) {
+			fieldType.readableToIndexed(value, term);
+			terms.add(term.toBytesRef());
+		}
+
+		return new ConstantScoreQuery(new TermsFilter(field, terms));
+	}
+
+	/**
+	 * Add the parents of a set of nodes to the set, up to the maximum number of
+	 * levels.
+	 * @param hierarchy the node hierarchy.
+	 * @param treeNodes the starting set of node ordinals, to which the parents
+	 * are added.
+	 */
+	private void findParentNodes(FacetTreeHierarchy hierarchy, BitSet treeNodes) {
+		// Each node is queued once, in level order
+		int[] queue = new int[hierarchy.size()];
+		int tail = 0;
+		for (int ord = treeNodes.nextSetBit(0); ord >= 0; ord = treeNodes.nextSetBit(ord + 1)) {
+			queue[tail ++] = ord;
+		}
+
+		int head = 0;
+		int count = 0;
+		while (head < tail && (maxLevels == 0 || maxLevels >= count)) {
+			// Find the direct parents for the current level
+			for (int levelEnd = tail; head < levelEnd; head ++) {
+				IntsRef parents = hierarchy.getParents(queue[head]);
+				for (int i = parents.offset; i < parents.offset + parents.length; i ++) {
+					int parent = parents.ints[i];
+					if (!treeNodes.get(parent)) {
+						treeNodes.set(parent);
+						queue[tail ++] = parent;
+					}
 				}
 			}
-		}
 
-		return filteredEntries;
+			count ++;
+		}
 	}
 
 	/**
-	 * Build a filter query for a field using a set of values, taken from the keys
-	 * of a {@link NamedList}.
-	 * @param field
-	 * @param values
-	 * @return a filter string.
+	 * Find all of the top-level nodes in a set of nodes.
+	 * @param hierarchy the node hierarchy.
+	 * @param treeNodes the set of node ordinals.
+	 * @return the ordinals of the nodes in the set which are not children of
+	 * any other node in the set.
 	 */
-	private Query buildFilterQuery(String field, Collection<String> values) {
-		BooleanQuery bf = new BooleanQuery();
+	private int[] findTopLevelNodes(FacetTreeHierarchy hierarchy, BitSet treeNodes) {
+		int[] topLevel = new int[treeNodes.cardinality()];
+		int numTopLevel = 0;
 
-		for (String value : values) {
-			Term term = new Term(field, value);
-			bf.add(new TermQuery(term), Occur.SHOULD);
+		for (int ord = treeNodes.nextSetBit(0); ord >= 0; ord = treeNodes.nextSetBit(ord + 1)) {
+			if (!hasParentIn(hierarchy, ord, treeNodes)) {
+				topLevel[numTopLevel ++] = ord;
+			}
 		}
 
-		return bf;
+		return Arrays.copyOf(topLevel, numTopLevel);
 	}
 
+	private boolean hasParentIn(FacetTreeHierarchy hierarchy, int ord, BitSet treeNodes) {
+		IntsRef parents = hierarchy.getParents(ord);
+		for (int i = parents.offset; i < parents.offset + parents.length; i ++) {
+			if (parents.ints[i] != ord && treeNodes.get(parents.ints[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	/**
-	 * Find all of the top-level nodes in a map of parent - child node IDs.
-	 * @param nodeChildren a map of parent - child node IDs..
-	 * @return a set containing the IDs for all of the top-level nodes found.
+	 * Build the accumulated facet entry trees for a set of nodes. The trees are
+	 * built from the bottom up, so that each node's tree is built once, after
+	 * those of its children, and shared between all of its parents. If the nodes
+	 * contain a cycle, it is found by following unbuilt children from the lowest
+	 * remaining node ordinal, and broken by dropping the child edge which closes
+	 * it - only that edge, so every node in the cycle is still in the tree.
+	 * @param hierarchy the node hierarchy.
+	 * @param treeNodes the set of nodes in the tree (either in the original facet
+	 * set, or parents of those entries).
+	 * @param counts the facet counts, by node ordinal.
+	 * @param totals the exact totals, by node ordinal, or <code>null</code> to
+	 * total the counts of each node's children.
+	 * @return the {@link TreeFacetField}s for the nodes, by node ordinal, each
+	 * containing details for the node and all sub-nodes down to the lowest leaf
+	 * which has a facet count.
+	 * @throws IOException if a node label cannot be read.
 	 */
-	private Set<String> findTopLevelNodes(Map<String, Set<String>> nodeChildren) {
-		Set<String> topLevel = new HashSet<>();
-		
-		// Extract all the child IDs so we only have to iterate through them once
-		Set<String> childIds = extractAllChildIds(nodeChildren.values());
-
-		// Loop through each ID in the map, and check if it is contained in the
-		// children of any other node.
-		for (String id : nodeChildren.keySet()) {
-			if (!childIds.contains(id)) {
-				// Not in the set of child IDs - must be top level
-				topLevel.add(id);
+	private TreeFacetField[] buildAccumulatedEntryTrees(FacetTreeHierarchy hierarchy, BitSet treeNodes, int[] counts,
+			int[] totals) throws IOException {
+		TreeFacetField[] trees = new TreeFacetField[hierarchy.size()];
+
+		// The number of each node's children whose trees are still to be built.
+		// Nodes are queued to be built once this reaches zero.
+		int[] pending = new int[hierarchy.size()];
+		int[] queue = new int[treeNodes.cardinality()];
+		int tail = 0;
+		for (int ord = treeNodes.nextSetBit(0); ord >= 0; ord = treeNodes.nextSetBit(ord + 1)) {
+			IntsRef children = hierarchy.getChildren(ord);
+			for (int i = children.offset; i < children.offset + children.length; i ++) {
+				if (children.ints[i] != ord && treeNodes.get(children.ints[i])) {
+					pending[ord] ++;
+				}
+			}
+			if (pending[ord] == 0) {
+				queue[tail ++] = ord;
 			}
 		}
 
-		return topLevel;
+		int stalledOrd = -1;
+		Set<Long> droppedEdges = null;
+		for (int head = 0; head < queue.length; head ++) {
+			while (head == tail) {
+				// Every remaining node is in, or above, a cycle - break one
+				if (stalledOrd < 0 || pending[stalledOrd] == 0) {
+					do {
+						stalledOrd = treeNodes.nextSetBit(stalledOrd + 1);
+					} while (pending[stalledOrd] == 0);
+				}
+				droppedEdges = (droppedEdges == null ? new HashSet<Long>() : droppedEdges);
+				int[] edge = findCycleEdge(hierarchy, treeNodes, trees, droppedEdges, stalledOrd);
+				int parent = edge[0];
+				int child = edge[1];
+				LOGGER.warn("Node {} is in a cycle - ignoring it as a child of {}", hierarchy.getNodeId(child), hierarchy.getNodeId(parent));
+				droppedEdges.add(edgeKey(parent, child));
+				IntsRef children = hierarchy.getChildren(parent);
+				for (int i = children.offset; i < children.offset + children.length; i ++) {
+					if (children.ints[i] == child) {
+						pending[parent] --;
+					}
+				}
+				if (pending[parent] == 0) {
+					queue[tail ++] = parent;
+				}
+			}
+
+			int ord = queue[head];
+			trees[ord] = buildAccumulatedEntryTree(ord, hierarchy, trees, counts, totals);
+
+			// Queue any parents whose children have all been built
+			IntsRef parents = hierarchy.getParents(ord);
+			for (int i = parents.offset; i < parents.offset + parents.length; i ++) {
+				int parent = parents.ints[i];
+				if (parent != ord && treeNodes.get(parent) && pending[parent] > 0
+						&& (droppedEdges == null || !droppedEdges.contains(edgeKey(parent, ord))) && -- pending[parent] == 0) {
+					queue[tail ++] = parent;
+				}
+			}
+		}
+
+		return trees;
 	}
-	
+
 	/**
-	 * Extract all of the entries in the collected child IDs into a single set.
-	 * @param childIds the collection of all child ID sets.
-	 * @return a single set containing all of the child IDs.
+	 * Find an edge closing a cycle among the nodes whose trees are not yet built,
+	 * by following their unbuilt children from a node until one is reached again.
+	 * @param hierarchy the node hierarchy.
+	 * @param treeNodes the set of nodes in the tree.
+	 * @param trees the trees built so far, by node ordinal.
+	 * @param droppedEdges the edges already dropped to break cycles.
+	 * @param ord the node to start from, which has unbuilt children.
+	 * @return the parent and child ordinals of the edge.
 	 */
-	private Set<String> extractAllChildIds(Collection<Set<String>> childIds) {
-		Set<String> ids = new HashSet<>();
-		
-		for (Set<String> children : childIds) {
-			ids.addAll(children);
+	private static int[] findCycleEdge(FacetTreeHierarchy hierarchy, BitSet treeNodes, TreeFacetField[] trees,
+			Set<Long> droppedEdges, int ord) {
+		BitSet walked = new BitSet(hierarchy.size());
+		while (true) {
+			walked.set(ord);
+			int next = -1;
+			IntsRef children = hierarchy.getChildren(ord);
+			for (int i = children.offset; i < children.offset + children.length && next < 0; i ++) {
+				int child = children.ints[i];
+				if (child != ord && treeNodes.get(child) && trees[child] == null
+						&& !droppedEdges.contains(edgeKey(ord, child))) {
+					next = child;
+				}
+			}
+			if (walked.get(next)) {
+				return new int[]{ ord, next };
+			}
+			ord = next;
 		}
-		
-		return ids;
 	}
-	
+
+	private static long edgeKey(int parent, int child) {
+		return ((long) parent << 32) | child;
+	}
+
 	/**
-	 * Recursively build an accumulated facet entry tree.
-	 * @param level current level in the tree (used for debugging/logging).
-	 * @param fieldValue the current node value.
-	 * @param hierarchyMap the map of nodes (either in the original facet set,
-	 * or parents of those entries).
-	 * @param facetCounts the facet counts, keyed by node ID.
+	 * Build an accumulated facet entry tree for a node from the trees already
+	 * built for its children.
+	 * @param ord the current node ordinal.
+	 * @param hierarchy the node hierarchy.
+	 * @param trees the trees built so far, by node ordinal.
+	 * @param counts the facet counts, by node ordinal.
+	 * @param totals the exact totals, by node ordinal, or <code>null</code> to
+	 * total the counts of the node's children.
 	 * @return a {@link TreeFacetField} containing details for the current node and all
 	 * sub-nodes down to the lowest leaf which has a facet count.
+	 * @throws IOException if the node label cannot be read.
 	 */
-	private TreeFacetField buildAccumulatedEntryTree(int level, String fieldValue, Map<String, Set<String>> hierarchyMap,
-			Map<String, Integer> facetCounts) {
+	private TreeFacetField buildAccumulatedEntryTree(int ord, FacetTreeHierarchy hierarchy, TreeFacetField[] trees,
+			int[] counts, int[] totals) throws IOException {
 		// Build the child hierarchy for this entry.
 		// We use a reverse-ordered SortedSet so entries are returned in descending
 		// order by their total count.
@@ -361,48 +568,84 @@ public class FacetTreeGenerator {
 		
 		// childTotal is the total number of facet hits below this node
 		long childTotal = 0;
-		if (hierarchyMap.containsKey(fieldValue)) {
-			// Loop through all the direct child URIs, looking for those which are in the annotation map
-			for (String childId : hierarchyMap.get(fieldValue)) {
-				if (hierarchyMap.containsKey(childId) && !childId.equals(fieldValue)) {
-					// Found a child of this node - recurse to build its facet tree
-					LOGGER.trace("[{}] Building child tree for {}, with {} children", level, childId, hierarchyMap.get(childId).size());
-					TreeFacetField childTree = buildAccumulatedEntryTree(level + 1, childId, hierarchyMap, facetCounts);
-					
-					// Only add to the total count if this node isn't already in the child hierarchy
-					if (childHierarchy.add(childTree)) {
-						childTotal += childTree.getTotal();
-					}
-					LOGGER.trace("[{}] child tree total: {} - child Total {}, child count {}", level, childTree.getTotal(), childTotal, childHierarchy.size());
-				} else {
-					LOGGER.trace("[{}] no node entry for {}->{}", level, fieldValue, childId);
+		IntsRef children = hierarchy.getChildren(ord);
+		for (int i = children.offset; i < children.offset + children.length; i ++) {
+			TreeFacetField childTree = trees[children.ints[i]];
+			if (childTree != null && children.ints[i] != ord) {
+				// Only add to the total count if this node isn't already in the child hierarchy
+				if (childHierarchy.add(childTree)) {
+					childTotal += childTree.getTotal();
 				}
 			}
 		}
 
+		if (totals != null) {
+			// The exact total, without any documents counted below more than one child
+			childTotal = totals[ord] - counts[ord];
+		}
+
 		// Build the accumulated facet entry
-		LOGGER.trace("[{}] Building facet tree for {}", level, fieldValue);
-		return new TreeFacetField(getFacetLabel(fieldValue), fieldValue, getFacetCount(fieldValue, facetCounts), childTotal, childHierarchy);
+		LOGGER.trace("Building facet tree for {} - child total {}, child count {}", hierarchy.getNodeId(ord), childTotal, childHierarchy.size());
+		return new TreeFacetField(hierarchy.getLabel(ord), hierarchy.getNodeId(ord), counts[ord], childTotal, childHierarchy);
 	}
 
 	/**
-	 * Get the count for the facet with the given key.
-	 * @param key the key to look up.
-	 * @param facetCounts the map of facet counts.
-	 * @return the count, or <code>0</code> if the key does not exist in the map.
+	 * Count the distinct documents in a set with each node of a hierarchy as one
+	 * of their facet values, or an ancestor of one, in a single pass over the set.
+	 * The values of the facet and ancestor fields are read from their docValues
+	 * (uninverted, if the fields do not have docValues), and the ordinals of each
+	 * segment mapped to node ordinals as they are found.
+	 * @param searcher the searcher for the current collection.
+	 * @param docs the documents to count.
+	 * @param hierarchy the node hierarchy.
+	 * @return the number of documents for each node, by node ordinal.
+	 * @throws IOException
 	 */
-	private long getFacetCount(String key, Map<String, Integer> facetCounts) {
-		if (facetCounts.containsKey(key)) {
-			return facetCounts.get(key);
-		}
-		return 0;
-	}
-	
-	private String getFacetLabel(String id) {
-		if (labelField != null) {
-			return labels.get(id);
+	private int[] countDistinctDocs(SolrIndexSearcher searcher, DocSet docs, FacetTreeHierarchy hierarchy)
+			throws IOException {
+		String[] fields = new String[]{ facetField, ancestorField };
+		FieldType[] fieldTypes = new FieldType[]{ searcher.getSchema().getFieldType(facetField),
+				searcher.getSchema().getFieldType(ancestorField) };
+		CharsRefBuilder chars = new CharsRefBuilder();
+
+		int[] totals = new int[hierarchy.size()];
+		// The last document counted for each node, so documents are only counted once
+		int[] lastDocs = new int[hierarchy.size()];
+		Arrays.fill(lastDocs, -1);
+
+		List<LeafReaderContext> leaves = searcher.getTopReaderContext().leaves();
+		LeafReaderContext leaf = null;
+		SortedSetDocValues[] values = new SortedSetDocValues[fields.length];
+		// Node ordinal + 1 for each segment ordinal, -1 if not a node, or 0 if not yet looked up
+		int[][] nodeOrds = new int[fields.length][];
+		for (DocIterator it = docs.iterator(); it.hasNext(); ) {
+			int docId = it.nextDoc();
+			if (leaf == null || docId < leaf.docBase || docId >= leaf.docBase + leaf.reader().maxDoc()) {
+				leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+				for (int f = 0; f < fields.length; f ++) {
+					values[f] = DocValues.getSortedSet(leaf.reader(), fields[f]);
+					nodeOrds[f] = new int[(int) values[f].getValueCount()];
+				}
+			}
+
+			for (int f = 0; f < fields.length; f ++) {
+				values[f].setDocument(docId - leaf.docBase);
+				for (long ord = values[f].nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values[f].nextOrd()) {
+					int nodeOrd = nodeOrds[f][(int) ord];
+					if (nodeOrd == 0) {
+						String nodeId = fieldTypes[f].indexedToReadable(values[f].lookupOrd(ord), chars).toString();
+						nodeOrd = hierarchy.getOrdinal(nodeId) + 1;
+						nodeOrds[f][(int) ord] = nodeOrd == 0 ? -1 : nodeOrd;
+					}
+					if (nodeOrd > 0 && lastDocs[nodeOrd - 1] != docId) {
+						totals[nodeOrd - 1] ++;
+						lastDocs[nodeOrd - 1] = docId;
+					}
+				}
+			}
 		}
-		return null;
+
+		return totals;
 	}
 
 	/**
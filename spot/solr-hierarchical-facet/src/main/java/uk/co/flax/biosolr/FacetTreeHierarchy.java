@@ -0,0 +1,465 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.co.flax.biosolr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The complete node hierarchy held in a collection, loaded into memory so that
+ * facet trees can be built without searching the collection for each level of
+ * the tree.
+ *
+ * <p>Nodes are identified by ordinals: their positions in the sorted list of
+ * node IDs (the node field's term ordinals). The parent and child edges between
+ * them are held in compressed sparse row form, ie. the children of node
+ * <code>n</code> are the ordinals in <code>childOrds[childStarts[n]]</code> to
+ * <code>childOrds[childStarts[n + 1] - 1]</code>, so that trees can be walked
+ * without any lookups by ID. Child IDs which are not nodes in the collection
+ * are dropped.</p>
+ *
+ * <p>Node and child IDs are read from the fields' docValues, if they have them,
+ * or their stored values otherwise. Labels are only read (from their stored
+ * values) when they are first needed, ie. for the nodes in returned trees.</p>
+ *
+ * <p>Hierarchies are loaded once per searcher, and held in the
+ * {@link #CACHE_NAME} user cache, if it is configured. The cache should use
+ * {@link FacetTreeHierarchyRegenerator} to reload the hierarchies when a new
+ * searcher is opened, and {@link FacetTreeHierarchyWarmer} may be used to load
+ * them for the first searcher.</p>
+ */
+public class FacetTreeHierarchy {
+
+	/** The name of the user cache holding the hierarchies. */
+	public static final String CACHE_NAME = "facetTreeHierarchyCache";
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FacetTreeHierarchy.class);
+
+	// Locks held while loading a hierarchy, so concurrent requests for the same
+	// fields wait for one load rather than each loading the hierarchy
+	private static final ConcurrentMap<Key, Object> LOAD_LOCKS = new ConcurrentHashMap<>();
+
+	// Placeholder for a label which has been read, but does not exist
+	private static final String NO_LABEL = new String();
+
+	private final SolrIndexSearcher searcher;
+	private final Key key;
+
+	// Node IDs, sorted - the ordinal of a node is its position
+	private final String[] nodeIds;
+	// Searcher document IDs by ordinal, for reading labels
+	private final int[] docIds;
+	// Labels by ordinal, read as required, or null if there is no label field
+	private final AtomicReferenceArray<String> labels;
+
+	private final int[] childStarts;
+	private final int[] childOrds;
+	private final int[] parentStarts;
+	private final int[] parentOrds;
+
+	private FacetTreeHierarchy(SolrIndexSearcher searcher, Key key, String[] nodeIds, int[] docIds,
+			int[] childStarts, int[] childOrds, int[] parentStarts, int[] parentOrds) {
+		this.searcher = searcher;
+		this.key = key;
+		this.nodeIds = nodeIds;
+		this.docIds = docIds;
+		this.labels = key.getLabelField() == null ? null : new AtomicReferenceArray<String>(nodeIds.length);
+		this.childStarts = childStarts;
+		this.childOrds = childOrds;
+		this.parentStarts = parentStarts;
+		this.parentOrds = parentOrds;
+	}
+
+	/**
+	 * Get the hierarchy for a set of fields from the searcher's cache, loading
+	 * it if it has not already been loaded. Only one request loads a given
+	 * hierarchy - any others for the same fields wait for it.
+	 * @param searcher the searcher for the collection holding the hierarchy.
+	 * @param key the fields defining the hierarchy.
+	 * @return the hierarchy, or <code>null</code> if the searcher has no
+	 * hierarchy cache.
+	 * @throws IOException
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static FacetTreeHierarchy getCached(SolrIndexSearcher searcher, Key key) throws IOException {
+		SolrCache cache = searcher.getCache(CACHE_NAME);
+		if (cache == null) {
+			return null;
+		}
+
+		FacetTreeHierarchy hierarchy = (FacetTreeHierarchy) cache.get(key);
+		if (hierarchy != null) {
+			return hierarchy;
+		}
+
+		Object lock = LOAD_LOCKS.get(key);
+		if (lock == null) {
+			Object newLock = new Object();
+			lock = LOAD_LOCKS.putIfAbsent(key, newLock);
+			if (lock == null) {
+				lock = newLock;
+			}
+		}
+		synchronized (lock) {
+			// Check again, in case it was loaded while waiting for the lock
+			hierarchy = (FacetTreeHierarchy) cache.get(key);
+			if (hierarchy == null) {
+				hierarchy = load(searcher, key);
+				cache.put(key, hierarchy);
+			}
+		}
+
+		return hierarchy;
+	}
+
+	/**
+	 * Load the hierarchy for a set of fields from every document in a searcher
+	 * which has a node ID.
+	 * @param searcher the searcher for the collection holding the hierarchy.
+	 * @param key the fields defining the hierarchy.
+	 * @return the hierarchy.
+	 * @throws IOException
+	 */
+	public static FacetTreeHierarchy load(SolrIndexSearcher searcher, Key key) throws IOException {
+		long start = System.currentTimeMillis();
+
+		Builder builder = new Builder(searcher, key);
+		builder.addNodes(searcher.getDocSet(new MatchAllDocsQuery()), true);
+		FacetTreeHierarchy hierarchy = builder.build();
+
+		LOGGER.info("Loaded {} node hierarchy for {} in {}ms", hierarchy.size(), key, System.currentTimeMillis() - start);
+		return hierarchy;
+	}
+
+	public Key getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the number of nodes in the hierarchy.
+	 */
+	public int size() {
+		return nodeIds.length;
+	}
+
+	/**
+	 * @param nodeId the node ID.
+	 * @return the node's ordinal, or <code>-1</code> if the collection holds no
+	 * node with this ID.
+	 */
+	public int getOrdinal(String nodeId) {
+		int ord = Arrays.binarySearch(nodeIds, nodeId);
+		return ord >= 0 ? ord : -1;
+	}
+
+	/**
+	 * @param ord the node ordinal.
+	 * @return the node's ID.
+	 */
+	public String getNodeId(int ord) {
+		return nodeIds[ord];
+	}
+
+	/**
+	 * @param ord the node ordinal.
+	 * @return the node's label, or <code>null</code> if it has none, or no
+	 * label field is defined.
+	 * @throws IOException if the label cannot be read.
+	 */
+	public String getLabel(int ord) throws IOException {
+		if (labels == null) {
+			return null;
+		}
+
+		String label = labels.get(ord);
+		if (label == null) {
+			label = searcher.doc(docIds[ord], Collections.singleton(key.getLabelField())).get(key.getLabelField());
+			labels.set(ord, label == null ? NO_LABEL : label);
+		}
+
+		return label == NO_LABEL ? null : label;
+	}
+
+	/**
+	 * @param ord the node ordinal.
+	 * @return the (sorted) ordinals of the node's direct children. This is a
+	 * view of the hierarchy's edges, and must not be modified.
+	 */
+	public IntsRef getChildren(int ord) {
+		return new IntsRef(childOrds, childStarts[ord], childStarts[ord + 1] - childStarts[ord]);
+	}
+
+	/**
+	 * @param ord the node ordinal.
+	 * @return the (sorted) ordinals of the nodes with this node as a direct
+	 * child. This is a view of the hierarchy's edges, and must not be modified.
+	 */
+	public IntsRef getParents(int ord) {
+		return new IntsRef(parentOrds, parentStarts[ord], parentStarts[ord + 1] - parentStarts[ord]);
+	}
+
+	/**
+	 * Builder for a hierarchy, from the nodes in sets of documents.
+	 */
+	public static class Builder {
+
+		private final SolrIndexSearcher searcher;
+		private final Key key;
+
+		private final boolean docValues;
+		private final Set<String> docFields;
+		private final CharsRefBuilder chars = new CharsRefBuilder();
+
+		private final Map<String, String[]> children = new HashMap<>();
+		private final Map<String, Integer> docIds = new HashMap<>();
+
+		public Builder(SolrIndexSearcher searcher, Key key) {
+			this.searcher = searcher;
+			this.key = key;
+
+			docValues = searcher.getSchema().getField(key.getNodeField()).hasDocValues()
+					&& searcher.getSchema().getField(key.getChildField()).hasDocValues();
+			docFields = new HashSet<>(Arrays.asList(key.getNodeField(), key.getChildField()));
+		}
+
+		/**
+		 * Add the nodes in a set of documents. Only the first document found for
+		 * each node ID is used.
+		 * @param docs the documents.
+		 * @param withChildren <code>false</code> if the child IDs of the nodes
+		 * are not required.
+		 * @return the IDs of the nodes in the documents.
+		 * @throws IOException
+		 */
+		public Set<String> addNodes(DocSet docs, boolean withChildren) throws IOException {
+			Set<String> nodeIds = new HashSet<>();
+
+			if (docValues) {
+				// Read the IDs from the docValues of each leaf in turn
+				List<LeafReaderContext> leaves = searcher.getTopReaderContext().leaves();
+				LeafReaderContext leaf = null;
+				SortedSetDocValues nodeValues = null;
+				SortedSetDocValues childValues = null;
+				for (DocIterator it = docs.iterator(); it.hasNext(); ) {
+					int docId = it.nextDoc();
+					if (leaf == null || docId < leaf.docBase || docId >= leaf.docBase + leaf.reader().maxDoc()) {
+						leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+						nodeValues = DocValues.getSortedSet(leaf.reader(), key.getNodeField());
+						childValues = withChildren ? DocValues.getSortedSet(leaf.reader(), key.getChildField()) : null;
+					}
+
+					nodeValues.setDocument(docId - leaf.docBase);
+					long nodeOrd = nodeValues.nextOrd();
+					if (nodeOrd == SortedSetDocValues.NO_MORE_ORDS) {
+						continue;
+					}
+					String nodeId = toString(key.getNodeField(), nodeValues.lookupOrd(nodeOrd));
+					nodeIds.add(nodeId);
+
+					if (!children.containsKey(nodeId)) {
+						List<String> childIds = new ArrayList<>();
+						if (withChildren) {
+							childValues.setDocument(docId - leaf.docBase);
+							for (long ord = childValues.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = childValues.nextOrd()) {
+								childIds.add(toString(key.getChildField(), childValues.lookupOrd(ord)));
+							}
+						}
+						addNode(nodeId, docId, childIds.toArray(new String[childIds.size()]));
+					}
+				}
+			} else {
+				for (DocIterator it = docs.iterator(); it.hasNext(); ) {
+					int docId = it.nextDoc();
+					Document doc = searcher.doc(docId, docFields);
+					String nodeId = doc.get(key.getNodeField());
+					if (nodeId == null) {
+						continue;
+					}
+					nodeIds.add(nodeId);
+
+					if (!children.containsKey(nodeId)) {
+						addNode(nodeId, docId, withChildren ? doc.getValues(key.getChildField()) : new String[0]);
+					}
+				}
+			}
+
+			return nodeIds;
+		}
+
+		private String toString(String field, BytesRef value) {
+			return searcher.getSchema().getField(field).getType().indexedToReadable(value, chars).toString();
+		}
+
+		private void addNode(String nodeId, int docId, String[] childIds) {
+			LOGGER.trace("Got {} children for node {}", childIds.length, nodeId);
+			children.put(nodeId, childIds);
+			docIds.put(nodeId, docId);
+		}
+
+		/**
+		 * @param nodeId the node ID.
+		 * @return <code>true</code> if a node with this ID has been added.
+		 */
+		public boolean containsNode(String nodeId) {
+			return children.containsKey(nodeId);
+		}
+
+		/**
+		 * @return the hierarchy of the nodes added.
+		 */
+		public FacetTreeHierarchy build() {
+			String[] nodeIds = children.keySet().toArray(new String[children.size()]);
+			Arrays.sort(nodeIds);
+			int numNodes = nodeIds.length;
+
+			int[] nodeDocIds = new int[numNodes];
+			for (int ord = 0; ord < numNodes; ord ++) {
+				nodeDocIds[ord] = docIds.get(nodeIds[ord]);
+			}
+
+			// Child edges, sorted and without duplicates for each node
+			int[] childStarts = new int[numNodes + 1];
+			IntsRefBuilder childOrds = new IntsRefBuilder();
+			int[] parentCounts = new int[numNodes];
+			for (int ord = 0; ord < numNodes; ord ++) {
+				int start = childOrds.length();
+				for (String childId : children.get(nodeIds[ord])) {
+					int childOrd = Arrays.binarySearch(nodeIds, childId);
+					if (childOrd >= 0) {
+						childOrds.append(childOrd);
+					}
+				}
+				Arrays.sort(childOrds.ints(), start, childOrds.length());
+				int end = start;
+				for (int i = start; i < childOrds.length(); i ++) {
+					int childOrd = childOrds.intAt(i);
+					if (end == start || childOrd != childOrds.intAt(end - 1)) {
+						childOrds.setIntAt(end ++, childOrd);
+						parentCounts[childOrd] ++;
+					}
+				}
+				childOrds.setLength(end);
+				childStarts[ord + 1] = end;
+			}
+
+			// Parent edges, as the transpose of the child edges
+			int[] parentStarts = new int[numNodes + 1];
+			for (int ord = 0; ord < numNodes; ord ++) {
+				parentStarts[ord + 1] = parentStarts[ord] + parentCounts[ord];
+			}
+			int[] parentOrds = new int[parentStarts[numNodes]];
+			int[] next = Arrays.copyOf(parentStarts, numNodes);
+			for (int ord = 0; ord < numNodes; ord ++) {
+				for (int i = childStarts[ord]; i < childStarts[ord + 1]; i ++) {
+					parentOrds[next[childOrds.intAt(i)] ++] = ord;
+				}
+			}
+
+			return new FacetTreeHierarchy(searcher, key, nodeIds, nodeDocIds, childStarts,
+					Arrays.copyOf(childOrds.ints(), childOrds.length()), parentStarts, parentOrds);
+		}
+
+	}
+
+	/**
+	 * The fields defining a hierarchy, used as its cache key.
+	 */
+	public static class Key {
+
+		private final String nodeField;
+		private final String childField;
+		private final String labelField;
+
+		public Key(String nodeField, String childField, String labelField) {
+			this.nodeField = nodeField;
+			this.childField = childField;
+			this.labelField = labelField;
+		}
+
+		public String getNodeField() {
+			return nodeField;
+		}
+
+		public String getChildField() {
+			return childField;
+		}
+
+		public String getLabelField() {
+			return labelField;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + ((nodeField == null) ? 0 : nodeField.hashCode());
+			result = prime * result + ((childField == null) ? 0 : childField.hashCode());
+			result = prime * result + ((labelField == null) ? 0 : labelField.hashCode());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return equal(nodeField, other.nodeField) && equal(childField, other.childField)
+					&& equal(labelField, other.labelField);
+		}
+
+		private static boolean equal(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+
+		@Override
+		public String toString() {
+			return "[node=" + nodeField + ", child=" + childField + ", label=" + labelField + "]";
+		}
+
+	}
+
+}
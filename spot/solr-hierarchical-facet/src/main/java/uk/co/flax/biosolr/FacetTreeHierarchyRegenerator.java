@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.co.flax.biosolr;
+
+import java.io.IOException;
+
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Cache regenerator for the {@link FacetTreeHierarchy#CACHE_NAME} cache,
+ * reloading each hierarchy in the old searcher's cache from the new searcher.
+ */
+public class FacetTreeHierarchyRegenerator implements CacheRegenerator {
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache,
+			Object oldKey, Object oldVal) throws IOException {
+		FacetTreeHierarchy.Key key = (FacetTreeHierarchy.Key) oldKey;
+		newCache.put(key, FacetTreeHierarchy.load(newSearcher, key));
+		return true;
+	}
+
+}
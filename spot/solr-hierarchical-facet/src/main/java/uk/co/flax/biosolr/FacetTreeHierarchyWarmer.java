@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.co.flax.biosolr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Searcher event listener to load a set of hierarchies into the
+ * {@link FacetTreeHierarchy#CACHE_NAME} cache before a searcher is used.
+ * Hierarchies are listed in a <code>hierarchies</code> array, each as a list
+ * with <code>nodeField</code>, <code>childField</code> and (optionally)
+ * <code>labelField</code> entries.
+ *
+ * <p>Hierarchies already in the cache (eg. those regenerated by
+ * {@link FacetTreeHierarchyRegenerator}) are not reloaded.</p>
+ */
+public class FacetTreeHierarchyWarmer extends AbstractSolrEventListener {
+
+	public static final String HIERARCHIES_ARG = "hierarchies";
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FacetTreeHierarchyWarmer.class);
+
+	private final List<FacetTreeHierarchy.Key> keys = new ArrayList<>();
+
+	public FacetTreeHierarchyWarmer(SolrCore core) {
+		super(core);
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void init(NamedList args) {
+		super.init(args);
+
+		List hierarchies = (List) args.get(HIERARCHIES_ARG);
+		if (hierarchies != null) {
+			for (Object hierarchy : hierarchies) {
+				NamedList fields = (NamedList) hierarchy;
+				String nodeField = (String) fields.get(FacetTreeProcessor.NODE_FIELD_PARAM);
+				String childField = (String) fields.get(FacetTreeProcessor.CHILD_FIELD_PARAM);
+				if (nodeField == null || childField == null) {
+					throw new SolrException(ErrorCode.SERVER_ERROR, "Facet tree hierarchies need "
+							+ FacetTreeProcessor.NODE_FIELD_PARAM + " and " + FacetTreeProcessor.CHILD_FIELD_PARAM);
+				}
+				keys.add(new FacetTreeHierarchy.Key(nodeField, childField,
+						(String) fields.get(FacetTreeProcessor.LABEL_FIELD_PARAM)));
+			}
+		}
+	}
+
+	@Override
+	public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+		for (FacetTreeHierarchy.Key key : keys) {
+			try {
+				if (FacetTreeHierarchy.getCached(newSearcher, key) == null) {
+					LOGGER.warn("No {} cache configured - cannot warm {}", FacetTreeHierarchy.CACHE_NAME, key);
+					return;
+				}
+			} catch (IOException e) {
+				LOGGER.error("Error loading facet tree hierarchy {}: {}", key, e.getMessage());
+			}
+		}
+	}
+
+}
@@ -31,6 +31,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
@@ -39,6 +40,7 @@ import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.request.SimpleFacets;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.search.DocSet;
+import org.apache.solr.search.QueryParsing;
 import org.apache.solr.search.SyntaxError;
 import org.apache.solr.util.DefaultSolrThreadFactory;
 
@@ -50,6 +52,7 @@ public class FacetTreeProcessor extends SimpleFacets {
 	public static final String NODE_FIELD_PARAM = "nodeField";
 	public static final String LABEL_FIELD_PARAM = "labelField";
 	public static final String LEVELS_PARAM = "levels";
+	public static final String ANCESTOR_FIELD_PARAM = "ancestorField";
 
 	static final Executor directExecutor = new Executor() {
 		@Override
@@ -67,8 +70,23 @@ public class FacetTreeProcessor extends SimpleFacets {
 		super(req, docs, params, rb);
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@SuppressWarnings("rawtypes")
 	public SimpleOrderedMap<NamedList> process(String[] facetTrees) throws IOException {
+		return process(facetTrees, null);
+	}
+
+	/**
+	 * Generate the facet trees for a set of facet tree fields.
+	 * @param facetTrees the facet tree field definitions.
+	 * @param facetFieldCounts the facet counts to build the trees from, keyed
+	 * by facet field key (eg. the merged counts from a distributed request),
+	 * or <code>null</code> to use the counts for the request's documents.
+	 * @return the facet trees, keyed by facet field key, or <code>null</code>
+	 * if there are none to generate.
+	 * @throws IOException
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public SimpleOrderedMap<NamedList> process(String[] facetTrees, NamedList<Object> facetFieldCounts) throws IOException {
 		if (!rb.doFacets || facetTrees == null || facetTrees.length == 0) {
 			return null;
 		}
@@ -84,7 +102,11 @@ public class FacetTreeProcessor extends SimpleFacets {
 				String nodeField;
 				try {
 					// NOTE: this sets localParams (SimpleFacets is stateful)
-					this.parseParams(LOCAL_PARAM_TYPE, fTree);
+					if (facetFieldCounts == null) {
+						this.parseParams(LOCAL_PARAM_TYPE, fTree);
+					} else {
+						parseMergedParams(fTree);
+					}
 					if (localParams == null) {
 						throw new SyntaxError("Missing facet tree parameters");
 					} else if (localParams.get(CHILD_FIELD_PARAM) == null) {
@@ -102,13 +124,15 @@ public class FacetTreeProcessor extends SimpleFacets {
 				// Is there ever likely to be more than one?
 				final FacetTreeGenerator generator = new FacetTreeGenerator(localParams.get(COLLECTION_PARAM),
 						nodeField, localParams.get(CHILD_FIELD_PARAM), localParams.get(LABEL_FIELD_PARAM),
-						localParams.getInt(LEVELS_PARAM, 0));
-				final NamedList<Integer> termCounts = getTermCounts(key);
+						localParams.getInt(LEVELS_PARAM, 0), facetValue, localParams.get(ANCESTOR_FIELD_PARAM));
+				final NamedList<Integer> termCounts = getTermCounts(key, facetFieldCounts);
+				// The documents to count exact totals over - not available for merged shard counts
+				final DocSet treeDocs = (facetFieldCounts == null ? docs : null);
 				Callable<NamedList> callable = new Callable<NamedList>() {
 					@Override
 					public NamedList call() throws Exception {
 						try {
-							List<SimpleOrderedMap<Object>> tree = generator.generateTree(rb, termCounts);
+							List<SimpleOrderedMap<Object>> tree = generator.generateTree(rb, termCounts, treeDocs);
 							NamedList<List<SimpleOrderedMap<Object>>> nl = new NamedList<>();
 							nl.add(key, tree);
 							return nl;
@@ -144,4 +168,47 @@ public class FacetTreeProcessor extends SimpleFacets {
 		return treeResponse;
 	}
 
+	/**
+	 * Parse the local params for a facet tree field whose tree is being built
+	 * from merged shard counts. Unlike parseParams(), this does not work out the
+	 * document set for any exclusions (ex=) - the shards have already applied
+	 * them to their counts, and there are no documents here to apply them to.
+	 * @param param the facet tree field definition.
+	 * @throws SyntaxError
+	 */
+	private void parseMergedParams(String param) throws SyntaxError {
+		localParams = QueryParsing.getLocalParams(param, req.getParams());
+		if (localParams == null) {
+			facetValue = param;
+			key = param;
+		} else {
+			facetValue = localParams.get(CommonParams.VALUE);
+			key = localParams.get(CommonParams.OUTPUT_KEY, facetValue);
+		}
+	}
+
+	/**
+	 * Get the term counts for a facet field.
+	 * @param key the facet field key.
+	 * @param facetFieldCounts the facet counts, keyed by facet field key, or
+	 * <code>null</code> to use the counts for the request's documents.
+	 * @return the term counts.
+	 * @throws IOException
+	 */
+	@SuppressWarnings("rawtypes")
+	private NamedList<Integer> getTermCounts(String key, NamedList<Object> facetFieldCounts) throws IOException {
+		if (facetFieldCounts == null) {
+			return getTermCounts(key);
+		}
+
+		NamedList<Integer> termCounts = new NamedList<>();
+		NamedList counts = (NamedList) facetFieldCounts.get(key);
+		if (counts != null) {
+			for (int i = 0; i < counts.size(); i ++) {
+				termCounts.add(counts.getName(i), ((Number) counts.getVal(i)).intValue());
+			}
+		}
+		return termCounts;
+	}
+
 }
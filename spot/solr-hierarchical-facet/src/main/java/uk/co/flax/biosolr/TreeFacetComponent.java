@@ -17,12 +17,16 @@ package uk.co.flax.biosolr;
 
 import java.io.IOException;
 
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.handler.component.FacetComponent;
 import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.handler.component.ShardRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -71,16 +75,58 @@ public class TreeFacetComponent extends FacetComponent {
 			@SuppressWarnings("rawtypes")
 			SimpleOrderedMap<NamedList> ftpResponse = ftp.process(rb.req.getParams().getParams(FACET_TREE_FIELD));
 			
+			addFacetTrees(rb, ftpResponse);
+		}
+	}
+
+	@Override
+	public void modifyRequest(ResponseBuilder rb, SearchComponent who, ShardRequest sreq) {
+		super.modifyRequest(rb, who, sreq);
+
+		// Shards only need to return the facet counts for the tree fields - the
+		// trees are built once the counts have been merged, in finishStage().
+		// Any exclusions in the tree fields are applied by the shards' counts.
+		if (rb.doFacets && rb.req.getParams().getBool(FACET_TREE, false)) {
+			sreq.params.set(FACET_TREE, false);
+		}
+	}
+
+	@Override
+	public void finishStage(ResponseBuilder rb) {
+		// Merge the facet counts from the shards
+		super.finishStage(rb);
+
+		if (rb.stage == ResponseBuilder.STAGE_GET_FIELDS && rb.doFacets
+				&& rb.req.getParams().getBool(FACET_TREE, false)) {
 			@SuppressWarnings("unchecked")
 			NamedList<Object> facetCounts = (NamedList<Object>) rb.rsp.getValues().get("facet_counts");
-			if (facetCounts != null) {
-				facetCounts.add("facet_trees", ftpResponse);
-			} else {
-				facetCounts = new NamedList<>();
-				facetCounts.add("facet_trees", ftpResponse);
-				rb.rsp.add("facet_counts", facetCounts);
+			@SuppressWarnings("unchecked")
+			NamedList<Object> facetFields = facetCounts == null ? null : (NamedList<Object>) facetCounts.get("facet_fields");
+			LOGGER.debug("Building facet trees from merged facet counts");
+
+			FacetTreeProcessor ftp = new FacetTreeProcessor(rb.req, null, rb.req.getParams(), rb);
+			try {
+				@SuppressWarnings("rawtypes")
+				SimpleOrderedMap<NamedList> ftpResponse = ftp.process(rb.req.getParams().getParams(FACET_TREE_FIELD),
+						facetFields == null ? new NamedList<Object>() : facetFields);
+				addFacetTrees(rb, ftpResponse);
+			} catch (IOException e) {
+				throw new SolrException(ErrorCode.SERVER_ERROR, "Error building facet trees: " + e.getMessage(), e);
 			}
 		}
 	}
+
+	@SuppressWarnings("rawtypes")
+	private void addFacetTrees(ResponseBuilder rb, SimpleOrderedMap<NamedList> ftpResponse) {
+		@SuppressWarnings("unchecked")
+		NamedList<Object> facetCounts = (NamedList<Object>) rb.rsp.getValues().get("facet_counts");
+		if (facetCounts != null) {
+			facetCounts.add("facet_trees", ftpResponse);
+		} else {
+			facetCounts = new NamedList<>();
+			facetCounts.add("facet_trees", ftpResponse);
+			rb.rsp.add("facet_counts", facetCounts);
+		}
+	}
 	
-}
+}
\ No newline at end of file
@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.co.flax.biosolr;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.BaseDistributedSearchTestCase;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Compare the facet trees built from merged shard counts with those built by
+ * a single core.
+ */
+public class DistributedTreeFacetComponentTest extends BaseDistributedSearchTestCase {
+
+	private static final String TREE_FIELD = "{!ftree childField=child_ids nodeField=node_id}category";
+	private static final String EXCLUDE_TREE_FIELD = "{!ftree ex=cat childField=child_ids nodeField=node_id}category";
+
+	private static File solrHome;
+
+	@BeforeClass
+	public static void setUpSolrHome() throws Exception {
+		// The distributed test servers use the collection1 core
+		File source = new File(DistributedTreeFacetComponentTest.class.getResource("/facetTree/solr").toURI());
+		solrHome = createTempDir().toFile();
+		FileUtils.copyFile(new File(source, "solr.xml"), new File(solrHome, "solr.xml"));
+		FileUtils.copyDirectory(new File(source, "hierarchy/conf"), new File(solrHome, "collection1/conf"));
+		FileUtils.writeStringToFile(new File(solrHome, "collection1/core.properties"), "name=collection1\n", StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String getSolrHome() {
+		return solrHome.getAbsolutePath();
+	}
+
+	/**
+	 * Add a hierarchy node to the control core and every shard, since the trees
+	 * are built from the hierarchy held by the core handling the request.
+	 */
+	private void indexNode(Object... fields) throws Exception {
+		SolrInputDocument doc = new SolrInputDocument();
+		addFields(doc, fields);
+		controlClient.add(doc);
+		for (SolrClient client : clients) {
+			client.add(doc);
+		}
+	}
+
+	@Test
+	@ShardsFixed(num = 2)
+	public void test() throws Exception {
+		del("*:*");
+		indexNode(id, "n0", "node_id", "A", "child_ids", "AA", "child_ids", "AB", "child_ids", "AC");
+		indexNode(id, "n1", "node_id", "AA", "child_ids", "AAA", "child_ids", "AAB");
+		indexNode(id, "n2", "node_id", "AAA");
+		indexNode(id, "n3", "node_id", "AAB");
+		indexNode(id, "n4", "node_id", "AB");
+		indexNode(id, "n5", "node_id", "AC");
+
+		// Items classified by the hierarchy, spread across the shards
+		index(id, "i1", "category", "AAA", "name", "item1");
+		index(id, "i2", "category", "AAB", "name", "item2");
+		index(id, "i3", "category", "AAA", "name", "item3");
+		index(id, "i4", "category", "AB", "name", "item4");
+		index(id, "i5", "category", "AC", "name", "item5");
+		index(id, "i6", "category", "AA", "name", "item6");
+		index(id, "i7", "category", "A", "name", "item7");
+		index(id, "i8", "category", "AAA", "category", "AB", "name", "item8");
+		commit();
+
+		handle.clear();
+		handle.put("QTime", SKIPVAL);
+		handle.put("timestamp", SKIPVAL);
+		handle.put("maxScore", SKIPVAL);
+
+		QueryResponse rsp = query("q", "category:[* TO *]", "rows", 0,
+				"facet", "true", "facet.mincount", 1,
+				"facet.tree", "true", "facet.tree.field", TREE_FIELD);
+		assertEquals(1, trees(rsp).size());
+
+		query("q", "category:[* TO *]", "fq", "name:item1 OR name:item4 OR name:item8", "rows", 0,
+				"facet", "true", "facet.mincount", 1,
+				"facet.tree", "true", "facet.tree.field", TREE_FIELD);
+
+		// The exclusion is applied by the shards when counting, so the merged
+		// trees count items outside the tagged filter
+		rsp = query("q", "category:[* TO *]", "fq", "{!tag=cat}category:AB", "rows", 0,
+				"facet", "true", "facet.mincount", 1,
+				"facet.tree", "true", "facet.tree.field", EXCLUDE_TREE_FIELD);
+		assertEquals(2, rsp.getResults().getNumFound());
+		@SuppressWarnings("rawtypes")
+		NamedList root = (NamedList) trees(rsp).get(0);
+		assertEquals("A", root.get("value"));
+		assertEquals(9L, root.get("total"));
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static List trees(QueryResponse rsp) {
+		NamedList facetTrees = (NamedList) ((NamedList) rsp.getResponse().get("facet_counts")).get("facet_trees");
+		return (List) facetTrees.get("category");
+	}
+
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2015 Lemur Consulting Ltd.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.co.flax.biosolr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.util.IntsRef;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestHandler;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class FacetTreeHierarchyTest extends SolrTestCaseJ4 {
+	
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		// Initialise a single Solr core
+		initCore("solrconfig.xml", "schema.xml", "facetTree/solr", "hierarchy");
+		
+		// Add some records
+		assertNull(h.validateUpdate(adoc("id", "0", "node_id", "A", "child_ids", "AA", "child_ids", "AB", "name", "nodeA", "label", "nodeA")));
+		assertNull(h.validateUpdate(adoc("id", "1", "node_id", "AA", "child_ids", "AAA", "name", "nodeAA", "label", "nodeAA")));
+		assertNull(h.validateUpdate(adoc("id", "2", "node_id", "AB", "child_ids", "AAA", "name", "nodeAB", "label", "nodeAB")));
+		assertNull(h.validateUpdate(adoc("id", "3", "node_id", "AAA", "name", "nodeAAA")));
+		assertNull(h.validateUpdate(commit()));
+	}
+	
+	@Test
+	public void testLoad() throws Exception {
+		RefCounted<SolrIndexSearcher> searcherRef = h.getCore().getSearcher();
+		try {
+			FacetTreeHierarchy hierarchy = FacetTreeHierarchy.load(searcherRef.get(),
+					new FacetTreeHierarchy.Key("node_id", "child_ids", "label"));
+			
+			assertEquals(4, hierarchy.size());
+			assertEquals(-1, hierarchy.getOrdinal("AAB"));
+			int a = hierarchy.getOrdinal("A");
+			int aa = hierarchy.getOrdinal("AA");
+			int ab = hierarchy.getOrdinal("AB");
+			int aaa = hierarchy.getOrdinal("AAA");
+			assertEquals("AAA", hierarchy.getNodeId(aaa));
+			
+			assertEquals(ordinals(aa, ab), hierarchy.getChildren(a));
+			assertEquals(ordinals(), hierarchy.getChildren(aaa));
+			assertEquals(ordinals(aa, ab), hierarchy.getParents(aaa));
+			assertEquals(ordinals(), hierarchy.getParents(a));
+			assertEquals("nodeAB", hierarchy.getLabel(ab));
+			assertNull(hierarchy.getLabel(aaa));
+		} finally {
+			searcherRef.decref();
+		}
+	}
+	
+	@Test
+	public void testLoad_docValues() throws Exception {
+		RefCounted<SolrIndexSearcher> searcherRef = h.getCore().getSearcher();
+		try {
+			FacetTreeHierarchy hierarchy = FacetTreeHierarchy.load(searcherRef.get(),
+					new FacetTreeHierarchy.Key("node_id_dv", "child_ids_dv", "label"));
+			
+			assertEquals(4, hierarchy.size());
+			int a = hierarchy.getOrdinal("A");
+			int aa = hierarchy.getOrdinal("AA");
+			int ab = hierarchy.getOrdinal("AB");
+			int aaa = hierarchy.getOrdinal("AAA");
+			
+			assertEquals(ordinals(aa, ab), hierarchy.getChildren(a));
+			assertEquals(ordinals(aa, ab), hierarchy.getParents(aaa));
+			assertEquals("nodeAB", hierarchy.getLabel(ab));
+			assertNull(hierarchy.getLabel(aaa));
+		} finally {
+			searcherRef.decref();
+		}
+	}
+	
+	@Test
+	public void testCached() throws Exception {
+		RefCounted<SolrIndexSearcher> searcherRef = h.getCore().getSearcher();
+		try {
+			// The unlabelled hierarchy is regenerated for each searcher
+			FacetTreeHierarchy.Key key = new FacetTreeHierarchy.Key("node_id", "child_ids", null);
+			assertNotNull(searcherRef.get().getCache(FacetTreeHierarchy.CACHE_NAME).get(key));
+			
+			FacetTreeHierarchy hierarchy = FacetTreeHierarchy.getCached(searcherRef.get(), key);
+			assertSame(hierarchy, FacetTreeHierarchy.getCached(searcherRef.get(), key));
+			assertEquals(ordinals(hierarchy.getOrdinal("AA"), hierarchy.getOrdinal("AB")),
+					hierarchy.getParents(hierarchy.getOrdinal("AAA")));
+		} finally {
+			searcherRef.decref();
+		}
+	}
+	
+	@Test
+	public void testCachedConcurrently() throws Exception {
+		final RefCounted<SolrIndexSearcher> searcherRef = h.getCore().getSearcher();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			// A hierarchy not loaded by any other test
+			final FacetTreeHierarchy.Key key = new FacetTreeHierarchy.Key("node_id", "child_ids", "name");
+			final CountDownLatch start = new CountDownLatch(1);
+			List<Future<FacetTreeHierarchy>> futures = new ArrayList<>();
+			for (int i = 0; i < 4; i ++) {
+				futures.add(executor.submit(new Callable<FacetTreeHierarchy>() {
+					@Override
+					public FacetTreeHierarchy call() throws Exception {
+						start.await();
+						return FacetTreeHierarchy.getCached(searcherRef.get(), key);
+					}
+				}));
+			}
+			start.countDown();
+			
+			// Only one request loads the hierarchy, the others get the same one
+			FacetTreeHierarchy hierarchy = futures.get(0).get();
+			assertNotNull(hierarchy);
+			for (Future<FacetTreeHierarchy> future : futures) {
+				assertSame(hierarchy, future.get());
+			}
+		} finally {
+			executor.shutdown();
+			searcherRef.decref();
+		}
+	}
+	
+	@SuppressWarnings("rawtypes")
+	@Test
+	public void testMultipleParents() {
+		SolrCore core = h.getCore();
+		
+		ModifiableSolrParams params = new ModifiableSolrParams();
+		params.add("q", "name:nodeAAA");
+		params.add("facet", "true");
+		params.add("facet.tree", "true");
+		params.add("facet.tree.field", "{!ftree childField=child_ids}node_id");
+		
+		SolrQueryResponse rsp = new SolrQueryResponse();
+		rsp.add("responseHeader", new SimpleOrderedMap<>());
+		SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+		
+		SolrRequestHandler handler = core.getRequestHandler("facetTree");
+		handler.handleRequest(req, rsp);
+		req.close();
+		
+		assertNull(rsp.getException());
+		
+		NamedList facetTree = (NamedList) ((NamedList) (rsp.getValues().get("facet_counts"))).get("facet_trees");
+		List nodes = (List) facetTree.get("node_id");
+		assertEquals(1, nodes.size());
+		NamedList level1 = (NamedList) nodes.get(0);
+		assertEquals("A", level1.get("value"));
+		
+		// AAA appears under both of its parents
+		List level2Nodes = (List) level1.get("hierarchy");
+		assertEquals(2, level2Nodes.size());
+		for (Object level2 : level2Nodes) {
+			assertEquals(1L, ((NamedList) level2).get("total"));
+			List level3Nodes = (List) ((NamedList) level2).get("hierarchy");
+			assertEquals(1, level3Nodes.size());
+			assertEquals("AAA", ((NamedList) level3Nodes.get(0)).get("value"));
+			assertEquals(1L, ((NamedList) level3Nodes.get(0)).get("count"));
+		}
+	}
+	
+	private static IntsRef ordinals(int... ords) {
+		return new IntsRef(ords, 0, ords.length);
+	}
+	
+}
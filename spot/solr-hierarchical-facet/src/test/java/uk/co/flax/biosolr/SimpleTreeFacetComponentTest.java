@@ -25,11 +25,20 @@ public class SimpleTreeFacetComponentTest extends SolrTestCaseJ4 {
 		
 		// Add some records
 		assertNull(h.validateUpdate(adoc("id", "0", "node_id", "A", "child_ids", "AA", "child_ids", "AB", "child_ids", "AC", "name", "nodeA", "label", "nodeA")));
-		assertNull(h.validateUpdate(adoc("id", "1", "node_id", "AA", "child_ids", "AAA", "child_ids", "AAB", "name", "nodeAA", "label", "nodeAA")));
-		assertNull(h.validateUpdate(adoc("id", "2", "node_id", "AAA", "name", "nodeAAA", "label", "nodeAAA")));
-		assertNull(h.validateUpdate(adoc("id", "3", "node_id", "AAB", "name", "nodeAAB", "label", "nodeAAB")));
-		assertNull(h.validateUpdate(adoc("id", "4", "node_id", "AB", "name", "nodeAB", "label", "nodeAB")));
-		assertNull(h.validateUpdate(adoc("id", "5", "node_id", "AC", "name", "nodeAC", "label", "nodeAC")));
+		assertNull(h.validateUpdate(adoc("id", "1", "node_id", "AA", "child_ids", "AAA", "child_ids", "AAB", "ancestor_ids", "A", "name", "nodeAA", "label", "nodeAA")));
+		assertNull(h.validateUpdate(adoc("id", "2", "node_id", "AAA", "ancestor_ids", "A", "ancestor_ids", "AA", "name", "nodeAAA", "label", "nodeAAA")));
+		assertNull(h.validateUpdate(adoc("id", "3", "node_id", "AAB", "ancestor_ids", "A", "ancestor_ids", "AA", "name", "nodeAAB", "label", "nodeAAB")));
+		assertNull(h.validateUpdate(adoc("id", "4", "node_id", "AB", "ancestor_ids", "A", "name", "nodeAB", "label", "nodeAB")));
+		assertNull(h.validateUpdate(adoc("id", "5", "node_id", "AC", "ancestor_ids", "A", "name", "nodeAC", "label", "nodeAC")));
+		// A second hierarchy, where BAB has two parents
+		assertNull(h.validateUpdate(adoc("id", "6", "node_id", "B", "child_ids", "BA", "child_ids", "BB", "name", "nodeB", "label", "nodeB")));
+		assertNull(h.validateUpdate(adoc("id", "7", "node_id", "BA", "child_ids", "BAB", "ancestor_ids", "B", "name", "nodeBA", "label", "nodeBA")));
+		assertNull(h.validateUpdate(adoc("id", "8", "node_id", "BB", "child_ids", "BAB", "ancestor_ids", "B", "name", "nodeBB", "label", "nodeBB")));
+		assertNull(h.validateUpdate(adoc("id", "9", "node_id", "BAB", "ancestor_ids", "B", "ancestor_ids", "BA", "ancestor_ids", "BB", "name", "nodeBAB", "label", "nodeBAB")));
+		// A third hierarchy, with a cycle below its root: C -> CA -> CB -> CA
+		assertNull(h.validateUpdate(adoc("id", "10", "node_id", "C", "child_ids", "CA", "name", "nodeC", "label", "nodeC")));
+		assertNull(h.validateUpdate(adoc("id", "11", "node_id", "CA", "child_ids", "CB", "name", "nodeCA", "label", "nodeCA")));
+		assertNull(h.validateUpdate(adoc("id", "12", "node_id", "CB", "child_ids", "CA", "name", "nodeCB", "label", "nodeCB")));
 		assertNull(h.validateUpdate(commit()));
 	}
 	
@@ -165,4 +174,120 @@ public class SimpleTreeFacetComponentTest extends SolrTestCaseJ4 {
 	    assertNull(level3.get("hierarchy"));
 	}
 	
+	@SuppressWarnings("rawtypes")
+	@Test
+	public void testMultipleResults_ancestorField() {
+		// Totals are the distinct documents at or below each node
+		List<Object> nodes = getFacetTree("name:nodeA*", "{!ftree childField=child_ids ancestorField=ancestor_ids}node_id");
+		assertEquals(1, nodes.size());
+		NamedList level1 = (NamedList) nodes.get(0);
+		assertEquals("A", level1.get("value"));
+		assertEquals(1L, level1.get("count"));
+		assertEquals(6L, level1.get("total"));
+		List level2Nodes = (List) level1.get("hierarchy");
+		assertEquals(3, level2Nodes.size());
+		NamedList level2 = (NamedList) level2Nodes.get(0);
+		assertEquals("AA", level2.get("value"));
+		assertEquals(1L, level2.get("count"));
+		assertEquals(3L, level2.get("total"));
+	}
+	
+	@SuppressWarnings("rawtypes")
+	@Test
+	public void testMultipleParents_ancestorField() {
+		// Summed totals count BAB once under each of its parents
+		List<Object> nodes = getFacetTree("name:nodeB*", "{!ftree childField=child_ids}node_id");
+		assertEquals(1, nodes.size());
+		NamedList summed = (NamedList) nodes.get(0);
+		assertEquals("B", summed.get("value"));
+		assertEquals(5L, summed.get("total"));
+		
+		// Exact totals count it once
+		nodes = getFacetTree("name:nodeB*", "{!ftree childField=child_ids ancestorField=ancestor_ids}node_id");
+		assertEquals(1, nodes.size());
+		NamedList exact = (NamedList) nodes.get(0);
+		assertEquals("B", exact.get("value"));
+		assertEquals(1L, exact.get("count"));
+		assertEquals(4L, exact.get("total"));
+		assertTrue((Long) exact.get("total") < (Long) summed.get("total"));
+		
+		List level2Nodes = (List) exact.get("hierarchy");
+		assertEquals(2, level2Nodes.size());
+		for (Object level2Node : level2Nodes) {
+			NamedList level2 = (NamedList) level2Node;
+			assertEquals(2L, level2.get("total"));
+			List level3Nodes = (List) level2.get("hierarchy");
+			assertEquals(1, level3Nodes.size());
+			assertEquals("BAB", ((NamedList) level3Nodes.get(0)).get("value"));
+		}
+	}
+	
+	@SuppressWarnings("rawtypes")
+	@Test
+	public void testCycle() {
+		// The cycle is broken between CA and CB, keeping the whole tree under C
+		List<Object> nodes = getFacetTree("name:nodeC*", "{!ftree childField=child_ids}node_id");
+		assertEquals(1, nodes.size());
+		NamedList level1 = (NamedList) nodes.get(0);
+		assertEquals("C", level1.get("value"));
+		assertEquals(3L, level1.get("total"));
+		List level2Nodes = (List) level1.get("hierarchy");
+		assertEquals(1, level2Nodes.size());
+		NamedList level2 = (NamedList) level2Nodes.get(0);
+		assertEquals("CA", level2.get("value"));
+		assertEquals(2L, level2.get("total"));
+		List level3Nodes = (List) level2.get("hierarchy");
+		assertEquals(1, level3Nodes.size());
+		NamedList level3 = (NamedList) level3Nodes.get(0);
+		assertEquals("CB", level3.get("value"));
+		assertEquals(1L, level3.get("total"));
+		assertNull(level3.get("hierarchy"));
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private List<Object> getFacetTree(String query, String treeField) {
+		SolrCore core = h.getCore();
+		
+		ModifiableSolrParams params = new ModifiableSolrParams();
+		params.add("q", query);
+		params.add("facet", "true");
+		params.add("facet.tree", "true");
+		params.add("facet.tree.field", treeField);
+		
+	    SolrQueryResponse rsp = new SolrQueryResponse();
+	    rsp.add("responseHeader", new SimpleOrderedMap<>());
+	    SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+
+	    SolrRequestHandler handler = core.getRequestHandler(requestHandler);
+	    handler.handleRequest(req, rsp);
+	    req.close();
+	      
+	    assertNull(rsp.getException());
+	    
+	    NamedList facetTree = (NamedList) ((NamedList)(rsp.getValues().get("facet_counts"))).get("facet_trees");
+	    assertNotNull(facetTree);
+	    return (List) facetTree.get("node_id");
+	}
+	
+	@Test
+	public void testBadRequest_badAncestorField() {
+		SolrCore core = h.getCore();
+		
+		ModifiableSolrParams params = new ModifiableSolrParams();
+		params.add("q", "*:*");
+		params.add("facet", "true");
+		params.add("facet.tree", "true");
+		params.add("facet.tree.field", "{!ftree childField=child_ids ancestorField=blah}node_id");
+		
+	    SolrQueryResponse rsp = new SolrQueryResponse();
+	    rsp.add("responseHeader", new SimpleOrderedMap<>());
+	    SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+
+	    SolrRequestHandler handler = core.getRequestHandler(requestHandler);
+	    handler.handleRequest(req, rsp);
+	    req.close();
+	      
+	    assertNotNull(rsp.getException());
+	}
+	
 }